@@ -0,0 +1,87 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Documents to benchmark with. Small documents are bundled as resources;
+ * large ones are built from them, so that the repository doesn't need to
+ * carry megabytes of HTML.
+ *
+ * - fragment: a single line of wikitext output, the most common case
+ * - article: a typical article, with an infobox, references and some
+ *   broken markup of the kind depuration exists to clean up
+ * - large: the article repeated to about 2 MB
+ * - deep: about 1 MB of deeply nested and misnested inline and block
+ *   elements, which exercises the compatibility serializer's stack
+ */
+class Corpus {
+	public static final String[] NAMES = {"fragment", "article", "large", "deep"};
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static byte[] get(String name) throws IOException {
+		if ("fragment".equals(name) || "article".equals(name)) {
+			return load(name + ".html");
+		} else if ("large".equals(name)) {
+			return repeat(load("article.html"), 2000000);
+		} else if ("deep".equals(name)) {
+			return deep(1000000);
+		} else {
+			throw new IllegalArgumentException("Unknown document: " + name);
+		}
+	}
+
+	private static byte[] load(String fileName) throws IOException {
+		InputStream stream = Corpus.class.getResourceAsStream(
+				"corpus/" + fileName);
+		if (stream == null) {
+			throw new IOException("Missing corpus file: " + fileName);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = stream.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static byte[] repeat(byte[] doc, int size) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + doc.length);
+		while (out.size() < size) {
+			out.write(doc, 0, doc.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] deep(int size) {
+		StringBuilder sb = new StringBuilder(size + 1000);
+		int block = 0;
+		while (sb.length() < size) {
+			// Nested blockquotes and divs with text at every level, each
+			// getting a p-wrapper in compat mode
+			for (int i = 0; i < 200; i++) {
+				sb.append(i % 2 == 0 ? "<blockquote>" : "<div class=\"d\">");
+				sb.append("level ").append(i).append(' ');
+			}
+			// Inline formatting elements which are never closed, and a
+			// block inside them, so that the serializer has to split them
+			for (int i = 0; i < 50; i++) {
+				sb.append("<b><i><span title=\"t").append(i).append("\">x");
+			}
+			sb.append("<div>block ").append(block++).append("</div>y");
+			for (int i = 199; i >= 0; i--) {
+				sb.append(i % 2 == 0 ? "</blockquote>" : "</div>");
+			}
+			sb.append('\n');
+		}
+		return sb.toString().getBytes(UTF_8);
+	}
+}
@@ -0,0 +1,30 @@
+package org.wikimedia.html5depurate;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream which discards its input, so that benchmarks measure the
+ * cost of producing output rather than storing it. The byte count is
+ * returned from benchmark methods so that the JIT can't elide the work.
+ */
+class CountingOutputStream extends OutputStream {
+	private long m_count = 0;
+
+	public long getCount() {
+		return m_count;
+	}
+
+	public void reset() {
+		m_count = 0;
+	}
+
+	@Override
+	public void write(int b) {
+		m_count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		m_count += len;
+	}
+}
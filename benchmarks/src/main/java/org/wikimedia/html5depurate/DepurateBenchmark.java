@@ -0,0 +1,52 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ * Depurator.depurate() from input bytes to output bytes, as run by
+ * DepurateHandler for each request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DepurateBenchmark {
+	@Param({"fragment", "article", "large", "deep"})
+	public String doc;
+
+	@Param({"true", "false"})
+	public boolean compat;
+
+	private byte[] m_input;
+	private CountingOutputStream m_sink = new CountingOutputStream();
+
+	@Setup
+	public void setUp() throws Exception {
+		m_input = Corpus.get(doc);
+	}
+
+	@Benchmark
+	public long depurate() throws Exception {
+		InputSource source = new InputSource(new ByteArrayInputStream(m_input));
+		source.setEncoding("UTF-8");
+		m_sink.reset();
+		Depurator.depurate(source, m_sink, compat);
+		return m_sink.getCount();
+	}
+}
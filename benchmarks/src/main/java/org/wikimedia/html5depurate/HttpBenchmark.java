@@ -0,0 +1,121 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete request to an in-process server over loopback, including
+ * multipart parsing in MultipartBuffer, the hand-off to the depuration
+ * pool and writing the response. Run with -t to add concurrent clients.
+ *
+ * The allocation figures from -prof gc cover the client as well as the
+ * server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpBenchmark {
+	private static final String BOUNDARY = "depurate-benchmark-boundary";
+
+	@Param({"fragment", "article", "large"})
+	public String doc;
+
+	@Param({"document", "compat/document"})
+	public String path;
+
+	private HttpServer m_server;
+	private DepurateExecutor m_executor;
+	private URL m_url;
+	private byte[] m_body;
+
+	@Setup
+	public void setUp() throws Exception {
+		Config config = new Config();
+		config.maxPostSize = 100000000;
+		config.host = "localhost";
+		config.port = Integer.getInteger("depurate.benchmark.port", 4349);
+		config.depurateThreads = Runtime.getRuntime().availableProcessors();
+		config.depurateQueueSize = 1000;
+		config.retryAfter = 1;
+
+		m_executor = new DepurateExecutor(config.depurateThreads,
+				config.depurateQueueSize);
+		m_server = new HttpServer();
+		m_server.addListener(
+				new NetworkListener("depurate", config.host, config.port));
+		m_server.getServerConfiguration().addHttpHandler(
+				new DepurateHandler(config, m_executor));
+		m_server.start();
+
+		m_url = new URL("http://" + config.host + ":" + config.port + "/" + path);
+		m_body = multipartBody(Corpus.get(doc));
+	}
+
+	@TearDown
+	public void tearDown() {
+		m_server.shutdownNow();
+		m_executor.shutdown();
+	}
+
+	private static byte[] multipartBody(byte[] text) throws Exception {
+		Charset ascii = Charset.forName("US-ASCII");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"text\"\r\n"
+				+ "\r\n").getBytes(ascii));
+		body.write(text);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(ascii));
+		return body.toByteArray();
+	}
+
+	@Benchmark
+	public long request() throws Exception {
+		HttpURLConnection conn = (HttpURLConnection)m_url.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type",
+				"multipart/form-data; boundary=" + BOUNDARY);
+		conn.setFixedLengthStreamingMode(m_body.length);
+		OutputStream out = conn.getOutputStream();
+		out.write(m_body);
+		out.close();
+
+		if (conn.getResponseCode() != 200) {
+			throw new IllegalStateException("Unexpected status "
+					+ conn.getResponseCode());
+		}
+		// Read the response to the end so that the connection can be reused
+		InputStream in = conn.getInputStream();
+		byte[] buffer = new byte[8192];
+		long count = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			count += n;
+		}
+		in.close();
+		return count;
+	}
+}
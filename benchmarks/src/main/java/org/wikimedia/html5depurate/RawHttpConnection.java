@@ -0,0 +1,157 @@
+package org.wikimedia.html5depurate;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal HTTP/1.1 client connection over a SocketChannel, so that
+ * requests can be written a piece at a time.
+ */
+class RawHttpConnection {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private SocketChannel m_channel;
+	private final InputStream m_in;
+	private final OutputStream m_out;
+
+	private RawHttpConnection(SocketChannel channel) {
+		m_channel = channel;
+		m_in = new BufferedInputStream(Channels.newInputStream(channel));
+		m_out = Channels.newOutputStream(channel);
+	}
+
+	public static RawHttpConnection tcp(InetSocketAddress address)
+			throws IOException
+	{
+		SocketChannel channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		return new RawHttpConnection(channel);
+	}
+
+	/**
+	 * Get the headers of a POST request with a text/html body
+	 *
+	 * @param close Whether to ask for the connection to be closed after
+	 *   the response
+	 */
+	public static byte[] requestHeaders(String path, long length,
+			boolean close)
+	{
+		return ("POST " + path + " HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ "Content-Type: text/html; charset=UTF-8\r\n"
+				+ "Content-Length: " + length + "\r\n"
+				+ (close ? "Connection: close\r\n" : "")
+				+ "\r\n").getBytes(ASCII);
+	}
+
+	/**
+	 * Get a complete POST request with a text/html body
+	 */
+	public static byte[] request(String path, byte[] body, boolean close)
+			throws IOException
+	{
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		request.write(requestHeaders(path, body.length, close));
+		request.write(body);
+		return request.toByteArray();
+	}
+
+	public boolean isOpen() {
+		return m_channel != null;
+	}
+
+	public void write(byte[] data) throws IOException {
+		m_out.write(data);
+	}
+
+	/**
+	 * Read a response with a Content-Length or a chunked body, and return
+	 * the size of the body. The connection is closed if the response says
+	 * so, which Grizzly does after a number of keep-alive requests.
+	 */
+	public long readResponse() throws IOException {
+		String status = readLine();
+		if (!status.startsWith("HTTP/1.1 200")) {
+			throw new IllegalStateException("Unexpected status " + status);
+		}
+		long length = -1;
+		boolean chunked = false;
+		boolean close = false;
+		String line;
+		while ((line = readLine()).length() > 0) {
+			String lower = line.toLowerCase();
+			if (lower.startsWith("content-length:")) {
+				length = Long.parseLong(line.substring(15).trim());
+			} else if (lower.startsWith("transfer-encoding:")
+					&& lower.contains("chunked")) {
+				chunked = true;
+			} else if (lower.startsWith("connection:")
+					&& lower.contains("close")) {
+				close = true;
+			}
+		}
+		long count;
+		if (chunked) {
+			count = readChunks();
+		} else {
+			skip(length);
+			count = length;
+		}
+		if (close) {
+			close();
+		}
+		return count;
+	}
+
+	public void close() throws IOException {
+		if (m_channel != null) {
+			m_channel.close();
+			m_channel = null;
+		}
+	}
+
+	private long readChunks() throws IOException {
+		long count = 0;
+		long size;
+		while ((size = Long.parseLong(readLine().trim(), 16)) > 0) {
+			skip(size);
+			readLine();
+			count += size;
+		}
+		readLine();
+		return count;
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = m_in.read()) != '\n') {
+			if (c == -1) {
+				throw new IOException("Unexpected end of response");
+			}
+			if (c != '\r') {
+				sb.append((char)c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private void skip(long n) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (n > 0) {
+			int read = m_in.read(buffer, 0, (int)Math.min(buffer.length, n));
+			if (read == -1) {
+				throw new IOException("Unexpected end of response");
+			}
+			n -= read;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.wikimedia.html5depurate;
+
+import java.util.ArrayList;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The SAX events produced by parsing a document, so that they can be fed
+ * to a serializer again without the cost of parsing.
+ */
+class SaxRecording extends DefaultHandler implements LexicalHandler {
+	private static final int START_DOCUMENT = 0;
+	private static final int END_DOCUMENT = 1;
+	private static final int START_ELEMENT = 2;
+	private static final int END_ELEMENT = 3;
+	private static final int CHARACTERS = 4;
+	private static final int COMMENT = 5;
+
+	private static class Event {
+		final int type;
+		final String uri;
+		final String localName;
+		final String qName;
+		final Attributes attrs;
+		final char[] text;
+
+		Event(int type_, String uri_, String localName_, String qName_,
+				Attributes attrs_, char[] text_) {
+			type = type_;
+			uri = uri_;
+			localName = localName_;
+			qName = qName_;
+			attrs = attrs_;
+			text = text_;
+		}
+	}
+
+	private final ArrayList<Event> m_events = new ArrayList<Event>();
+
+	public int size() {
+		return m_events.size();
+	}
+
+	/**
+	 * Send the recorded events to a handler
+	 */
+	public void replay(ContentHandler handler, LexicalHandler lexicalHandler)
+			throws SAXException {
+		for (int i = 0; i < m_events.size(); i++) {
+			Event e = m_events.get(i);
+			switch (e.type) {
+				case START_DOCUMENT:
+					handler.startDocument();
+					break;
+				case END_DOCUMENT:
+					handler.endDocument();
+					break;
+				case START_ELEMENT:
+					handler.startElement(e.uri, e.localName, e.qName, e.attrs);
+					break;
+				case END_ELEMENT:
+					handler.endElement(e.uri, e.localName, e.qName);
+					break;
+				case CHARACTERS:
+					handler.characters(e.text, 0, e.text.length);
+					break;
+				case COMMENT:
+					lexicalHandler.comment(e.text, 0, e.text.length);
+					break;
+			}
+		}
+	}
+
+	private void add(int type, String uri, String localName, String qName,
+			Attributes attrs, char[] text) {
+		m_events.add(new Event(type, uri, localName, qName, attrs, text));
+	}
+
+	private static char[] copy(char[] ch, int start, int length) {
+		char[] text = new char[length];
+		System.arraycopy(ch, start, text, 0, length);
+		return text;
+	}
+
+	@Override
+	public void startDocument() {
+		add(START_DOCUMENT, null, null, null, null, null);
+	}
+
+	@Override
+	public void endDocument() {
+		add(END_DOCUMENT, null, null, null, null, null);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attrs) {
+		add(START_ELEMENT, uri, localName, qName, new AttributesImpl(attrs),
+				null);
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		add(END_ELEMENT, uri, localName, qName, null, null);
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		add(CHARACTERS, null, null, null, null, copy(ch, start, length));
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int length) {
+		characters(ch, start, length);
+	}
+
+	public void comment(char[] ch, int start, int length) {
+		add(COMMENT, null, null, null, null, copy(ch, start, length));
+	}
+
+	public void startDTD(String name, String publicId, String systemId) {
+	}
+
+	public void endDTD() {
+	}
+
+	public void startEntity(String name) {
+	}
+
+	public void endEntity(String name) {
+	}
+
+	public void startCDATA() {
+	}
+
+	public void endCDATA() {
+	}
+}
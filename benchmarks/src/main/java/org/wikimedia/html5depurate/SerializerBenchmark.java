@@ -0,0 +1,88 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import nu.validator.htmlparser.common.XmlViolationPolicy;
+import nu.validator.htmlparser.sax.HtmlParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * The parser and the two serializers separately. The serializers are fed
+ * SAX events recorded from a parse of the document, so their numbers
+ * don't include parsing; parse() gives the cost of parsing alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+	@Param({"fragment", "article", "large", "deep"})
+	public String doc;
+
+	private byte[] m_input;
+	private SaxRecording m_recording;
+	private HtmlParser m_parser;
+	private DefaultHandler2 m_nullHandler = new DefaultHandler2();
+	private CountingOutputStream m_sink = new CountingOutputStream();
+	private DepurateSerializer m_serializer = new DepurateSerializer(null);
+	private CompatibilitySerializer m_compatSerializer =
+		new CompatibilitySerializer(null);
+
+	@Setup
+	public void setUp() throws Exception {
+		m_input = Corpus.get(doc);
+		m_parser = new HtmlParser(XmlViolationPolicy.ALLOW);
+		m_recording = new SaxRecording();
+		m_parser.setContentHandler(m_recording);
+		m_parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+				m_recording);
+		m_parser.parse(source());
+		m_parser.setContentHandler(m_nullHandler);
+		m_parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+				m_nullHandler);
+	}
+
+	private InputSource source() {
+		InputSource source = new InputSource(new ByteArrayInputStream(m_input));
+		source.setEncoding("UTF-8");
+		return source;
+	}
+
+	@Benchmark
+	public HtmlParser parse() throws Exception {
+		m_parser.parse(source());
+		return m_parser;
+	}
+
+	@Benchmark
+	public long serialize() throws Exception {
+		m_sink.reset();
+		m_serializer.reset(m_sink);
+		m_recording.replay(m_serializer, m_serializer);
+		return m_sink.getCount();
+	}
+
+	@Benchmark
+	public long serializeCompat() throws Exception {
+		m_sink.reset();
+		m_compatSerializer.reset(m_sink);
+		m_recording.replay(m_compatSerializer, m_compatSerializer);
+		return m_sink.getCount();
+	}
+}
@@ -0,0 +1,153 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests made while thousands of other clients are connected and
+ * sending their bodies a byte at a time, comparing the default mode with
+ * thread-per-request mode. Run with -t to add concurrent fast clients.
+ *
+ * The slow clients send raw text/html bodies, which the default mode reads
+ * without tying up a thread, and which thread-per-request mode reads with a
+ * blocked thread each. Thread-per-request mode uses virtual threads on Java
+ * 21 and later, and platform threads before that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlowClientBenchmark {
+	@Param({"pool", "thread"})
+	public String mode;
+
+	@Param({"0", "2000"})
+	public int slowClients;
+
+	@Param({"fragment", "article"})
+	public String doc;
+
+	private HttpServer m_server;
+	private DepurateExecutor m_executor;
+	private InetSocketAddress m_address;
+	private byte[] m_request;
+	private final List<RawHttpConnection> m_slow =
+		new ArrayList<RawHttpConnection>();
+	private Thread m_trickler;
+	private volatile boolean m_stopped = false;
+
+	@Setup
+	public void setUp() throws Exception {
+		Config config = new Config();
+		config.maxPostSize = 100000000;
+		config.depurateThreads = Runtime.getRuntime().availableProcessors();
+		config.depurateQueueSize = 1000;
+		config.retryAfter = 1;
+		config.threadPerRequest = mode.equals("thread");
+		config.maxRequestThreads = 100000;
+		int port = Integer.getInteger("depurate.benchmark.port", 4349);
+
+		m_executor = new DepurateExecutor(config.depurateThreads,
+				config.depurateQueueSize);
+		m_server = new HttpServer();
+		m_server.addListener(new NetworkListener("depurate", "localhost", port));
+		m_server.getServerConfiguration().addHttpHandler(
+				new DepurateHandler(config, m_executor));
+		m_server.start();
+		m_address = new InetSocketAddress("localhost", port);
+		m_request = RawHttpConnection.request("/document", Corpus.get(doc),
+				false);
+
+		// Bodies which are never finished during the run
+		byte[] headers = RawHttpConnection.requestHeaders("/document",
+				100000000, false);
+		for (int i = 0; i < slowClients; i++) {
+			RawHttpConnection connection = RawHttpConnection.tcp(m_address);
+			connection.write(headers);
+			m_slow.add(connection);
+		}
+		m_trickler = new Thread(new Runnable() {
+			public void run() {
+				trickle();
+			}
+		}, "trickler");
+		m_trickler.setDaemon(true);
+		m_trickler.start();
+	}
+
+	/**
+	 * Send a byte to each slow client in turn, about once a second each
+	 */
+	private void trickle() {
+		byte[] data = {'x'};
+		try {
+			while (!m_stopped) {
+				long start = System.nanoTime();
+				for (RawHttpConnection connection : m_slow) {
+					connection.write(data);
+				}
+				long elapsed = (System.nanoTime() - start) / 1000000;
+				Thread.sleep(Math.max(0, 1000 - elapsed));
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			if (!m_stopped) {
+				throw new IllegalStateException("A slow client failed", e);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		m_stopped = true;
+		m_trickler.interrupt();
+		m_trickler.join();
+		for (RawHttpConnection connection : m_slow) {
+			connection.close();
+		}
+		m_server.shutdownNow();
+		m_executor.shutdown();
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		RawHttpConnection connection;
+
+		@TearDown(Level.Iteration)
+		public void close() throws IOException {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+
+	@Benchmark
+	public long request(Client client) throws Exception {
+		if (client.connection == null || !client.connection.isOpen()) {
+			client.connection = RawHttpConnection.tcp(m_address);
+		}
+		client.connection.write(m_request);
+		return client.connection.readResponse();
+	}
+}
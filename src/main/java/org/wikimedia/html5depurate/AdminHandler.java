@@ -0,0 +1,65 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Serves the configuration in effect at /admin/config, and reloads it from
+ * the configuration file on a POST to /admin/reload.
+ *
+ * Both are only available to clients on the local host, since the
+ * configuration may say more about the server than should be public.
+ */
+class AdminHandler extends HttpHandler {
+	private final DepurateDaemon m_daemon;
+
+	AdminHandler(DepurateDaemon daemon) {
+		super("admin");
+		m_daemon = daemon;
+	}
+
+	@Override
+	public void service(Request request, Response response) throws Exception {
+		String path = request.getPathInfo();
+		response.setContentType("text/plain;charset=UTF-8");
+		if (!InetAddress.getByName(request.getRemoteAddr())
+				.isLoopbackAddress()) {
+			sendError(response, 403,
+					"The admin API is only available from the local host");
+		} else if ("/config".equals(path)) {
+			response.getWriter().write(m_daemon.getConfig().format());
+		} else if ("/reload".equals(path)) {
+			if (request.getMethod() != Method.POST) {
+				response.setHeader("Allow", "POST");
+				sendError(response, 405, "Reload requires a POST");
+			} else {
+				Config config;
+				try {
+					config = m_daemon.reload();
+				} catch (IllegalArgumentException e) {
+					sendError(response, 400, e.getMessage());
+					return;
+				} catch (IOException e) {
+					sendError(response, 500, "Error loading config file: " +
+							e.getMessage());
+					return;
+				}
+				response.getWriter().write(config.format());
+			}
+		} else {
+			sendError(response, 404, "Unknown API path");
+		}
+	}
+
+	private static void sendError(Response response, int code, String message)
+			throws IOException
+	{
+		response.getResponse().setAllowCustomReasonPhrase(false);
+		response.sendError(code, message);
+	}
+}
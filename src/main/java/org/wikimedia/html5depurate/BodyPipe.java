@@ -0,0 +1,236 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.ReadHandler;
+import org.glassfish.grizzly.http.io.NIOInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request body as a blocking InputStream, for thread-per-request mode.
+ *
+ * Grizzly's own blocking reads wait in a temporary selector, which holds on
+ * to the carrier of a virtual thread, so a few hundred slow clients are
+ * enough to stop every other request. Here the body is read with
+ * non-blocking callbacks on Grizzly's threads, as in the default mode, and
+ * the buffers are handed over to the reading thread, which waits on a lock
+ * and so gives up its carrier while it waits.
+ *
+ * Once MAX_QUEUED bytes are waiting for the reading thread, the pipe stops
+ * asking for more, so that Grizzly stops reading from the connection, until
+ * the reading thread has caught up. The queue can go over the limit by what
+ * Grizzly has already read.
+ */
+class BodyPipe extends InputStream implements ReadHandler {
+	/** The most bytes which are queued before reading is suspended */
+	static final int MAX_QUEUED = 65536;
+
+	private final NIOInputStream m_stream;
+	private final MemoryBudget.Reservation m_reservation;
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_available = m_lock.newCondition();
+	private final ArrayDeque<Buffer> m_buffers = new ArrayDeque<Buffer>();
+	private boolean m_done = false;
+	private boolean m_closed = false;
+	private Throwable m_error;
+	private IOException m_failure;
+	private long m_received = 0;
+	private int m_queued = 0;
+	/** Whether reading was suspended because the queue was full */
+	private boolean m_suspended = false;
+
+	/**
+	 * @param stream The request body
+	 * @param reservation The request's memory reservation, which grows with
+	 *   the body as it is received
+	 */
+	BodyPipe(NIOInputStream stream, MemoryBudget.Reservation reservation) {
+		m_stream = stream;
+		m_reservation = reservation;
+	}
+
+	/**
+	 * Start reading the body. This is called from the request's Grizzly
+	 * thread, before the reading thread takes over.
+	 */
+	public void start() {
+		m_stream.notifyAvailable(this);
+	}
+
+	@Override
+	public void onDataAvailable() throws Exception {
+		if (take(false)) {
+			m_stream.notifyAvailable(this);
+		}
+	}
+
+	@Override
+	public void onAllDataRead() throws Exception {
+		// The rest of the body has already been read from the connection, so
+		// there's nothing to gain from leaving it in the stream
+		take(true);
+		m_lock.lock();
+		try {
+			m_done = true;
+			m_available.signal();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		m_lock.lock();
+		try {
+			m_error = t;
+			m_available.signal();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Move the buffers which are ready from the stream to the queue. Unless
+	 * all is set, this stops when the queue is full, and returns false to
+	 * say that reading is suspended until the reader resumes it.
+	 */
+	private boolean take(boolean all) {
+		while (m_stream.isReady()) {
+			m_lock.lock();
+			try {
+				if (!all && !m_closed && m_queued >= MAX_QUEUED) {
+					m_suspended = true;
+					return false;
+				}
+				Buffer buffer = m_stream.readBuffer();
+				m_received += buffer.remaining();
+				if (m_closed) {
+					buffer.tryDispose();
+				} else if (!m_reservation.reserveTotal(m_received)) {
+					// The rest is read and discarded, and the reader gets
+					// the exception
+					buffer.tryDispose();
+					m_failure = new MemoryBudget.ExceededException();
+					m_closed = true;
+					disposeAll();
+					m_available.signal();
+				} else {
+					m_queued += buffer.remaining();
+					m_buffers.add(buffer);
+					m_available.signal();
+				}
+			} finally {
+				m_lock.unlock();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ask for more of the body after reading was suspended. This is called
+	 * without the lock, since the stream may call back straight away.
+	 */
+	private void resume() {
+		m_stream.notifyAvailable(this);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		boolean resume = false;
+		int n;
+		m_lock.lock();
+		try {
+			while (m_buffers.isEmpty() && !m_done && m_error == null
+					&& m_failure == null) {
+				try {
+					m_available.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (m_failure != null) {
+				throw m_failure;
+			}
+			Buffer head = m_buffers.peek();
+			if (head == null) {
+				if (m_error != null) {
+					throw new IOException("Error reading the request: " +
+							Util.format(m_error));
+				}
+				return -1;
+			}
+			n = Math.min(len, head.remaining());
+			head.get(b, off, n);
+			if (!head.hasRemaining()) {
+				m_buffers.poll().tryDispose();
+			}
+			m_queued -= n;
+			// Wait for half the queue to be free, rather than resuming for
+			// every read
+			if (m_suspended && m_queued <= MAX_QUEUED / 2) {
+				m_suspended = false;
+				resume = true;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (resume) {
+			resume();
+		}
+		return n;
+	}
+
+	@Override
+	public int available() {
+		m_lock.lock();
+		try {
+			Buffer head = m_buffers.peek();
+			return head == null ? 0 : head.remaining();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Release the buffers. The rest of the body is still read, and
+	 * discarded.
+	 */
+	@Override
+	public void close() {
+		boolean resume;
+		m_lock.lock();
+		try {
+			m_closed = true;
+			disposeAll();
+			resume = m_suspended;
+			m_suspended = false;
+		} finally {
+			m_lock.unlock();
+		}
+		if (resume) {
+			resume();
+		}
+	}
+
+	private void disposeAll() {
+		for (Buffer buffer : m_buffers) {
+			buffer.tryDispose();
+		}
+		m_buffers.clear();
+		m_queued = 0;
+	}
+}
@@ -0,0 +1,148 @@
+package org.wikimedia.html5depurate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays in power-of-two size classes from 8 KB to 1 MB,
+ * shared by the stages of a request which need a scratch or output buffer,
+ * so that under load they reuse arrays instead of allocating new ones.
+ *
+ * take() rounds the size up to its class and returns a free array of that
+ * class if there is one. give() returns an array for reuse, as long as the
+ * pool holds less than its maximum. Larger requests are allocated and
+ * dropped as usual; callers which may need more than MAX_SIZE should chain
+ * arrays, as PooledOutputStream does, which also keeps them out of the
+ * garbage collector's humongous regions.
+ *
+ * An array must not be used after it has been given back. The number of
+ * arrays taken and not given back is counted, so that tests can check for
+ * leaks.
+ */
+class BufferPool {
+	static final int MIN_SIZE = 8192;
+	static final int MAX_SIZE = 1 << 20;
+
+	private static final int MIN_SHIFT = 13;
+	private static final int CLASSES = 8;
+
+	private static final BufferPool s_shared = new BufferPool(64 << 20);
+
+	/** The free arrays, by size class */
+	private final List<ConcurrentLinkedQueue<byte[]>> m_free;
+	/** The most bytes which free arrays may take up, or 0 to pool nothing */
+	private volatile long m_max;
+	private final AtomicLong m_held = new AtomicLong();
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_outstanding = new AtomicLong();
+
+	BufferPool(long max) {
+		m_max = max;
+		m_free = new ArrayList<ConcurrentLinkedQueue<byte[]>>(CLASSES);
+		for (int i = 0; i < CLASSES; i++) {
+			m_free.add(new ConcurrentLinkedQueue<byte[]>());
+		}
+	}
+
+	/**
+	 * Get the pool shared by the whole process
+	 */
+	public static BufferPool get() {
+		return s_shared;
+	}
+
+	/**
+	 * Set the most bytes which the pool may hold, dropping free arrays if
+	 * it holds more than that
+	 */
+	public void setMax(long max) {
+		m_max = max;
+		for (int i = CLASSES - 1; i >= 0 && m_held.get() > max; i--) {
+			byte[] array;
+			while (m_held.get() > max && (array = m_free.get(i).poll()) != null) {
+				m_held.addAndGet(-array.length);
+			}
+		}
+	}
+
+	/**
+	 * Get an array of at least the given size
+	 */
+	public byte[] take(int size) {
+		m_outstanding.incrementAndGet();
+		int sizeClass = sizeClass(size);
+		if (sizeClass < 0) {
+			m_misses.incrementAndGet();
+			return new byte[size];
+		}
+		byte[] array = m_free.get(sizeClass).poll();
+		if (array != null) {
+			m_held.addAndGet(-array.length);
+			m_hits.incrementAndGet();
+			return array;
+		}
+		m_misses.incrementAndGet();
+		return new byte[MIN_SIZE << sizeClass];
+	}
+
+	/**
+	 * Return an array which was got from take(). Null is ignored.
+	 */
+	public void give(byte[] array) {
+		if (array == null) {
+			return;
+		}
+		m_outstanding.decrementAndGet();
+		int sizeClass = sizeClass(array.length);
+		if (sizeClass < 0 || (MIN_SIZE << sizeClass) != array.length) {
+			return;
+		}
+		if (m_held.addAndGet(array.length) > m_max) {
+			m_held.addAndGet(-array.length);
+			return;
+		}
+		m_free.get(sizeClass).offer(array);
+	}
+
+	/**
+	 * Get the index of the smallest class which fits a size, or -1 if it
+	 * is too large to pool
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		} else if (size > MAX_SIZE) {
+			return -1;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	public long getMax() {
+		return m_max;
+	}
+
+	/**
+	 * Get the number of bytes held in free arrays
+	 */
+	public long getHeldBytes() {
+		return m_held.get();
+	}
+
+	public long getHitCount() {
+		return m_hits.get();
+	}
+
+	public long getMissCount() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Get the number of arrays taken and not yet given back
+	 */
+	public long getOutstanding() {
+		return m_outstanding.get();
+	}
+}
@@ -1,14 +1,8 @@
 package org.wikimedia.html5depurate;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.util.Arrays;
-import java.util.Stack;
-import java.util.EmptyStackException;
+import java.util.ArrayList;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
@@ -17,6 +11,8 @@ import org.xml.sax.SAXException;
 import org.xml.sax.ext.LexicalHandler;
 import org.xml.sax.helpers.AttributesImpl;
 
+import org.wikimedia.html5depurate.SegmentBuffer.Segment;
+
 public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 
 	protected class StackEntry {
@@ -24,7 +20,8 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 		public String localName;
 		public String qName;
 		public Attributes attrs;
-		OutputStream savedStream;
+		public int flags;
+		Segment savedSegment;
 		public boolean needsPWrapping;
 		public boolean isPWrapper;
 		public boolean blank;
@@ -32,83 +29,136 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 		public boolean split;
 		public int blockNestingLevel;
 		public boolean isDisabledPWrapper;
+		public boolean passThrough;
 
 		public StackEntry(String uri_, String localName_, String qName_,
-				Attributes attrs_, OutputStream savedStream_) {
+				Attributes attrs_, Segment savedSegment_) {
 			uri = uri_;
 			localName = localName_;
 			qName = qName_;
 			attrs = attrs_;
-			savedStream = savedStream_;
-			needsPWrapping = "body".equals(localName_)
-				|| "blockquote".equals(localName_);
+			savedSegment = savedSegment_;
+			flags = ElementFlags.get(localName_);
+			needsPWrapping = (flags & ElementFlags.P_WRAPPING) != 0;
 			blank = true;
 			hasText = false;
-			isPWrapper = "mw:p-wrap".equals(localName_);
+			isPWrapper = (flags & ElementFlags.P_WRAPPER) != 0;
 			blockNestingLevel = 0;
 			isDisabledPWrapper = false;
 			split = false;
+			passThrough = false;
 		}
 	}
 
-	protected Stack<StackEntry> m_stack;
+	protected ArrayList<StackEntry> m_stack;
 	protected DepurateSerializer m_serializer;
-	protected Stack<StackEntry> m_pStack;
+	protected SegmentBuffer m_buffer;
+	protected ArrayList<StackEntry> m_pStack;
+	protected DepurateLimits m_limits;
+	/** The depth of the parser's elements, counted only while there are limits */
+	protected int m_depth;
+
+	public CompatibilitySerializer(OutputStream out) {
+		m_stack = new ArrayList<StackEntry>();
+		m_pStack = new ArrayList<StackEntry>();
+		m_buffer = new SegmentBuffer(out);
+		m_serializer = new DepurateSerializer(m_buffer);
+	}
 
-	// Warning: this list must be in alphabetical order
-	protected static final String[] ONLY_INLINE_ELEMENTS = {"a", "abbr", "acronym",
-		"applet", "b", "basefont", "bdo", "big", "br", "button", "cite",
-		"code", "dfn", "em", "font", "i", "iframe", "img", "input", "kbd",
-		"label", "legend", "map", "object", "param", "q", "rb", "rbc", "rp",
-		"rt", "rtc", "ruby", "s", "samp", "select", "small", "span", "strike",
-		"strong", "sub", "sup", "textarea", "tt", "u", "var"};
+	/**
+	 * Discard the state left over from a previous document, and start
+	 * writing to the given stream
+	 */
+	public void reset(OutputStream out) {
+		m_stack.clear();
+		m_pStack.clear();
+		m_buffer.reset(out);
+		m_serializer.reset(m_buffer);
+		m_limits = null;
+		m_depth = 0;
+	}
 
-	// Warning: this list must be in alphabetical order
-	protected static final String[] MARKED_EMPTY_ELEMENTS = {"li", "p", "tr"};
+	/**
+	 * Check the given limits for the rest of the document, until the next
+	 * reset(). The depth is that of the input's elements; the output size
+	 * includes everything written, including the tags repeated where the
+	 * tag stack is split.
+	 */
+	public void setLimits(DepurateLimits limits) {
+		m_limits = limits;
+		m_serializer.setLimits(limits);
+	}
 
-	public CompatibilitySerializer(OutputStream out) {
-		m_stack = new Stack<StackEntry>();
-		m_pStack = new Stack<StackEntry>();
-		m_serializer = new DepurateSerializer(out);
+	private StackEntry peek(ArrayList<StackEntry> stack) {
+		int size = stack.size();
+		return size == 0 ? null : stack.get(size - 1);
 	}
 
-	private StackEntry peek(Stack<StackEntry> stack) throws SAXException {
-		try {
-			return stack.peek();
-		} catch (EmptyStackException e) {
-			return null;
+	private StackEntry pop(ArrayList<StackEntry> stack) throws SAXException {
+		int size = stack.size();
+		if (size == 0) {
+			throw new SAXException("Unbalanced end of element");
 		}
+		return stack.remove(size - 1);
 	}
 
 	/**
-	 * Pop the top of the stack, restore the parent stream in the serializer
-	 * and return the previous stream
+	 * Send the serializer output to the given segment, or to the sink if it
+	 * is null, and return the segment that was being written before.
 	 */
-	private ByteArrayOutputStream popAndGetContents() throws SAXException {
+	private Segment switchSegment(Segment segment) throws SAXException {
+		m_serializer.flush();
+		Segment previous = m_buffer.getCurrent();
+		m_buffer.setCurrent(segment);
+		return previous;
+	}
+
+	/**
+	 * Write the contents of a finished segment at the current position
+	 */
+	private void writeSegment(Segment segment) throws SAXException {
+		m_serializer.flush();
 		try {
-			StackEntry entry = m_stack.pop();
-			if (entry.isPWrapper) {
-				m_pStack.pop();
-			}
-			ByteArrayOutputStream entryStream =
-				(ByteArrayOutputStream)m_serializer.getOutputStream();
-			m_serializer.setOutputStream(entry.savedStream);
-			return entryStream;
-		} catch (EmptyStackException e) {
+			m_buffer.append(segment);
+		} catch (IOException e) {
 			throw new SAXException(e);
 		}
 	}
 
+	/**
+	 * Pop the top of the stack, restore the parent segment in the serializer
+	 * and return the previous segment
+	 */
+	private Segment popAndGetContents() throws SAXException {
+		StackEntry entry = pop(m_stack);
+		if (entry.isPWrapper) {
+			pop(m_pStack);
+		}
+		return switchSegment(entry.savedSegment);
+	}
+
 	/**
 	 * Push a new element to the top of the stack, and set up a new empty
-	 * stream in the serializer. Returns the new element.
+	 * segment in the serializer. Returns the new element.
+	 *
+	 * The document skeleton (html, head and body) is never split, p-wrapped
+	 * or marked empty, so it is written straight through to the parent
+	 * segment instead. This means each finished block under the body is
+	 * flushed to the output as soon as it is closed.
 	 */
 	private StackEntry push(String uri, String localName, String qName,
 				Attributes attrs) throws SAXException {
+		StackEntry parent = peek(m_stack);
 		StackEntry entry = new StackEntry(uri, localName, qName, attrs,
-				m_serializer.getOutputStream());
-		m_stack.push(entry);
-		m_serializer.setOutputStream(new ByteArrayOutputStream());
+				m_buffer.getCurrent());
+		m_stack.add(entry);
+		if ((parent == null || parent.passThrough)
+				&& (entry.flags & ElementFlags.SKELETON) != 0) {
+			entry.passThrough = true;
+			m_serializer.startElement(uri, localName, qName, attrs);
+		} else {
+			switchSegment(m_buffer.newSegment());
+		}
 		return entry;
 	}
 
@@ -117,24 +167,28 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 	 * p element if the contents is non-blank and contains no block elements.
 	 */
 	private StackEntry pushPWrapper() throws SAXException {
-		StackEntry entry = push("", "mw:p-wrap", "mw:p-wrap", new AttributesImpl());
-		m_pStack.push(entry);
+		StackEntry entry = push("", ElementFlags.P_WRAPPER_NAME,
+				ElementFlags.P_WRAPPER_NAME, new AttributesImpl());
+		m_pStack.add(entry);
 		return entry;
 	}
 
-	private void writePWrapper(StackEntry entry, ByteArrayOutputStream contents)
+	private void writePWrapper(StackEntry entry, Segment contents)
 			throws SAXException {
 		if (!entry.isDisabledPWrapper && !entry.blank) {
 			m_serializer.write("<p>");
-			m_serializer.writeStream(contents);
+			writeSegment(contents);
 			m_serializer.write("</p>");
 		} else {
-			m_serializer.writeStream(contents);
+			writeSegment(contents);
 		}
 	}
 
 	public void characters(char[] chars, int start, int length)
 			throws SAXException {
+		if (m_limits != null) {
+			m_limits.checkTime();
+		}
 		StackEntry entry = peek(m_stack);
 		if (entry != null) {
 			if (entry.needsPWrapping) {
@@ -159,13 +213,12 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 
 	private void splitTagStack(boolean haveContent) throws SAXException {
 		StackEntry currentPWrapper = peek(m_pStack);
-		ByteArrayOutputStream seContent;
+		Segment seContent;
 		int n = m_stack.size();
 		int i = n - 1;
 		StackEntry se = m_stack.get(i);
 		while (se != currentPWrapper) {
-			seContent = (ByteArrayOutputStream)m_serializer.getOutputStream();
-			m_serializer.setOutputStream(se.savedStream);
+			seContent = switchSegment(se.savedSegment);
 
 			if (se.hasText) {
 				haveContent = true;
@@ -174,7 +227,7 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 			// Emit content accumulated so far
 			if (haveContent) {
 				m_serializer.startElement(se.uri, se.localName, se.qName, se.attrs);
-				m_serializer.writeStream(seContent);
+				writeSegment(seContent);
 				m_serializer.endElement(se.uri, se.localName, se.qName);
 
 				// All text has been output at this point
@@ -184,10 +237,10 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 				se.hasText = false;
 			}
 
-			// Reset parent's saved stream always.
+			// Reset parent's saved segment always.
 			// As we unwind the stack, its saved content
 			// could get output.
-			se.savedStream = new ByteArrayOutputStream();
+			se.savedSegment = m_buffer.newSegment();
 
 			i--;
 			se = m_stack.get(i);
@@ -196,8 +249,7 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 		// Dump <p>.. contents ..</p>
 		// Note se == currentPWrapper
 		if (haveContent || se.hasText) {
-			seContent = (ByteArrayOutputStream)m_serializer.getOutputStream();
-			m_serializer.setOutputStream(se.savedStream);
+			seContent = switchSegment(se.savedSegment);
 
 			// Emit content accumulated so far
 			writePWrapper(se, seContent);
@@ -206,12 +258,8 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 			se.blank = true;
 		}
 
-		// New stream going forward
-		m_serializer.setOutputStream(new ByteArrayOutputStream());
-	}
-
-	private boolean isOnlyInline(String localName) {
-		return Arrays.binarySearch(ONLY_INLINE_ELEMENTS, localName) > -1;
+		// New segment going forward
+		switchSegment(m_buffer.newSegment());
 	}
 
 	private void enterBlock(String tagName) throws SAXException {
@@ -252,13 +300,19 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 
 	public void startElement(String uri, String localName, String qName,
 			Attributes atts) throws SAXException {
+		if (m_limits != null) {
+			m_limits.checkDepth(++m_depth);
+			m_limits.checkTime();
+		}
 
+		boolean onlyInline =
+			(ElementFlags.get(localName) & ElementFlags.INLINE) != 0;
 		StackEntry oldEntry = peek(m_stack);
 		if (oldEntry != null) {
 			if (oldEntry.isPWrapper) {
-				if (!isOnlyInline(localName)) {
+				if (!onlyInline) {
 					// This is non-inline so close the p-wrapper
-					ByteArrayOutputStream contents = popAndGetContents();
+					Segment contents = popAndGetContents();
 					writePWrapper(oldEntry, contents);
 					oldEntry = peek(m_stack);
 				} else {
@@ -271,7 +325,6 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 		}
 
 		// Track block nesting level
-		boolean onlyInline = isOnlyInline(localName);
 		StackEntry currentPWrapper = peek(m_pStack);
 		if (currentPWrapper != null && !onlyInline) {
 			enterBlock(localName);
@@ -287,20 +340,31 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 
 	public void endElement(String uri, String localName, String qName)
 			throws SAXException {
+		if (m_limits != null) {
+			m_depth--;
+		}
 		StackEntry entry = peek(m_stack);
-		ByteArrayOutputStream contents = popAndGetContents();
 
 		if (entry.isPWrapper) {
 			// Since we made this p-wrapper, the caller really wants to end the parent element.
 			// So first we need to close the p-wrapper
-			writePWrapper(entry, contents);
+			writePWrapper(entry, popAndGetContents());
 			entry = peek(m_stack);
-			contents = popAndGetContents();
 		}
 
+		if (entry.passThrough) {
+			// The start tag and contents have already been written
+			pop(m_stack);
+			m_serializer.endElement(uri, localName, qName);
+			return;
+		}
+
+		Segment contents = popAndGetContents();
+
 		// Annotate empty tr and li elements so that they can be hidden in CSS,
 		// for compatibility with tidy and existing wikitext
-		if (Arrays.binarySearch(MARKED_EMPTY_ELEMENTS, localName) > -1) {
+		int flags = ElementFlags.get(localName);
+		if ((flags & ElementFlags.MARKED_EMPTY) != 0) {
 			if (entry.attrs.getLength() == 0 && entry.blank) {
 				AttributesImpl newAttrs = new AttributesImpl();
 				newAttrs.addAttribute("", "class", "class", "", "mw-empty-elt");
@@ -310,18 +374,42 @@ public class CompatibilitySerializer implements ContentHandler, LexicalHandler {
 
 		if (!entry.split || !entry.blank) {
 			m_serializer.startElement(entry.uri, entry.localName, entry.qName, entry.attrs);
-			m_serializer.writeStream(contents);
+			writeSegment(contents);
 			m_serializer.endElement(uri, localName, qName);
 		}
 
 		// Track block nesting level
-		boolean onlyInline = isOnlyInline(localName);
 		StackEntry currentPWrapper = peek(m_pStack);
-		if (currentPWrapper != null && !onlyInline) {
+		if (currentPWrapper != null && (flags & ElementFlags.INLINE) == 0) {
 			leaveBlock(localName);
 		}
 	}
 
+	/**
+	 * Start the contents of a body parsed as a fragment, for which the
+	 * parser sends no events for the body itself. The contents are
+	 * p-wrapped as they would be in the body, but no body tags are written.
+	 */
+	public void startBodyFragment() throws SAXException {
+		StackEntry entry = new StackEntry("", "body", "body",
+				new AttributesImpl(), m_buffer.getCurrent());
+		entry.passThrough = true;
+		m_stack.add(entry);
+	}
+
+	/**
+	 * Finish the contents of a body started by startBodyFragment(), and
+	 * flush the output
+	 */
+	public void endBodyFragment() throws SAXException {
+		StackEntry entry = peek(m_stack);
+		if (entry != null && entry.isPWrapper) {
+			writePWrapper(entry, popAndGetContents());
+		}
+		pop(m_stack);
+		endDocument();
+	}
+
 	public void startDocument() throws SAXException {
 	}
 
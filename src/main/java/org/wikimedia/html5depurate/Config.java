@@ -4,6 +4,81 @@ class Config {
 	public Config() {}
 
 	int maxPostSize;
+	int maxBatchPartSize;
 	String host;
 	int port;
+	int depurateThreads;
+	int depurateQueueSize;
+	int retryAfter;
+	long cacheSize;
+	boolean pushParsing;
+	int compressionLevel;
+	int compressionThreshold;
+	boolean threadPerRequest;
+	int maxRequestThreads;
+
+	// Memory
+	long memoryBudget;
+	int memoryBudgetWait;
+	int heapThreshold;
+	int largeRequestSize;
+	long bufferPoolSize;
+	boolean directBuffers;
+
+	// Limits on each depuration
+	int maxDepurateTime;
+	int maxDepth;
+	long maxOutputSize;
+
+	// Transport
+	int selectorThreads;
+	int workerThreads;
+	int keepAliveTimeout;
+	int maxKeepAliveRequests;
+	boolean tcpNoDelay;
+	int socketReceiveBuffer;
+	int socketSendBuffer;
+	int maxHeaderSize;
+
+	/**
+	 * Get the values in the configuration file format
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "host", host);
+		line(sb, "port", port);
+		line(sb, "maxPostSize", maxPostSize);
+		line(sb, "maxBatchPartSize", maxBatchPartSize);
+		line(sb, "depurateThreads", depurateThreads);
+		line(sb, "depurateQueueSize", depurateQueueSize);
+		line(sb, "retryAfter", retryAfter);
+		line(sb, "cacheSize", cacheSize);
+		line(sb, "pushParsing", pushParsing);
+		line(sb, "compressionLevel", compressionLevel);
+		line(sb, "compressionThreshold", compressionThreshold);
+		line(sb, "threadPerRequest", threadPerRequest);
+		line(sb, "maxRequestThreads", maxRequestThreads);
+		line(sb, "memoryBudget", memoryBudget);
+		line(sb, "memoryBudgetWait", memoryBudgetWait);
+		line(sb, "heapThreshold", heapThreshold);
+		line(sb, "largeRequestSize", largeRequestSize);
+		line(sb, "bufferPoolSize", bufferPoolSize);
+		line(sb, "directBuffers", directBuffers);
+		line(sb, "maxDepurateTime", maxDepurateTime);
+		line(sb, "maxDepth", maxDepth);
+		line(sb, "maxOutputSize", maxOutputSize);
+		line(sb, "selectorThreads", selectorThreads);
+		line(sb, "workerThreads", workerThreads);
+		line(sb, "keepAliveTimeout", keepAliveTimeout);
+		line(sb, "maxKeepAliveRequests", maxKeepAliveRequests);
+		line(sb, "tcpNoDelay", tcpNoDelay);
+		line(sb, "socketReceiveBuffer", socketReceiveBuffer);
+		line(sb, "socketSendBuffer", socketSendBuffer);
+		line(sb, "maxHeaderSize", maxHeaderSize);
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, Object value) {
+		sb.append(name).append(" = ").append(value).append('\n');
+	}
 }
@@ -0,0 +1,127 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.ParsingResult;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.memory.Buffers;
+
+/**
+ * Makes the HTTP codec decode request bodies sent with a Content-Encoding
+ * of gzip or deflate, before they reach DepurateHandler. The handlers then
+ * see the decoded body as it is decompressed, whether it is raw or
+ * multipart, and apply the POST size limit to the decoded size.
+ *
+ * Decoding stops as soon as a body has decoded to more than the POST size
+ * limit, even part way through a chunk, and the rest of it is discarded
+ * without being decompressed, so a small body can't be made to expand
+ * without limit. The decoded bytes are also charged to the memory budget,
+ * once one is set, as they are produced.
+ */
+class ContentDecodingAddOn implements AddOn {
+	private final DepurateMetrics m_metrics;
+	private volatile long m_maxSize;
+	private volatile MemoryBudget m_budget;
+
+	ContentDecodingAddOn(DepurateMetrics metrics, long maxSize) {
+		m_metrics = metrics;
+		m_maxSize = maxSize;
+	}
+
+	/**
+	 * Change the size limit, for bodies which start being decoded
+	 * afterwards as well as for those being decoded now
+	 */
+	public void setMaxSize(long maxSize) {
+		m_maxSize = maxSize;
+	}
+
+	/**
+	 * Set the budget which decoded bodies are charged to
+	 */
+	public void setMemoryBudget(MemoryBudget budget) {
+		m_budget = budget;
+	}
+
+	public void setup(NetworkListener listener, FilterChainBuilder builder) {
+		int index = builder.indexOfType(HttpServerFilter.class);
+		if (index == -1) {
+			throw new IllegalStateException("No HttpServerFilter in the filter chain");
+		}
+		HttpServerFilter filter = (HttpServerFilter)builder.get(index);
+		filter.addContentEncoding(new LimitedEncoding(
+					new DeflateContentEncoding(true)));
+		filter.addContentEncoding(new LimitedEncoding(
+					new DeflateContentEncoding(false)));
+	}
+
+	/**
+	 * Counts the bytes decoded by another encoding, and stops decoding as
+	 * soon as the limit is passed
+	 */
+	private class LimitedEncoding implements ContentEncoding {
+		private final DeflateContentEncoding m_encoding;
+		private final Attribute<Long> m_decodedSize;
+
+		LimitedEncoding(DeflateContentEncoding encoding) {
+			m_encoding = encoding;
+			m_decodedSize = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(
+					ContentDecodingAddOn.class.getName() + "." +
+					encoding.getName() + ".size");
+		}
+
+		public String getName() {
+			return m_encoding.getName();
+		}
+
+		public String[] getAliases() {
+			return m_encoding.getAliases();
+		}
+
+		public boolean wantDecode(HttpHeader header) {
+			return m_encoding.wantDecode(header);
+		}
+
+		public boolean wantEncode(HttpHeader header) {
+			return false;
+		}
+
+		// Grizzly's interface has a raw Connection parameter
+		@SuppressWarnings("rawtypes")
+		public ParsingResult decode(Connection connection, HttpContent content) {
+			HttpHeader header = content.getHttpHeader();
+			Long size = m_decodedSize.get(header);
+			long decodedSize = size == null ? 0 : size.longValue();
+			Buffer input = content.getContent();
+			int inputSize = input.remaining();
+			if (decodedSize > m_maxSize) {
+				input.tryDispose();
+				return ParsingResult.create(HttpContent.create(header,
+							content.isLast(), Buffers.EMPTY_BUFFER), null);
+			}
+
+			ParsingResult result = m_encoding.decode(connection, content,
+					m_maxSize - decodedSize, m_budget);
+			HttpContent decoded = result.getHttpContent();
+			if (decoded != null) {
+				int outputSize = decoded.getContent().remaining();
+				m_decodedSize.set(header, Long.valueOf(decodedSize + outputSize));
+				m_metrics.addDecodedRequestBytes(inputSize, outputSize);
+			}
+			return result;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public HttpContent encode(Connection connection, HttpContent content) {
+			return content;
+		}
+	}
+}
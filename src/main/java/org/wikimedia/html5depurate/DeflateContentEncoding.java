@@ -0,0 +1,481 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.CloseType;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.ParsingResult;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.CompositeBuffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes request bodies sent with "Content-Encoding: deflate" or gzip.
+ * Grizzly doesn't support deflate itself, and its gzip decoder inflates
+ * the whole of each chunk it is given, so neither could be stopped part
+ * way through a chunk which expands to far more than the size limit.
+ *
+ * For deflate, both the zlib format, which is what the HTTP specification
+ * calls for, and raw deflate data, which some clients send instead, are
+ * accepted. For gzip, the members' headers are skipped and their trailers
+ * checked, around the same raw deflate data.
+ *
+ * Each chunk is inflated into fixed-size buffers from the connection's
+ * memory manager, which are passed on together as one composite buffer,
+ * so that a chunk which inflates to a lot doesn't need one large array.
+ * The inflated bytes are charged to the request's memory reservation as
+ * they are produced, and decoding stops if they don't fit.
+ *
+ * This is only for decoding; responses are compressed by ResponseCompressor.
+ */
+class DeflateContentEncoding implements ContentEncoding {
+	private static final Attribute<State> STATE =
+		Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(
+				DeflateContentEncoding.class.getName() + ".state");
+
+	/** The size of each buffer the output is inflated into */
+	static final int SLICE_SIZE = 8192;
+
+	// The parts of the input, in order
+	private static final int HEADER = 0;
+	private static final int EXTRA_LENGTH = 1;
+	private static final int EXTRA = 2;
+	private static final int NAME = 3;
+	private static final int COMMENT = 4;
+	private static final int HEADER_CRC = 5;
+	private static final int DATA = 6;
+	private static final int TRAILER = 7;
+	private static final int END = 8;
+
+	// gzip header flags
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final boolean m_gzip;
+
+	DeflateContentEncoding() {
+		this(false);
+	}
+
+	/**
+	 * @param gzip Whether to decode gzip rather than deflate
+	 */
+	DeflateContentEncoding(boolean gzip) {
+		m_gzip = gzip;
+	}
+
+	public String getName() {
+		return m_gzip ? "gzip" : "deflate";
+	}
+
+	public String[] getAliases() {
+		if (m_gzip) {
+			return new String[] {"gzip", "x-gzip"};
+		} else {
+			return new String[] {"deflate"};
+		}
+	}
+
+	public boolean wantDecode(HttpHeader header) {
+		return true;
+	}
+
+	public boolean wantEncode(HttpHeader header) {
+		return false;
+	}
+
+	// Grizzly's interface has a raw Connection parameter
+	@SuppressWarnings("rawtypes")
+	public ParsingResult decode(Connection connection, HttpContent content) {
+		return decode(connection, content, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Decode a chunk of the body, stopping once it has decoded to more than
+	 * the given number of bytes, or once the output doesn't fit in the
+	 * memory budget, if one is given. The rest of the body is then
+	 * discarded without being decoded.
+	 */
+	public ParsingResult decode(Connection<?> connection, HttpContent content,
+			long limit, MemoryBudget budget) {
+		HttpHeader header = content.getHttpHeader();
+		Buffer input = content.getContent();
+		State state = STATE.get(header);
+		if (state == null) {
+			if (!input.hasRemaining()) {
+				return ParsingResult.create(content, null);
+			}
+			state = new State(m_gzip, m_gzip || !isZlibHeader(input),
+					budget == null ? null : budget.open(header));
+			STATE.set(header, state);
+			connection.addCloseListener(state);
+		}
+
+		// Heap buffers are inflated in place, others through a copy
+		byte[] in;
+		int pos;
+		int end;
+		if (input.hasArray()) {
+			in = input.array();
+			pos = input.arrayOffset() + input.position();
+			end = pos + input.remaining();
+		} else {
+			end = input.remaining();
+			in = state.getInputArray(end);
+			pos = 0;
+			input.get(in, 0, end);
+		}
+
+		MemoryManager<?> memoryManager = connection.getMemoryManager();
+		Buffer output = null;
+		Buffer slice = null;
+		long length = 0;
+		try {
+			synchronized (state) {
+				while (pos < end && !state.m_stopped) {
+					if (state.m_step != DATA) {
+						pos = state.readFraming(in, pos, end);
+						continue;
+					}
+					Inflater inflater = state.m_inflater;
+					inflater.setInput(in, pos, end - pos);
+					while (!inflater.finished() && !inflater.needsInput()) {
+						if (length > limit) {
+							state.end();
+							break;
+						}
+						if (slice == null || !slice.hasRemaining()) {
+							output = append(memoryManager, output, slice);
+							slice = memoryManager.allocate(SLICE_SIZE);
+						}
+						int n = state.inflate(slice);
+						length += n;
+						if (!state.charge(n)) {
+							// The handler sees the reservation's failure
+							// when it is given this output
+							state.end();
+							break;
+						}
+					}
+					if (state.m_stopped) {
+						break;
+					} else if (inflater.finished()) {
+						pos = end - inflater.getRemaining();
+						state.m_step = m_gzip ? TRAILER : END;
+					} else {
+						pos = end;
+					}
+				}
+			}
+			output = append(memoryManager, output, slice);
+		} catch (DataFormatException e) {
+			dispose(output, slice);
+			release(connection, header, state);
+			throw new IllegalStateException("Invalid deflate data: " +
+					e.getMessage());
+		} catch (IllegalStateException e) {
+			dispose(output, slice);
+			release(connection, header, state);
+			throw e;
+		} finally {
+			input.tryDispose();
+		}
+		if (content.isLast()) {
+			release(connection, header, state);
+		}
+
+		if (output == null) {
+			output = Buffers.EMPTY_BUFFER;
+		}
+		return ParsingResult.create(
+				HttpContent.create(header, content.isLast(), output), null);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public HttpContent encode(Connection connection, HttpContent content) {
+		return content;
+	}
+
+	/**
+	 * Add a slice which has been inflated into to the output so far, and
+	 * return the output
+	 */
+	private static Buffer append(MemoryManager<?> memoryManager,
+			Buffer output, Buffer slice) {
+		if (slice == null) {
+			return output;
+		}
+		slice.flip();
+		if (!slice.hasRemaining()) {
+			slice.tryDispose();
+			return output;
+		} else if (output == null) {
+			return slice;
+		} else if (output.isComposite()) {
+			((CompositeBuffer)output).append(slice);
+			return output;
+		}
+		CompositeBuffer composite = CompositeBuffer.newBuffer(memoryManager);
+		composite.allowBufferDispose(true);
+		composite.allowInternalBuffersDispose(true);
+		composite.append(output);
+		composite.append(slice);
+		return composite;
+	}
+
+	private static void dispose(Buffer output, Buffer slice) {
+		if (output != null) {
+			output.tryDispose();
+		}
+		if (slice != null) {
+			slice.tryDispose();
+		}
+	}
+
+	/**
+	 * Whether a buffer starts with a zlib header: compression method 8 and
+	 * a valid check value
+	 */
+	private static boolean isZlibHeader(Buffer buffer) {
+		int pos = buffer.position();
+		int cmf = buffer.get(pos) & 0xff;
+		if ((cmf & 0x0f) != 8) {
+			return false;
+		}
+		if (buffer.remaining() < 2) {
+			// Can't check any further, but this is the likely format
+			return true;
+		}
+		int flg = buffer.get(pos + 1) & 0xff;
+		return (cmf * 256 + flg) % 31 == 0;
+	}
+
+	private static void release(Connection<?> connection, HttpHeader header,
+			State state) {
+		state.end();
+		connection.removeCloseListener(state);
+		STATE.remove(header);
+	}
+
+	/**
+	 * The progress of decoding one body. The inflater is ended, and the
+	 * reservation given up unless a handler has taken it over, when the body
+	 * has been decoded or the connection is closed part way through.
+	 */
+	private static class State implements CloseListener<Closeable, CloseType> {
+		final Inflater m_inflater;
+		final boolean m_gzip;
+		int m_step;
+		/** Whether the limit was reached, so that the rest is discarded */
+		boolean m_stopped = false;
+		private boolean m_ended = false;
+		private final MemoryBudget.Reservation m_reservation;
+		/** The bytes inflated so far */
+		private long m_total = 0;
+		/** For input which isn't in a heap buffer */
+		private byte[] m_input;
+		/** For output to buffers which aren't on the heap */
+		private byte[] m_output;
+
+		// For gzip only
+		final CRC32 m_crc = new CRC32();
+		long m_memberSize = 0;
+		int m_flags;
+		/** The bytes of the fixed-size header or trailer read so far */
+		final byte[] m_framing = new byte[10];
+		int m_count = 0;
+		/** The bytes of the extra field or header CRC left to skip */
+		int m_skip = 0;
+
+		State(boolean gzip, boolean nowrap,
+				MemoryBudget.Reservation reservation) {
+			m_inflater = new Inflater(nowrap);
+			m_reservation = reservation;
+			m_gzip = gzip;
+			m_step = gzip ? HEADER : DATA;
+		}
+
+		public void onClosed(Closeable closeable, CloseType type) {
+			end();
+		}
+
+		synchronized void end() {
+			if (!m_ended) {
+				m_ended = true;
+				m_stopped = true;
+				m_inflater.end();
+				if (m_reservation != null) {
+					m_reservation.abandon();
+				}
+			}
+		}
+
+		/**
+		 * Add bytes which have been inflated to the reservation, returning
+		 * false if they don't fit
+		 */
+		boolean charge(int bytes) {
+			m_total += bytes;
+			return m_reservation == null || m_reservation.reserveTotal(m_total);
+		}
+
+		byte[] getInputArray(int size) {
+			if (m_input == null || m_input.length < size) {
+				m_input = new byte[Math.max(size, SLICE_SIZE)];
+			}
+			return m_input;
+		}
+
+		/**
+		 * Inflate into the space left in a slice, and return the number of
+		 * bytes inflated
+		 */
+		int inflate(Buffer slice) throws DataFormatException {
+			if (m_ended) {
+				throw new IllegalStateException("The connection was closed");
+			}
+			byte[] b;
+			int off;
+			int n;
+			if (slice.hasArray()) {
+				b = slice.array();
+				off = slice.arrayOffset() + slice.position();
+				n = m_inflater.inflate(b, off, slice.remaining());
+				slice.position(slice.position() + n);
+			} else {
+				if (m_output == null) {
+					m_output = new byte[SLICE_SIZE];
+				}
+				b = m_output;
+				off = 0;
+				n = m_inflater.inflate(b, 0, Math.min(b.length, slice.remaining()));
+				slice.put(b, 0, n);
+			}
+			if (n == 0 && m_inflater.needsDictionary()) {
+				throw new IllegalStateException(
+						"Deflate data requires a preset dictionary");
+			}
+			if (m_gzip) {
+				m_crc.update(b, off, n);
+				m_memberSize += n;
+			}
+			return n;
+		}
+
+		/**
+		 * Read gzip header or trailer bytes, or skip what follows the end of
+		 * a deflate stream, and return the position after them
+		 */
+		int readFraming(byte[] in, int pos, int end) {
+			if (m_step == END) {
+				return end;
+			}
+			while (pos < end && m_step != DATA) {
+				int b = in[pos++] & 0xff;
+				switch (m_step) {
+				case HEADER:
+					m_framing[m_count++] = (byte)b;
+					if (m_count == 10) {
+						if ((m_framing[0] & 0xff) != 0x1f
+								|| (m_framing[1] & 0xff) != 0x8b
+								|| m_framing[2] != 8) {
+							throw new IllegalStateException("Invalid gzip header");
+						}
+						m_flags = m_framing[3];
+						nextField(EXTRA_LENGTH);
+					}
+					break;
+				case EXTRA_LENGTH:
+					m_framing[m_count++] = (byte)b;
+					if (m_count == 2) {
+						m_skip = (m_framing[0] & 0xff) | (m_framing[1] & 0xff) << 8;
+						m_step = EXTRA;
+						if (m_skip == 0) {
+							nextField(NAME);
+						}
+					}
+					break;
+				case EXTRA:
+					if (--m_skip == 0) {
+						nextField(NAME);
+					}
+					break;
+				case NAME:
+					if (b == 0) {
+						nextField(COMMENT);
+					}
+					break;
+				case COMMENT:
+					if (b == 0) {
+						nextField(HEADER_CRC);
+					}
+					break;
+				case HEADER_CRC:
+					if (--m_skip == 0) {
+						nextField(DATA);
+					}
+					break;
+				case TRAILER:
+					m_framing[m_count++] = (byte)b;
+					if (m_count == 8) {
+						checkTrailer();
+						// Another member may follow
+						m_step = HEADER;
+						m_count = 0;
+					}
+					break;
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * Move on to the first header field from the given one which the
+		 * flags say is present, or to the data
+		 */
+		private void nextField(int step) {
+			m_count = 0;
+			if (step <= EXTRA_LENGTH && (m_flags & FEXTRA) != 0) {
+				m_step = EXTRA_LENGTH;
+			} else if (step <= NAME && (m_flags & FNAME) != 0) {
+				m_step = NAME;
+			} else if (step <= COMMENT && (m_flags & FCOMMENT) != 0) {
+				m_step = COMMENT;
+			} else if (step <= HEADER_CRC && (m_flags & FHCRC) != 0) {
+				m_step = HEADER_CRC;
+				m_skip = 2;
+			} else {
+				m_step = DATA;
+				m_inflater.reset();
+				m_crc.reset();
+				m_memberSize = 0;
+			}
+		}
+
+		private void checkTrailer() {
+			if (readInt(0) != (int)m_crc.getValue()
+					|| readInt(4) != (int)m_memberSize) {
+				throw new IllegalStateException("Invalid gzip trailer");
+			}
+		}
+
+		private int readInt(int offset) {
+			return (m_framing[offset] & 0xff)
+				| (m_framing[offset + 1] & 0xff) << 8
+				| (m_framing[offset + 2] & 0xff) << 16
+				| (m_framing[offset + 3] & 0xff) << 24;
+		}
+	}
+}
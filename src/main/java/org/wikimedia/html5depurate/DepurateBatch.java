@@ -0,0 +1,125 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parts of a batch request and their results. Parts are handed out to
+ * workers one at a time, and once the last worker is done, the results are
+ * written as a multipart/mixed response in the order of the input parts.
+ *
+ * Each part of the response has the name of the input part in its
+ * Content-Disposition, and an X-Depurate-Status header with the status
+ * that a single request would have got. Failed parts have a plain text
+ * error message as their body, and may have an X-Depurate-Error code.
+ */
+class DepurateBatch {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final String[] m_names;
+	private final int[] m_statuses;
+	private final byte[][] m_bodies;
+	private final String[] m_errorCodes;
+	private final String m_boundary;
+
+	/** The index of the next part to hand out */
+	private final AtomicInteger m_next = new AtomicInteger();
+
+	/**
+	 * The number of workers which have not yet finished, plus one for the
+	 * dispatcher until it has submitted them all
+	 */
+	private final AtomicInteger m_workers = new AtomicInteger(1);
+
+	DepurateBatch(Collection<String> names) {
+		m_names = names.toArray(new String[names.size()]);
+		m_statuses = new int[m_names.length];
+		m_bodies = new byte[m_names.length][];
+		m_errorCodes = new String[m_names.length];
+		m_boundary = "depurate-" + UUID.randomUUID().toString();
+	}
+
+	public int size() {
+		return m_names.length;
+	}
+
+	public String getName(int i) {
+		return m_names[i];
+	}
+
+	/**
+	 * Get the index of the next part which needs depurating, or -1 if all
+	 * parts have been handed out
+	 */
+	public int nextPart() {
+		int i = m_next.getAndIncrement();
+		return i < m_names.length ? i : -1;
+	}
+
+	public void setOutput(int i, byte[] output) {
+		m_statuses[i] = 200;
+		m_bodies[i] = output;
+	}
+
+	public void setError(int i, int status, String message) {
+		m_statuses[i] = status;
+		m_bodies[i] = message.getBytes(UTF_8);
+	}
+
+	/**
+	 * Set an error with a code which tells the client what went wrong
+	 */
+	public void setError(int i, int status, String code, String message) {
+		setError(i, status, message);
+		m_errorCodes[i] = code;
+	}
+
+	public void addWorker() {
+		m_workers.incrementAndGet();
+	}
+
+	/**
+	 * Record that a worker, or the dispatcher, is done. Returns true if it
+	 * was the last one, in which case the caller should send the response.
+	 */
+	public boolean releaseWorker() {
+		return m_workers.decrementAndGet() == 0;
+	}
+
+	public String getContentType() {
+		return "multipart/mixed; boundary=" + m_boundary;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		for (int i = 0; i < m_names.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("--").append(m_boundary).append("\r\n");
+			sb.append("Content-Disposition: form-data; name=\"")
+				.append(quote(m_names[i])).append("\"\r\n");
+			if (m_statuses[i] == 200) {
+				sb.append("Content-Type: text/html;charset=UTF-8\r\n");
+			} else {
+				sb.append("Content-Type: text/plain;charset=UTF-8\r\n");
+			}
+			sb.append("Content-Length: ").append(m_bodies[i].length).append("\r\n");
+			sb.append("X-Depurate-Status: ").append(m_statuses[i]).append("\r\n");
+			if (m_errorCodes[i] != null) {
+				sb.append("X-Depurate-Error: ").append(m_errorCodes[i]).append("\r\n");
+			}
+			sb.append("\r\n");
+			out.write(sb.toString().getBytes(UTF_8));
+			out.write(m_bodies[i]);
+			out.write("\r\n".getBytes(UTF_8));
+		}
+		out.write(("--" + m_boundary + "--\r\n").getBytes(UTF_8));
+	}
+
+	private static String quote(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"")
+			.replace("\r", "").replace("\n", "");
+	}
+}
@@ -0,0 +1,200 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache of depurated output, keyed by a hash of the input and the mode.
+ * The same key is used as the ETag of the response.
+ *
+ * The cache is bounded by the total size of the stored output, and the
+ * least recently used entries are evicted first. When several requests for
+ * the same input arrive at once, only the first one runs the depurator and
+ * the others wait for its result.
+ */
+class DepurateCache {
+	/**
+	 * Part of every key. Change this when a change to the depurator alters
+	 * its output, so that clients don't keep output from an older version
+	 * on the strength of its ETag.
+	 */
+	private static final String OUTPUT_VERSION = "1";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long m_maxSize;
+
+	/** Total size of the stored output */
+	private long m_size = 0;
+
+	/** Stored output, in order of last access */
+	private final LinkedHashMap<String, byte[]> m_entries =
+		new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	/** Depurations in progress, which other requests may wait for */
+	private final HashMap<String, FutureTask<byte[]>> m_inFlight =
+		new HashMap<String, FutureTask<byte[]>>();
+
+	private long m_hits = 0;
+	private long m_misses = 0;
+	private long m_collapsed = 0;
+	private long m_evictions = 0;
+
+	DepurateCache(long maxSize) {
+		m_maxSize = maxSize;
+	}
+
+	/**
+	 * Get the cache key for some input. It is a hex-encoded SHA-256 hash, so
+	 * it can be used as an ETag as it is.
+	 */
+	public static String getKey(InputChunks input, boolean compat,
+			boolean fragment) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+		digest.update((byte)(compat ? 'c' : 'd'));
+		// Only fragments are marked, so that the ETags of documents stay valid
+		if (fragment) {
+			digest.update((byte)'f');
+		}
+		for (int i = 0; i < OUTPUT_VERSION.length(); i++) {
+			digest.update((byte)OUTPUT_VERSION.charAt(i));
+		}
+		digest.update((byte)0);
+		InputStream stream = input.getInputStream();
+		byte[] buffer = BufferPool.get().take(BufferPool.MIN_SIZE);
+		try {
+			int n;
+			while ((n = stream.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			BufferPool.get().give(buffer);
+		}
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Get the output for a key, running the depuration if it is neither
+	 * stored nor already in progress. An exception thrown by the depuration
+	 * is thrown to every caller waiting for it.
+	 */
+	public byte[] get(String key, Callable<byte[]> depuration)
+			throws Exception {
+		FutureTask<byte[]> task;
+		boolean owner = false;
+		synchronized (this) {
+			byte[] output = m_entries.get(key);
+			if (output != null) {
+				m_hits++;
+				return output;
+			}
+			task = m_inFlight.get(key);
+			if (task == null) {
+				task = new FutureTask<byte[]>(depuration);
+				m_inFlight.put(key, task);
+				owner = true;
+				m_misses++;
+			} else {
+				m_collapsed++;
+			}
+		}
+
+		if (owner) {
+			task.run();
+			synchronized (this) {
+				m_inFlight.remove(key);
+				if (!task.isCancelled()) {
+					try {
+						store(key, task.get());
+					} catch (ExecutionException e) {
+						// Failures are not cached
+					}
+				}
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	private void store(String key, byte[] output) {
+		if (output.length > m_maxSize) {
+			return;
+		}
+		byte[] old = m_entries.put(key, output);
+		if (old != null) {
+			m_size -= old.length;
+		}
+		m_size += output.length;
+		Iterator<Map.Entry<String, byte[]>> iter =
+			m_entries.entrySet().iterator();
+		while (m_size > m_maxSize && iter.hasNext()) {
+			Map.Entry<String, byte[]> entry = iter.next();
+			m_size -= entry.getValue().length;
+			iter.remove();
+			m_evictions++;
+		}
+	}
+
+	public synchronized long getHitCount() {
+		return m_hits;
+	}
+
+	public synchronized long getMissCount() {
+		return m_misses;
+	}
+
+	/**
+	 * Get the number of requests which waited for another request's
+	 * depuration of the same input
+	 */
+	public synchronized long getCollapsedCount() {
+		return m_collapsed;
+	}
+
+	public synchronized long getEvictionCount() {
+		return m_evictions;
+	}
+
+	public synchronized int getEntryCount() {
+		return m_entries.size();
+	}
+
+	/**
+	 * Get the total size of the stored output, in bytes
+	 */
+	public synchronized long getSize() {
+		return m_size;
+	}
+}
@@ -0,0 +1,250 @@
+package org.wikimedia.html5depurate;
+
+import nu.validator.htmlparser.common.XmlViolationPolicy;
+import nu.validator.htmlparser.sax.HtmlParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * The parser and serializers needed to depurate a document, kept so that
+ * they can be used for many documents in turn. The tokenizer and tree
+ * builder in particular allocate a fair amount of internal state, which is
+ * reset by the parser at the start of each parse rather than thrown away.
+ *
+ * A context also keeps a PushParser which isn't in use. A push parse
+ * outlives the task which starts it, so the parser is taken from the
+ * context for the whole parse and given back to whichever context is at
+ * hand when it is done.
+ *
+ * A context is not thread-safe; Depurator keeps one per thread, and a pool
+ * of them for virtual threads.
+ */
+class DepurateContext {
+	private final HtmlParser m_parser;
+	private final DepurateSerializer m_serializer;
+	private final CompatibilitySerializer m_compatSerializer;
+	private PushParser m_pushParser;
+
+	/** Whether a depuration is in progress with this context */
+	private boolean m_busy = false;
+
+	DepurateContext() {
+		m_parser = new HtmlParser(XmlViolationPolicy.ALLOW);
+		m_serializer = new DepurateSerializer(null);
+		m_compatSerializer = new CompatibilitySerializer(null);
+	}
+
+	public boolean isBusy() {
+		return m_busy;
+	}
+
+	/**
+	 * Depurate the input, writing the output to the sink. If a profile is
+	 * given, it is filled in with timings and counts for the document.
+	 *
+	 * With fragment set, the input is parsed as the contents of a body
+	 * element, and only those contents are written, without a doctype or
+	 * the rest of the document skeleton.
+	 *
+	 * If limits are given and the depuration exceeds them, it is stopped
+	 * with a DepurateLimits.ExceededException.
+	 */
+	public void depurate(InputSource source, OutputStream sink, boolean compat,
+			boolean fragment, DepurateProfile profile, DepurateLimits limits)
+		throws SAXException, IOException
+	{
+		ContentHandler handler;
+		LexicalHandler lexicalHandler;
+		if (compat) {
+			m_compatSerializer.reset(sink);
+			m_compatSerializer.setLimits(limits);
+			handler = m_compatSerializer;
+			lexicalHandler = m_compatSerializer;
+		} else {
+			m_serializer.reset(sink);
+			m_serializer.setLimits(limits);
+			handler = m_serializer;
+			lexicalHandler = m_serializer;
+		}
+		if (limits != null) {
+			source = limits.wrap(source);
+		}
+		if (profile != null) {
+			profile.setHandler(handler, lexicalHandler);
+			handler = profile;
+			lexicalHandler = profile;
+			profile.start(System.nanoTime());
+		}
+		m_busy = true;
+		try {
+			m_parser.setContentHandler(handler);
+			m_parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+					lexicalHandler);
+			if (!fragment) {
+				m_parser.parse(source);
+			} else {
+				// No document events are sent for a fragment, so the
+				// serializer is told where it starts and ends
+				if (compat) {
+					m_compatSerializer.startBodyFragment();
+				}
+				m_parser.parseFragment(source, "body");
+				if (compat) {
+					m_compatSerializer.endBodyFragment();
+				} else {
+					m_serializer.endDocument();
+				}
+			}
+		} catch (SAXException e) {
+			DepurateLimits.throwIfExceeded(limits);
+			throw e;
+		} catch (IOException e) {
+			DepurateLimits.throwIfExceeded(limits);
+			throw e;
+		} finally {
+			reset();
+		}
+		if (profile != null) {
+			profile.end();
+		}
+	}
+
+	/**
+	 * Finish a push parse and write the output to the sink, with a profile
+	 * and limits as for an InputSource. The profile's start time should
+	 * already have been set.
+	 */
+	public void depurate(PushParser parser, OutputStream sink, boolean compat,
+			DepurateProfile profile, DepurateLimits limits)
+		throws SAXException
+	{
+		ContentHandler handler;
+		LexicalHandler lexicalHandler;
+		if (compat) {
+			m_compatSerializer.reset(sink);
+			m_compatSerializer.setLimits(limits);
+			handler = m_compatSerializer;
+			lexicalHandler = m_compatSerializer;
+		} else {
+			m_serializer.reset(sink);
+			m_serializer.setLimits(limits);
+			handler = m_serializer;
+			lexicalHandler = m_serializer;
+		}
+		if (profile != null) {
+			profile.setHandler(handler, lexicalHandler);
+			handler = profile;
+			lexicalHandler = profile;
+		}
+		m_busy = true;
+		try {
+			if (!parser.isFragment()) {
+				parser.finish(handler, lexicalHandler);
+			} else if (compat) {
+				m_compatSerializer.startBodyFragment();
+				parser.finish(handler, lexicalHandler);
+				m_compatSerializer.endBodyFragment();
+			} else {
+				parser.finish(handler, lexicalHandler);
+				m_serializer.endDocument();
+			}
+		} catch (SAXException e) {
+			DepurateLimits.throwIfExceeded(limits);
+			throw e;
+		} finally {
+			reset();
+		}
+		if (profile != null) {
+			profile.end();
+		}
+	}
+
+	/**
+	 * Get a push parser ready for a new document, reusing the one kept by
+	 * this context if there is one
+	 */
+	public PushParser takePushParser(boolean fragment) throws SAXException {
+		PushParser parser = m_pushParser;
+		if (parser == null) {
+			return new PushParser(fragment);
+		}
+		m_pushParser = null;
+		parser.reset(fragment);
+		return parser;
+	}
+
+	/**
+	 * Keep a push parser which is no longer needed for the next push parse,
+	 * unless this context already has one
+	 */
+	public void givePushParser(PushParser parser) {
+		try {
+			parser.stop();
+		} catch (SAXException e) {
+			// Don't keep a parser which couldn't be stopped cleanly
+			return;
+		}
+		if (m_pushParser == null) {
+			m_pushParser = parser;
+		}
+	}
+
+	/**
+	 * Write the document for input with no markup, which is the skeleton
+	 * around the text, p-wrapped in compatibility mode unless it is blank.
+	 * This is what the parser and serializers would produce for it. A
+	 * fragment is the text alone.
+	 */
+	public void depurate(PlainText text, OutputStream sink, boolean compat,
+			boolean fragment, DepurateLimits limits)
+		throws SAXException
+	{
+		m_busy = true;
+		try {
+			m_serializer.reset(sink);
+			m_serializer.setLimits(limits);
+			if (!fragment) {
+				if (!compat) {
+					m_serializer.startDocument();
+				}
+				m_serializer.write("<html><head></head><body>");
+			}
+			boolean wrap = compat && !text.isBlank();
+			if (wrap) {
+				m_serializer.write("<p>");
+			}
+			text.writeTo(m_serializer, fragment);
+			if (wrap) {
+				m_serializer.write("</p>");
+			}
+			if (!fragment) {
+				m_serializer.write("</body></html>");
+			}
+			m_serializer.endDocument();
+		} catch (SAXException e) {
+			DepurateLimits.throwIfExceeded(limits);
+			throw e;
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Return the context to its initial state, whether or not the last
+	 * depuration completed. References to the sink are dropped, and buffers
+	 * which grew to fit an unusually large document are shrunk again.
+	 */
+	public void reset() throws SAXException {
+		m_busy = false;
+		m_parser.setContentHandler(null);
+		m_parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+				null);
+		m_serializer.reset(null);
+		m_compatSerializer.reset(null);
+	}
+}
@@ -10,33 +10,99 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
 import org.apache.commons.daemon.DaemonInitException;
+import org.apache.commons.daemon.DaemonUserSignal;
 
+import org.glassfish.grizzly.http.KeepAlive;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.NetworkListener;
 import org.glassfish.grizzly.http.server.ServerConfiguration;
+import org.glassfish.grizzly.memory.PooledMemoryManager;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.GrizzlyExecutorService;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 
 import java.io.FileNotFoundException;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 /**
  * Daemon for execution via jsvc
  */
-public class DepurateDaemon implements Daemon {
+public class DepurateDaemon implements Daemon, DaemonUserSignal {
 	HttpServer m_server;
+	NetworkListener m_listener;
+	DepurateExecutor m_executor;
+	DepurateHandler m_handler;
+	ContentDecodingAddOn m_decoding;
 	String[] m_args;
+	String m_configPath;
+	volatile Config m_config;
 	Logger m_logger = Logger.getLogger(this.getClass().getName());
 
 	public static void main(String[] args) throws Exception {
 		DepurateDaemon daemon = new DepurateDaemon();
 		daemon.m_args = args;
 		daemon.start();
+		// jsvc uses SIGHUP to restart the JVM, so this is only done when
+		// running standalone
+		daemon.handleHangup();
 		Thread.currentThread().join();
 	}
 
+	/**
+	 * Reload the configuration on SIGHUP. sun.misc.Signal is looked up by
+	 * reflection so that the build doesn't depend on a proprietary API, and
+	 * a JVM without it just logs a warning.
+	 */
+	private void handleHangup() {
+		try {
+			Class<?> signalClass = Class.forName("sun.misc.Signal");
+			Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+			Object handler = Proxy.newProxyInstance(
+				handlerClass.getClassLoader(),
+				new Class<?>[] {handlerClass},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{
+						if (method.getDeclaringClass() == Object.class) {
+							return objectMethod(proxy, method, args);
+						}
+						reloadQuietly();
+						return null;
+					}
+				});
+			Object signal = signalClass.getConstructor(String.class)
+				.newInstance("HUP");
+			signalClass.getMethod("handle", signalClass, handlerClass)
+				.invoke(null, signal, handler);
+		} catch (Exception e) {
+			m_logger.log(Level.WARNING,
+					"Unable to handle SIGHUP, reload with /admin/reload instead",
+					e);
+		}
+	}
+
+	private static Object objectMethod(Object proxy, Method method,
+			Object[] args)
+	{
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if (name.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else {
+			return "SIGHUP handler";
+		}
+	}
+
 	public void init(DaemonContext context)
 			throws DaemonInitException,Exception
 	{
@@ -53,18 +119,38 @@ public class DepurateDaemon implements Daemon {
 	}
 
 	protected Config loadConfig(String path) {
-		Config config = new Config();
 		Properties properties = new Properties();
 		try {
-			properties.load(new FileInputStream(path));
+			properties = readProperties(path);
 		} catch (FileNotFoundException e) {
 			m_logger.warning("Config file not found: " + path);
 		} catch (IOException e) {
 			m_logger.warning("Error loading config file: " + e.toString());
 		}
+		return parseConfig(properties);
+	}
 
-		double maxPostSize = Double.parseDouble(
-				properties.getProperty("maxPostSize", "100e6"));
+	private static Properties readProperties(String path) throws IOException {
+		Properties properties = new Properties();
+		FileInputStream stream = new FileInputStream(path);
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * Get a configuration from the properties of a configuration file.
+	 *
+	 * @throws IllegalArgumentException If a value is invalid
+	 */
+	protected Config parseConfig(Properties properties) {
+		Config config = new Config();
+		int processors = Runtime.getRuntime().availableProcessors();
+
+		double maxPostSize = getNumber(properties, "maxPostSize", 100e6);
 		if (maxPostSize > Integer.MAX_VALUE) {
 			config.maxPostSize = Integer.MAX_VALUE;
 		} else if (maxPostSize > 0) {
@@ -72,41 +158,332 @@ public class DepurateDaemon implements Daemon {
 		} else {
 			config.maxPostSize = 100000000;
 		}
-		m_logger.info("Max post size: " + config.maxPostSize);
 
-		config.host = properties.getProperty("host", "localhost");
-		config.port = Integer.parseInt(properties.getProperty("port", "4339"));
-		m_logger.info("Binding to " + config.host + ":" + Integer.toString(config.port));
+		double maxBatchPartSize = getNumber(properties, "maxBatchPartSize", 10e6);
+		if (maxBatchPartSize > config.maxPostSize) {
+			config.maxBatchPartSize = config.maxPostSize;
+		} else if (maxBatchPartSize > 0) {
+			config.maxBatchPartSize = (int)maxBatchPartSize;
+		} else {
+			config.maxBatchPartSize = 10000000;
+		}
+
+		config.host = properties.getProperty("host", "localhost").trim();
+		config.port = getInt(properties, "port", 4339, 0, 65535);
+
+		config.depurateThreads = getInt(properties, "depurateThreads",
+				processors, 1, 10000);
+		config.depurateQueueSize = getInt(properties, "depurateQueueSize",
+				100, 0, Integer.MAX_VALUE);
+		config.retryAfter = getInt(properties, "retryAfter", 1, 0,
+				Integer.MAX_VALUE);
+
+		double cacheSize = getNumber(properties, "cacheSize", 0);
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException(
+					"cacheSize must not be negative, got " + cacheSize);
+		}
+		config.cacheSize = (long)cacheSize;
+
+		config.pushParsing = getBoolean(properties, "pushParsing", false);
+
+		config.compressionLevel = getInt(properties, "compressionLevel", 6, 0, 9);
+		config.compressionThreshold = getInt(properties, "compressionThreshold",
+				1024, 0, Integer.MAX_VALUE);
+
+		config.threadPerRequest = getBoolean(properties, "threadPerRequest",
+				false);
+		config.maxRequestThreads = getInt(properties, "maxRequestThreads",
+				10000, 1, Integer.MAX_VALUE);
+
+		config.memoryBudget = getSize(properties, "memoryBudget",
+				Runtime.getRuntime().maxMemory() / 2, Long.MAX_VALUE);
+		config.memoryBudgetWait = getInt(properties, "memoryBudgetWait",
+				100, 0, Integer.MAX_VALUE);
+		config.heapThreshold = getInt(properties, "heapThreshold", 90, 0, 100);
+		config.largeRequestSize = (int)getSize(properties, "largeRequestSize",
+				1000000, Integer.MAX_VALUE);
+		config.bufferPoolSize = getSize(properties, "bufferPoolSize", 64 << 20,
+				Long.MAX_VALUE);
+		config.directBuffers = getBoolean(properties, "directBuffers", false);
+
+		config.maxDepurateTime = getInt(properties, "maxDepurateTime", 10000,
+				0, Integer.MAX_VALUE);
+		config.maxDepth = getInt(properties, "maxDepth", 5000, 0,
+				Integer.MAX_VALUE);
+		config.maxOutputSize = getSize(properties, "maxOutputSize", 100000000,
+				Long.MAX_VALUE);
 
+		// The defaults are the same as Grizzly's
+		config.selectorThreads = getInt(properties, "selectorThreads",
+				processors, 1, 1024);
+		config.workerThreads = getInt(properties, "workerThreads",
+				processors * 2, 1, 10000);
+		config.keepAliveTimeout = getInt(properties, "keepAliveTimeout",
+				30, -1, Integer.MAX_VALUE);
+		config.maxKeepAliveRequests = getInt(properties, "maxKeepAliveRequests",
+				256, -1, Integer.MAX_VALUE);
+		config.tcpNoDelay = getBoolean(properties, "tcpNoDelay", true);
+		config.socketReceiveBuffer = (int)getSize(properties,
+				"socketReceiveBuffer", 0, Integer.MAX_VALUE);
+		config.socketSendBuffer = (int)getSize(properties,
+				"socketSendBuffer", 0, Integer.MAX_VALUE);
+		config.maxHeaderSize = (int)getSize(properties, "maxHeaderSize", 8192,
+				Integer.MAX_VALUE);
+		if (config.maxHeaderSize < 1024) {
+			throw new IllegalArgumentException(
+					"maxHeaderSize must be at least 1024, got " + config.maxHeaderSize);
+		}
 		return config;
 	}
 
+	private static String getValue(Properties properties, String name) {
+		String value = properties.getProperty(name);
+		return value == null ? null : value.trim();
+	}
+
+	private static int getInt(Properties properties, String name,
+			int defaultValue, int min, int max) {
+		String value = getValue(properties, name);
+		if (value == null) {
+			return defaultValue;
+		}
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(
+					name + " must be an integer, got \"" + value + "\"");
+		}
+		if (result < min || result > max) {
+			throw new IllegalArgumentException(name + " must be between " +
+					min + " and " + max + ", got " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * Get a number which may be written in exponent notation, like "10e6"
+	 */
+	private static double getNumber(Properties properties, String name,
+			double defaultValue) {
+		String value = getValue(properties, name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(
+					name + " must be a number, got \"" + value + "\"");
+		}
+	}
+
+	/**
+	 * Get a size in bytes, which may be written in exponent notation
+	 */
+	private static long getSize(Properties properties, String name,
+			long defaultValue, long max) {
+		double size = getNumber(properties, name, defaultValue);
+		if (size < 0 || size > max) {
+			throw new IllegalArgumentException(name + " must be between 0 and " +
+					max + ", got " + getValue(properties, name));
+		}
+		return (long)size;
+	}
+
+	private static boolean getBoolean(Properties properties, String name,
+			boolean defaultValue) {
+		String value = getValue(properties, name);
+		if (value == null) {
+			return defaultValue;
+		} else if (value.equalsIgnoreCase("true")) {
+			return true;
+		} else if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new IllegalArgumentException(
+				name + " must be true or false, got \"" + value + "\"");
+	}
+
+	private void logConfig(String message, Config config) {
+		m_logger.info(message + ":\n" + config.format());
+	}
+
 	public void start() throws Exception {
 		m_logger.info("Starting");
 
 		CommandLine cl = loadCommandLine();
-		String configPath = "/etc/html5depurate/html5depurate.conf";
+		m_configPath = "/etc/html5depurate/html5depurate.conf";
 		if (cl.hasOption("c")) {
-			configPath = cl.getOptionValue("c");
+			m_configPath = cl.getOptionValue("c");
 		}
-		Config config = loadConfig(configPath);
+		Config config = loadConfig(m_configPath);
+		logConfig("Configuration", config);
+
+		m_executor = new DepurateExecutor(config.depurateThreads,
+				config.depurateQueueSize);
+
+		DepurateMetrics metrics = new DepurateMetrics(m_executor);
+		BufferPool.get().setMax(config.bufferPoolSize);
 
 		m_server = new HttpServer();
-		m_server.addListener(
-				new NetworkListener("depurate", config.host, config.port));
+		m_listener = new NetworkListener("depurate", config.host, config.port);
+		// Settings which can't be changed once the listener is started
+		m_listener.getTransport().setSelectorRunnersCount(config.selectorThreads);
+		m_listener.setMaxHttpHeaderSize(config.maxHeaderSize);
+		if (config.directBuffers) {
+			// Network buffers off the heap, pooled by Grizzly
+			m_listener.getTransport().setMemoryManager(
+					new PooledMemoryManager(true));
+		}
+		// The HTTP filter takes a copy of these when it is created
+		KeepAlive keepAlive = m_listener.getKeepAlive();
+		keepAlive.setIdleTimeoutInSeconds(config.keepAliveTimeout);
+		keepAlive.setMaxRequestsCount(config.maxKeepAliveRequests);
+		applyTransportConfig(config);
+		m_listener.getTransport().getThreadPoolMonitoringConfig().addProbes(
+				metrics.getWorkerPoolProbe());
+		m_decoding = new ContentDecodingAddOn(metrics, config.maxPostSize);
+		m_listener.registerAddOn(m_decoding);
+		m_server.addListener(m_listener);
 
+		m_handler = new DepurateHandler(config, m_executor, metrics);
+		m_decoding.setMemoryBudget(m_handler.getMemoryBudget());
 		ServerConfiguration serverConf = m_server.getServerConfiguration();
-		serverConf.addHttpHandler(new DepurateHandler(config));
+		serverConf.addHttpHandler(m_handler);
+		serverConf.addHttpHandler(new MetricsHandler(metrics), "/metrics");
+		serverConf.addHttpHandler(new AdminHandler(this), "/admin/*");
 		serverConf.setDefaultErrorPageGenerator(new DepurateErrorPageGenerator());
 		serverConf.setName("depurate");
+		m_config = config;
 		m_server.start();
 	}
 
+	/**
+	 * Apply the transport settings which can be changed while the server is
+	 * running. Socket options only apply to connections accepted afterwards.
+	 */
+	private void applyTransportConfig(Config config) {
+		TCPNIOTransport transport = m_listener.getTransport();
+		transport.setTcpNoDelay(config.tcpNoDelay);
+		// Grizzly uses the system default for sizes of -1
+		transport.setReadBufferSize(config.socketReceiveBuffer > 0
+				? config.socketReceiveBuffer : -1);
+		transport.setWriteBufferSize(config.socketSendBuffer > 0
+				? config.socketSendBuffer : -1);
+
+		ExecutorService pool = transport.getWorkerThreadPool();
+		if (pool == null) {
+			// Not started yet
+			transport.getWorkerThreadPoolConfig()
+				.setCorePoolSize(config.workerThreads)
+				.setMaxPoolSize(config.workerThreads);
+		} else if (pool instanceof GrizzlyExecutorService) {
+			// Requests already queued are moved to the new pool, and the
+			// threads of the old one finish what they are doing
+			GrizzlyExecutorService grizzlyPool = (GrizzlyExecutorService)pool;
+			ThreadPoolConfig poolConfig = grizzlyPool.getConfiguration();
+			if (poolConfig.getMaxPoolSize() != config.workerThreads) {
+				grizzlyPool.reconfigure(poolConfig.copy()
+						.setCorePoolSize(config.workerThreads)
+						.setMaxPoolSize(config.workerThreads));
+			}
+		} else {
+			m_logger.warning("Can't resize the worker pool of type " +
+					pool.getClass().getName());
+		}
+	}
+
+	/**
+	 * Load the configuration file again, and apply it without interrupting
+	 * requests. Pool sizes and limits take effect immediately, and socket
+	 * options for new connections. A change to a setting which needs a restart is logged and
+	 * otherwise ignored. If any value is invalid, nothing is changed.
+	 *
+	 * @return The new configuration
+	 * @throws IOException If the file can't be read
+	 * @throws IllegalArgumentException If a value is invalid
+	 */
+	public synchronized Config reload() throws IOException {
+		if (m_config == null) {
+			throw new IllegalStateException("The server is not running");
+		}
+		Config config = parseConfig(readProperties(m_configPath));
+		Config old = m_config;
+		warnIfChanged("host", old.host, config.host);
+		warnIfChanged("port", old.port, config.port);
+		warnIfChanged("cacheSize", old.cacheSize, config.cacheSize);
+		warnIfChanged("threadPerRequest", old.threadPerRequest,
+				config.threadPerRequest);
+		warnIfChanged("maxRequestThreads", old.maxRequestThreads,
+				config.maxRequestThreads);
+		warnIfChanged("selectorThreads", old.selectorThreads,
+				config.selectorThreads);
+		warnIfChanged("maxHeaderSize", old.maxHeaderSize, config.maxHeaderSize);
+		warnIfChanged("keepAliveTimeout", old.keepAliveTimeout,
+				config.keepAliveTimeout);
+		warnIfChanged("maxKeepAliveRequests", old.maxKeepAliveRequests,
+				config.maxKeepAliveRequests);
+		warnIfChanged("directBuffers", old.directBuffers, config.directBuffers);
+		// Keep the values that are still in effect
+		config.host = old.host;
+		config.port = old.port;
+		config.cacheSize = old.cacheSize;
+		config.threadPerRequest = old.threadPerRequest;
+		config.maxRequestThreads = old.maxRequestThreads;
+		config.selectorThreads = old.selectorThreads;
+		config.maxHeaderSize = old.maxHeaderSize;
+		config.keepAliveTimeout = old.keepAliveTimeout;
+		config.maxKeepAliveRequests = old.maxKeepAliveRequests;
+		config.directBuffers = old.directBuffers;
+
+		m_executor.resize(config.depurateThreads, config.depurateQueueSize);
+		m_decoding.setMaxSize(config.maxPostSize);
+		BufferPool.get().setMax(config.bufferPoolSize);
+		applyTransportConfig(config);
+		m_handler.setConfig(config);
+		m_config = config;
+		logConfig("Configuration reloaded", config);
+		return config;
+	}
+
+	private void warnIfChanged(String name, Object oldValue, Object newValue) {
+		if (!oldValue.equals(newValue)) {
+			m_logger.warning("Changing " + name + " requires a restart");
+		}
+	}
+
+	/**
+	 * Get the configuration in effect
+	 */
+	public Config getConfig() {
+		return m_config;
+	}
+
+	/**
+	 * Called by jsvc on SIGUSR2
+	 */
+	public void signal() {
+		reloadQuietly();
+	}
+
+	private void reloadQuietly() {
+		try {
+			reload();
+		} catch (Exception e) {
+			m_logger.severe("Configuration not reloaded: " + e.getMessage());
+		}
+	}
+
 	public void stop() throws Exception {
 		m_logger.info("Stopping");
 		if (m_server != null) {
 			m_server.shutdownNow();
 		}
+		if (m_executor != null) {
+			m_executor.shutdown();
+		}
 	}
 
 	public void destroy() {
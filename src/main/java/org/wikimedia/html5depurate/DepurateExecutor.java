@@ -0,0 +1,134 @@
+package org.wikimedia.html5depurate;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size pool of threads which run depuration, so that parsing and
+ * serialization do not tie up the Grizzly threads that do network I/O.
+ *
+ * The number of waiting tasks is bounded. A task submitted when the queue
+ * is full is refused rather than queued, so that the caller can tell the
+ * client to come back later instead of letting latency grow without limit.
+ */
+class DepurateExecutor {
+	private final ThreadPoolExecutor m_pool;
+	private volatile int m_threads;
+	private volatile int m_maxQueueSize;
+
+	/** Tasks which have been accepted and have not yet finished */
+	private final AtomicInteger m_pending = new AtomicInteger();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final Histogram m_queueWait = new Histogram();
+
+	DepurateExecutor(int threads, int maxQueueSize) {
+		m_threads = threads;
+		m_maxQueueSize = maxQueueSize;
+		m_pool = new ThreadPoolExecutor(threads, threads,
+				0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger m_count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"depurate-" + m_count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queue a task for execution. Returns false without queueing it if the
+	 * queue is full.
+	 */
+	public boolean trySubmit(Runnable task) {
+		if (m_pending.incrementAndGet() > m_threads + m_maxQueueSize) {
+			m_pending.decrementAndGet();
+			m_rejected.incrementAndGet();
+			return false;
+		}
+		execute(task);
+		return true;
+	}
+
+	/**
+	 * Queue a task regardless of the queue size. This is for the
+	 * continuation of work which was accepted by trySubmit() earlier.
+	 */
+	public void submit(Runnable task) {
+		m_pending.incrementAndGet();
+		execute(task);
+	}
+
+	private void execute(final Runnable task) {
+		final long queued = System.nanoTime();
+		m_pool.execute(new Runnable() {
+			public void run() {
+				m_queueWait.recordSince(queued);
+				try {
+					task.run();
+				} finally {
+					m_pending.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Change the number of threads and the queue size. Running tasks are
+	 * not interrupted; if there are fewer threads, the extra ones exit once
+	 * their tasks are done. Tasks already accepted stay queued even if the
+	 * queue is now smaller.
+	 */
+	public synchronized void resize(int threads, int maxQueueSize) {
+		// The core size may not be above the maximum size at any point
+		if (threads > m_pool.getMaximumPoolSize()) {
+			m_pool.setMaximumPoolSize(threads);
+			m_pool.setCorePoolSize(threads);
+		} else {
+			m_pool.setCorePoolSize(threads);
+			m_pool.setMaximumPoolSize(threads);
+		}
+		m_threads = threads;
+		m_maxQueueSize = maxQueueSize;
+	}
+
+	/**
+	 * Get the number of accepted tasks which are waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return Math.max(0, m_pending.get() - m_threads);
+	}
+
+	/**
+	 * Get the number of tasks currently being run
+	 */
+	public int getActiveCount() {
+		return Math.min(m_pending.get(), m_threads);
+	}
+
+	public long getRejectedCount() {
+		return m_rejected.get();
+	}
+
+	public int getThreadCount() {
+		return m_threads;
+	}
+
+	/**
+	 * Get the histogram of the time tasks spent waiting for a thread
+	 */
+	public Histogram getQueueWait() {
+		return m_queueWait;
+	}
+
+	public void shutdown() {
+		m_pool.shutdownNow();
+	}
+}
@@ -5,30 +5,84 @@ import org.wikimedia.html5depurate.Depurator;
 import org.wikimedia.html5depurate.MultipartBuffer;
 import org.wikimedia.html5depurate.Util;
 
+import org.glassfish.grizzly.http.io.NIOInputStream;
 import org.glassfish.grizzly.http.multipart.MultipartScanner;
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
 import org.glassfish.grizzly.http.util.HttpStatus;
+import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.ReadHandler;
 
-import java.io.InputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 class DepurateHandler extends HttpHandler {
-	final private Config m_config;
+	private volatile Config m_config;
+	final private DepurateExecutor m_executor;
+	final private DepurateCache m_cache;
+	final private DepurateMetrics m_metrics;
+	private volatile ResponseCompressor m_compressor;
+
+	/** The threads for thread-per-request mode, or null if it is off */
+	final private RequestThreads m_requestThreads;
+
+	final private MemoryBudget m_budget;
+	final private HeapMonitor m_heap;
 	Logger m_logger = Logger.getLogger(this.getClass().getName());
 
 
-	DepurateHandler(Config config) {
+	DepurateHandler(Config config, DepurateExecutor executor) {
+		this(config, executor, new DepurateMetrics(executor));
+	}
+
+	DepurateHandler(Config config, DepurateExecutor executor,
+			DepurateMetrics metrics) {
 		super("depurate");
 		m_config = config;
+		m_executor = executor;
+		m_metrics = metrics;
+		m_compressor = new ResponseCompressor(config.compressionLevel,
+				config.compressionThreshold, metrics);
+		if (config.cacheSize > 0) {
+			m_cache = new DepurateCache(config.cacheSize);
+		} else {
+			m_cache = null;
+		}
+		if (config.threadPerRequest) {
+			m_requestThreads = new RequestThreads(config.maxRequestThreads);
+			metrics.setRequestThreads(m_requestThreads);
+		} else {
+			m_requestThreads = null;
+		}
+		m_budget = new MemoryBudget(config.memoryBudget);
+		m_heap = new HeapMonitor();
+		metrics.setMemory(m_budget, m_heap);
+	}
+
+	MemoryBudget getMemoryBudget() {
+		return m_budget;
+	}
+
+	/**
+	 * Switch to a reloaded configuration. Requests already started may see
+	 * either configuration. The cache size is not changed.
+	 */
+	void setConfig(Config config) {
+		m_compressor = new ResponseCompressor(config.compressionLevel,
+				config.compressionThreshold, m_metrics);
+		m_budget.setMax(config.memoryBudget);
+		m_config = config;
 	}
 
 	@Override
@@ -38,23 +92,87 @@ class DepurateHandler extends HttpHandler {
 		m_logger.finer("Request received");
 
 		String path = request.getHttpHandlerPath();
+		final RequestStats stats = m_metrics.startRequest(request, path);
+		if (request.getHeader("Content-Encoding") != null) {
+			m_metrics.addCompressedRequest();
+		}
 
 		boolean compat_ = false;
-		if (path.equals("/document")) {
-			compat_ = false;
-		} else if (path.equals("/compat/document")) {
+		boolean batch_ = false;
+		boolean fragment_ = false;
+		if (path.equals("/status")) {
+			sendStatus(response);
+			return;
+		}
+		// The path is [/batch][/compat]/document, or /body for a fragment
+		String rest = path;
+		if (rest.startsWith("/batch/")) {
+			batch_ = true;
+			rest = rest.substring(6);
+		}
+		if (rest.startsWith("/compat/")) {
 			compat_ = true;
-		} else {
+			rest = rest.substring(7);
+		}
+		if (rest.equals("/body")) {
+			fragment_ = true;
+		} else if (!rest.equals("/document")) {
 			m_logger.log(Level.INFO, "Unknown API path: {0}", path);
 			sendError(response, 404, "Unknown API path");
 			return;
 		}
-		// compat must be final to be passed to the closure
+		// compat, batch and fragment must be final to be passed to the
+		// closure
 		final boolean compat = compat_;
+		final boolean batch = batch_;
+		final boolean fragment = fragment_;
+
+		String contentType = request.getContentType();
+		if (!batch && isHtmlType(contentType)) {
+			String charset = request.getCharacterEncoding();
+			if (charset != null && !charset.equalsIgnoreCase("UTF-8")) {
+				sendError(response, 415, "The request body must be UTF-8");
+				return;
+			}
+			// A compressed body is limited by its decoded size instead
+			if (request.getHeader("Content-Encoding") == null
+					&& request.getContentLength() > m_config.maxPostSize) {
+				sendError(response, 400, "The POST size was too large");
+				return;
+			}
+			if (!admit(request, response)) {
+				return;
+			}
+			response.suspend();
+			if (m_requestThreads != null) {
+				readBodyBlocking(request, response, compat, fragment);
+			} else {
+				readBody(request, response, compat, fragment);
+			}
+			return;
+		}
 
+		if (!admit(request, response)) {
+			return;
+		}
 		response.suspend();
 		request.setCharacterEncoding("UTF-8");
-		final MultipartBuffer buf = new MultipartBuffer(m_config.maxPostSize);
+
+		if (m_config.pushParsing && !batch && m_cache == null
+				&& contentType != null
+				&& contentType.toLowerCase().startsWith("multipart/")) {
+			scanForPush(request, response, compat, fragment);
+			return;
+		}
+
+		final MultipartBuffer buf;
+		if (batch) {
+			buf = new MultipartBuffer(m_config.maxPostSize,
+					m_config.maxBatchPartSize, MemoryBudget.get(request));
+		} else {
+			buf = new MultipartBuffer(m_config.maxPostSize,
+					m_config.maxPostSize, MemoryBudget.get(request));
+		}
 
 		MultipartScanner.scan(request,
 			buf,
@@ -77,58 +195,695 @@ class DepurateHandler extends HttpHandler {
 					// MultipartReadHandler normally calls us 3 times. This is apparently a bug.
 					if (!m_done) {
 						m_done = true;
-						depurate(request, response, buf, compat);
-						response.resume();
+						stats.bodyRead();
+						if (batch) {
+							dispatchBatch(response, buf, compat, fragment);
+						} else {
+							dispatch(request, response, buf, compat, fragment);
+						}
+					}
+				}
+			}
+		);
+	}
+
+	/**
+	 * Depurate the text part of a multipart request while it is being
+	 * received. If there is no text part, the request is handled as usual
+	 * once the whole body has been scanned.
+	 */
+	private void scanForPush(final Request request, final Response response,
+			final boolean compat, final boolean fragment)
+	{
+		final PushDepuration push = new PushDepuration(this, m_executor,
+				response, compat, fragment, m_config.maxPostSize,
+				m_config.retryAfter);
+		MultipartScanner.scan(request,
+			push,
+			new EmptyCompletionHandler<Request>() {
+				private boolean m_done = false;
+
+				@Override
+				public void completed(final Request request) {
+					m_logger.finer("Multipart complete");
+					continueRequest(request, null);
+				}
+
+				@Override
+				public void failed(Throwable throwable) {
+					m_logger.finer("Multipart failed");
+					continueRequest(request, throwable);
+				}
+
+				private void continueRequest(final Request request,
+						Throwable throwable) {
+					if (m_done) {
+						return;
+					}
+					m_done = true;
+					if (!push.hasStarted()) {
+						RequestStats.get(request).bodyRead();
+						dispatch(request, response,
+								new MultipartBuffer(m_config.maxPostSize), compat,
+								fragment);
+					} else if (throwable != null) {
+						push.abort("Error reading the request: " +
+								Util.format(throwable));
+					} else {
+						push.end();
 					}
 				}
 			}
 		);
 	}
 
+	/**
+	 * Start the request's memory reservation with its declared size, and
+	 * turn away large requests while the heap is nearly full. If the
+	 * request is rejected, a 503 response is sent and false is returned.
+	 */
+	private boolean admit(Request request, Response response) {
+		MemoryBudget.Reservation reservation = m_budget.open(request);
+		long length = request.getContentLengthLong();
+		// A body without a declared size, or a compressed one, may be of
+		// any size
+		boolean large = length >= m_config.largeRequestSize
+			|| request.getHeader("Transfer-Encoding") != null
+			|| request.getHeader("Content-Encoding") != null;
+		if (large && m_heap.shouldShed(m_config.heapThreshold)) {
+			m_logger.log(Level.WARNING,
+					"Heap usage is {0}%, rejecting large request",
+					m_heap.getUsedPercent());
+			sendOverBudget(response);
+			return false;
+		}
+		if (length > 0 && !reservation.reserveTotal(length)) {
+			m_logger.log(Level.WARNING,
+					"Memory budget is used up, rejecting request of {0} bytes",
+					length);
+			sendOverBudget(response);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the limits for a depuration which is about to start
+	 */
+	DepurateLimits newLimits() {
+		Config config = m_config;
+		return new DepurateLimits(config.maxDepurateTime, config.maxDepth,
+				config.maxOutputSize);
+	}
+
+	/**
+	 * Send a 422 response for a document which exceeded a limit, with the
+	 * limit's code in an X-Depurate-Error header
+	 */
+	void sendLimitExceeded(Response response,
+			DepurateLimits.ExceededException e) {
+		m_metrics.addLimitExceeded(e.getCode());
+		m_logger.log(Level.WARNING, "Depuration stopped: {0}", e.getMessage());
+		if (!response.isCommitted()) {
+			response.setHeader("X-Depurate-Error", e.getCode());
+		}
+		sendError(response, 422, e.getMessage());
+	}
+
+	/**
+	 * Send a 503 response to a request which would take more memory than
+	 * is available
+	 */
+	void sendOverBudget(Response response) {
+		response.setHeader("Retry-After", Integer.toString(m_config.retryAfter));
+		sendError(response, 503, "The server is short of memory, try again later");
+	}
+
+	/**
+	 * Whether a request's Content-Type says that the body is the HTML
+	 * itself, rather than a form containing it
+	 */
+	private static boolean isHtmlType(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		int semicolon = contentType.indexOf(';');
+		if (semicolon != -1) {
+			contentType = contentType.substring(0, semicolon);
+		}
+		return contentType.trim().equalsIgnoreCase("text/html");
+	}
+
+	/**
+	 * Depurate a request body which is the HTML itself. The body is read in
+	 * the buffers it arrives in, without any form decoding, and is either
+	 * parsed as it arrives or collected and then depurated as usual.
+	 */
+	private void readBody(final Request request, final Response response,
+			final boolean compat, final boolean fragment)
+	{
+		final NIOInputStream stream = request.getNIOInputStream();
+		if (m_config.pushParsing && m_cache == null) {
+			new PushDepuration(this, m_executor, response, compat, fragment,
+					m_config.maxPostSize, m_config.retryAfter).readFrom(stream);
+			return;
+		}
+
+		final MemoryBudget.Reservation reservation = MemoryBudget.get(request);
+		stream.notifyAvailable(new ReadHandler() {
+			private InputChunks m_body = new InputChunks();
+			private boolean m_overBudget = false;
+
+			@Override
+			public void onDataAvailable() throws Exception {
+				readAvailable();
+				stream.notifyAvailable(this);
+			}
+
+			@Override
+			public void onAllDataRead() throws Exception {
+				readAvailable();
+				RequestStats.get(request).bodyRead();
+				if (m_overBudget) {
+					sendOverBudget(response);
+					response.resume();
+				} else if (m_body == null) {
+					sendError(response, 400, "The POST size was too large");
+					response.resume();
+				} else {
+					dispatchBody(request, response, m_body, compat, fragment);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				m_logger.info("Error reading request body: " + Util.format(t));
+				if (m_body != null) {
+					m_body.dispose();
+				}
+				sendError(response, 400, "Error reading the request: " +
+						Util.format(t));
+				response.resume();
+			}
+
+			private void readAvailable() {
+				while (stream.isReady()) {
+					Buffer buffer = stream.readBuffer();
+					if (m_body != null &&
+							m_body.length() <= m_config.maxPostSize - buffer.remaining()) {
+						m_body.add(buffer);
+						if (!reservation.reserveTotal(m_body.length())) {
+							m_overBudget = true;
+							m_body.dispose();
+							m_body = null;
+						}
+					} else {
+						// Too big: drop what we have and read the rest
+						// without saving it
+						buffer.tryDispose();
+						if (m_body != null) {
+							m_body.dispose();
+							m_body = null;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Depurate a request body which is the HTML itself on a thread of its
+	 * own, parsing it with blocking reads as it arrives
+	 */
+	private void readBodyBlocking(final Request request,
+			final Response response, final boolean compat,
+			final boolean fragment)
+	{
+		final BodyPipe pipe = new BodyPipe(request.getNIOInputStream(),
+				MemoryBudget.get(request));
+		pipe.start();
+		boolean started = submit(response, new Runnable() {
+			public void run() {
+				try {
+					RequestStats.get(request).started();
+					depurateStream(request, response,
+							new BodyStream(request, pipe), compat, fragment);
+				} finally {
+					pipe.close();
+					response.resume();
+				}
+			}
+		});
+		if (!started) {
+			pipe.close();
+		}
+	}
+
+	/**
+	 * Hand the request over to the depuration pool, or reject it if the pool
+	 * is already fully booked.
+	 */
+	private void dispatch(final Request request, final Response response,
+			final MultipartBuffer buf, final boolean compat,
+			final boolean fragment)
+	{
+		boolean queued = submit(response, new Runnable() {
+			public void run() {
+				try {
+					RequestStats.get(request).started();
+					depurate(request, response, buf, compat, fragment);
+				} finally {
+					buf.dispose();
+					response.resume();
+				}
+			}
+		});
+		if (!queued) {
+			buf.dispose();
+		}
+	}
+
+	private void dispatchBody(final Request request, final Response response,
+			final InputChunks body, final boolean compat,
+			final boolean fragment)
+	{
+		boolean queued = submit(response, new Runnable() {
+			public void run() {
+				try {
+					RequestStats.get(request).started();
+					m_logger.log(Level.INFO, "Depurating {0} bytes of raw input",
+							body.length());
+					RequestStats.get(request).addInputBytes(body.length());
+					depurateInput(request, response, null, body, compat,
+							fragment);
+				} finally {
+					body.dispose();
+					response.resume();
+				}
+			}
+		});
+		if (!queued) {
+			body.dispose();
+		}
+	}
+
+	/**
+	 * Submit a task which will finish the response, to the depuration pool
+	 * or in thread-per-request mode to a thread of its own. If the pool is
+	 * fully booked or there are too many requests in progress, a 503
+	 * response is sent instead, and false is returned.
+	 */
+	private boolean submit(Response response, Runnable task) {
+		RequestStats.get(response.getRequest()).queued();
+		if (m_requestThreads != null) {
+			if (!m_requestThreads.trySubmit(task)) {
+				m_logger.log(Level.WARNING,
+						"Too many requests in progress, rejecting request ({0} rejected so far)",
+						m_requestThreads.getRejectedCount());
+				response.setHeader("Retry-After",
+						Integer.toString(m_config.retryAfter));
+				sendError(response, 503, "The server is too busy, try again later");
+				response.resume();
+				return false;
+			}
+			return true;
+		}
+		if (!m_executor.trySubmit(task)) {
+			m_logger.log(Level.WARNING,
+					"Depuration queue is full, rejecting request ({0} rejected so far)",
+					m_executor.getRejectedCount());
+			response.setHeader("Retry-After", Integer.toString(m_config.retryAfter));
+			sendError(response, 503, "The server is too busy, try again later");
+			response.resume();
+			return false;
+		}
+		m_logger.log(Level.FINE, "Request queued, queue depth {0}",
+				m_executor.getQueueDepth());
+		return true;
+	}
+
+	/**
+	 * Hand the parts of a batch request over to the depuration pool. Up to
+	 * one worker per thread is submitted, each taking parts from the batch
+	 * until there are none left, so that a large batch can't fill up the
+	 * queue. The batch is rejected only if no worker can be queued at all.
+	 */
+	private void dispatchBatch(final Response response, MultipartBuffer buf,
+			boolean compat, boolean fragment)
+	{
+		if (buf.isOverBudget()) {
+			sendOverBudget(response);
+			buf.dispose();
+			response.resume();
+			return;
+		}
+		if (buf.isTooBig()) {
+			sendError(response, 400, "The POST size was too large");
+			buf.dispose();
+			response.resume();
+			return;
+		}
+		if (buf.getDuplicateName() != null) {
+			sendError(response, 400, "The part name \"" + buf.getDuplicateName()
+					+ "\" was given more than once");
+			buf.dispose();
+			response.resume();
+			return;
+		}
+		final DepurateBatch batch = new DepurateBatch(buf.getParameterNames());
+		if (batch.size() == 0) {
+			sendError(response, 400, "At least one part must be given");
+			buf.dispose();
+			response.resume();
+			return;
+		}
+
+		int workers = Math.min(batch.size(), m_config.depurateThreads);
+		int submitted = 0;
+		for (int i = 0; i < workers; i++) {
+			batch.addWorker();
+			boolean queued = m_executor.trySubmit(
+					new BatchWorker(response, buf, batch, compat, fragment));
+			if (!queued) {
+				batch.releaseWorker();
+				break;
+			}
+			submitted++;
+		}
+		if (submitted == 0) {
+			m_logger.log(Level.WARNING,
+					"Depuration queue is full, rejecting batch ({0} rejected so far)",
+					m_executor.getRejectedCount());
+			response.setHeader("Retry-After", Integer.toString(m_config.retryAfter));
+			sendError(response, 503, "The server is too busy, try again later");
+			buf.dispose();
+			response.resume();
+			return;
+		}
+		m_logger.log(Level.INFO,
+				"Depurating a batch of {0} parts with {1} workers",
+				new Object[] {batch.size(), submitted});
+		if (batch.releaseWorker()) {
+			sendBatch(response, buf, batch);
+		}
+	}
+
+	private class BatchWorker implements Runnable {
+		private final Response m_response;
+		private final MultipartBuffer m_buf;
+		private final DepurateBatch m_batch;
+		private final boolean m_compat;
+		private final boolean m_fragment;
+
+		BatchWorker(Response response, MultipartBuffer buf, DepurateBatch batch,
+				boolean compat, boolean fragment) {
+			m_response = response;
+			m_buf = buf;
+			m_batch = batch;
+			m_compat = compat;
+			m_fragment = fragment;
+		}
+
+		public void run() {
+			try {
+				int i;
+				while ((i = m_batch.nextPart()) != -1) {
+					depuratePart(i);
+				}
+			} finally {
+				if (m_batch.releaseWorker()) {
+					sendBatch(m_response, m_buf, m_batch);
+				}
+			}
+		}
+
+		private void depuratePart(int i) {
+			String name = m_batch.getName(i);
+			if (m_buf.isPartTooBig(name)) {
+				m_batch.setError(i, 413, "The part was too large");
+				return;
+			}
+			RequestStats stats = RequestStats.get(m_response.getRequest());
+			try {
+				InputChunks input = m_buf.getParameter(name);
+				stats.addInputBytes(input.length());
+				if (!reserveOutput(m_response.getRequest(), input.length())) {
+					m_batch.setError(i, 503,
+							"The server is short of memory, try again later");
+					return;
+				}
+				long start = System.nanoTime();
+				m_batch.setOutput(i, depurateBytes(input, m_compat, m_fragment));
+				stats.depurated(start);
+			} catch (DepurateLimits.ExceededException e) {
+				m_metrics.addLimitExceeded(e.getCode());
+				m_batch.setError(i, 422, e.getCode(), e.getMessage());
+			} catch (SAXException e) {
+				m_batch.setError(i, 500, "Error while parsing HTML: " + Util.format(e));
+			} catch (Exception e) {
+				m_logger.warning("Got unexpected exception: " + Util.format(e));
+				m_batch.setError(i, 500, "Unexpected exception: " + Util.format(e));
+			}
+		}
+	}
+
+	private void sendBatch(Response response, MultipartBuffer buf,
+			DepurateBatch batch)
+	{
+		// All parts have been depurated, so the input can be released
+		// before the response is written
+		buf.dispose();
+		try {
+			response.setContentType(batch.getContentType());
+			OutputStream out = openOutput(response);
+			batch.writeTo(out);
+			out.close();
+		} catch (IOException e) {
+			m_logger.warning("Got IOException: " + Util.format(e));
+			sendError(response, 500, "Got IOException: " + Util.format(e));
+		} finally {
+			response.resume();
+		}
+	}
+
+	private void sendStatus(Response response) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("queueDepth: ").append(m_executor.getQueueDepth()).append('\n');
+		sb.append("activeDepurations: ").append(m_executor.getActiveCount()).append('\n');
+		sb.append("rejected: ").append(m_executor.getRejectedCount()).append('\n');
+		if (m_cache != null) {
+			sb.append("cacheHits: ").append(m_cache.getHitCount()).append('\n');
+			sb.append("cacheMisses: ").append(m_cache.getMissCount()).append('\n');
+			sb.append("cacheCollapsed: ").append(m_cache.getCollapsedCount()).append('\n');
+			sb.append("cacheEvictions: ").append(m_cache.getEvictionCount()).append('\n');
+			sb.append("cacheEntries: ").append(m_cache.getEntryCount()).append('\n');
+			sb.append("cacheBytes: ").append(m_cache.getSize()).append('\n');
+		}
+		response.setContentType("text/plain;charset=UTF-8");
+		response.getWriter().write(sb.toString());
+	}
+
 	private void depurate(
-			final Request request, Response response, MultipartBuffer multi, boolean compat)
+			final Request request, Response response, MultipartBuffer multi,
+			boolean compat, boolean fragment)
+	{
+		if (multi.isOverBudget()) {
+			sendOverBudget(response);
+			return;
+		}
+		if (multi.isTooBig()) {
+			sendError(response, 400, "The POST size was too large");
+			return;
+		}
+		String text = request.getParameter("text");
+		InputChunks textChunks = null;
+		if (text != null) {
+			m_logger.log(Level.INFO, "Depurating {0} chars of URL input",
+					text.length());
+			RequestStats.get(request).addInputBytes(text.length());
+		} else {
+			textChunks = multi.getParameter("text");
+			if (textChunks == null) {
+				sendError(response, 400, "The text parameter must be given");
+				return;
+			}
+			m_logger.log(Level.INFO,
+					"Depurating {0} bytes of multipart input",
+					textChunks.length());
+			RequestStats.get(request).addInputBytes(textChunks.length());
+		}
+		depurateInput(request, response, text, textChunks, compat, fragment);
+	}
+
+	/**
+	 * Depurate the input into the response. The input is given either as a
+	 * string or as UTF-8 bytes.
+	 */
+	private void depurateInput(Request request, Response response,
+			String text, InputChunks textChunks, boolean compat,
+			boolean fragment)
+	{
+		if (!reserveOutput(request,
+				textChunks != null ? textChunks.length() : text.length())) {
+			sendOverBudget(response);
+			return;
+		}
+		if (m_cache != null && textChunks == null) {
+			textChunks = InputChunks.wrap(text.getBytes(Charset.forName("UTF-8")));
+		}
+		InputSource source;
+		if (text != null) {
+			source = new InputSource(new StringReader(text));
+		} else {
+			source = new InputSource(textChunks.getInputStream());
+			source.setEncoding("UTF-8");
+		}
+		PlainText plain = null;
+		if (m_cache == null) {
+			plain = text != null
+				? PlainText.match(text) : PlainText.match(textChunks);
+		}
+		depurateSource(request, response, source, textChunks, plain, compat,
+				fragment);
+	}
+
+	/**
+	 * Reserve memory for depurating input of the given size, waiting a
+	 * little if the budget is used up. The output, and the document tree
+	 * while it is built, are assumed to take about as much as the input.
+	 */
+	boolean reserveOutput(Request request, long inputSize) {
+		if (MemoryBudget.get(request).reserve(inputSize,
+				m_config.memoryBudgetWait)) {
+			return true;
+		}
+		m_logger.log(Level.WARNING,
+				"Memory budget is used up, rejecting depuration of {0} bytes",
+				inputSize);
+		return false;
+	}
+
+	/**
+	 * Depurate UTF-8 input from a stream into the response, parsing it as
+	 * it is read unless the whole input is needed for the cache
+	 */
+	private void depurateStream(Request request, Response response,
+			InputStream stream, boolean compat, boolean fragment)
 	{
+		if (m_cache == null) {
+			InputSource source = new InputSource(stream);
+			source.setEncoding("UTF-8");
+			depurateSource(request, response, source, null, null, compat,
+					fragment);
+			return;
+		}
+		InputChunks input = new InputChunks();
 		try {
-			if (multi.isTooBig()) {
+			try {
+				readPooled(stream, input);
+			} catch (MemoryBudget.ExceededException e) {
+				sendOverBudget(response);
+				return;
+			} catch (BodyTooLargeException e) {
 				sendError(response, 400, "The POST size was too large");
 				return;
+			} catch (IOException e) {
+				m_logger.info("Error reading request body: " + Util.format(e));
+				sendError(response, 400, "Error reading the request: " +
+						Util.format(e));
+				return;
 			}
-			String text = request.getParameter("text");
-			InputSource source = null;
-			if (text != null) {
-				StringReader sr = new StringReader(text);
-				source = new InputSource(sr);
-				m_logger.log(Level.INFO, "Depurating {0} chars of URL input",
-						text.length());
-			} else {
-				byte[] textBytes = multi.getParameter("text");
-				if (textBytes != null) {
-					m_logger.log(Level.INFO, 
-							"Depurating {0} bytes of multipart input",
-							textBytes.length);
-					InputStream stream = new ByteArrayInputStream(textBytes);
-					source = new InputSource(stream);
-					source.setEncoding("UTF-8");
+			depurateInput(request, response, null, input, compat, fragment);
+		} finally {
+			input.dispose();
+		}
+	}
+
+	/**
+	 * Read a stream to the end into arrays from the buffer pool, which are
+	 * given back when the input is disposed
+	 */
+	private static void readPooled(InputStream stream, InputChunks input)
+			throws IOException
+	{
+		BufferPool pool = BufferPool.get();
+		while (true) {
+			byte[] chunk = pool.take(65536);
+			int n = -1;
+			try {
+				n = stream.read(chunk);
+			} finally {
+				if (n == -1) {
+					pool.give(chunk);
 				}
 			}
-			if (source == null) {
-				sendError(response, 400, "The text parameter must be given");
-				return;
+			if (n == -1) {
+				break;
 			}
+			input.addPooled(chunk, n);
+		}
+	}
 
-			byte[] outputBytes = {};
+	/**
+	 * Depurate the input into the response. The input must also be given
+	 * as UTF-8 bytes if the cache is enabled, for the cache key. If it is
+	 * known to have no markup, the text can be given, and it is then
+	 * written out without parsing.
+	 */
+	private void depurateSource(Request request, Response response,
+			InputSource source, InputChunks textChunks, PlainText plain,
+			boolean compat, boolean fragment)
+	{
+		try {
+			RequestStats stats = RequestStats.get(request);
+			DepurateLimits limits = newLimits();
 			try {
-				outputBytes = Depurator.depurate(source, compat);
+				long start = System.nanoTime();
+				if (m_cache != null) {
+					sendCached(request, response, textChunks, compat, fragment);
+					stats.depurated(start);
+				} else if (RequestStats.wantsTiming(request)) {
+					// The timings have to go in the headers, so the output
+					// is collected before any of it is sent.
+					DepurateProfile profile = new DepurateProfile();
+					PooledOutputStream buffered = new PooledOutputStream();
+					try {
+						Depurator.depurate(source, buffered, compat, fragment,
+								profile, limits);
+						stats.depurated(start);
+						sendProfiled(response, buffered, profile);
+					} finally {
+						buffered.release();
+					}
+				} else if (plain != null) {
+					m_metrics.addPlainText();
+					response.setContentType("text/html;charset=UTF-8");
+					OutputStream out = openOutput(response);
+					Depurator.depurate(plain, out, compat, fragment, limits);
+					out.close();
+					stats.depurated(start);
+				} else {
+					// No content length is set, so the output goes out with
+					// chunked transfer encoding as the serializer produces it.
+					response.setContentType("text/html;charset=UTF-8");
+					OutputStream out = openOutput(response);
+					Depurator.depurate(source, out, compat, fragment, null,
+							limits);
+					out.close();
+					stats.depurated(start);
+				}
+			} catch (DepurateLimits.ExceededException e) {
+				sendLimitExceeded(response, e);
+				return;
 			} catch (SAXException e) {
 				m_logger.info("Error running depurator");
 				sendError(response, 500, "Error while parsing HTML: " + Util.format(e));
 				return;
 			}
-
-			response.setContentType("text/html;charset=UTF-8");
-			response.setContentLength(outputBytes.length);
-			response.setBufferSize(outputBytes.length);
-			response.getOutputStream().write(outputBytes);
+		} catch (MemoryBudget.ExceededException e) {
+			sendOverBudget(response);
+		} catch (BodyTooLargeException e) {
+			sendError(response, 400, "The POST size was too large");
 		} catch (IOException e) {
 			m_logger.warning("Got IOException: " + Util.format(e));
 			sendError(response, 500, "Got IOException: " + Util.format(e));
@@ -139,7 +894,143 @@ class DepurateHandler extends HttpHandler {
 		}
 	}
 
-	private void sendError(Response response, int code, String message) {
+	/**
+	 * Send the output from the cache, depurating the input first if
+	 * necessary. If the client already has the output, as indicated by
+	 * If-None-Match, the input is not depurated at all.
+	 */
+	private void sendCached(Request request, Response response,
+			InputChunks input, boolean compat, boolean fragment)
+		throws Exception
+	{
+		String key = DepurateCache.getKey(input, compat, fragment);
+		String etag = "\"" + key + "\"";
+		response.setHeader("ETag", etag);
+		if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+			m_logger.fine("ETag matched, sending 304");
+			response.setStatus(HttpStatus.NOT_MODIFIED_304);
+			return;
+		}
+
+		long start = System.nanoTime();
+		byte[] output = m_cache.get(key, newDepuration(input, compat, fragment));
+		if (RequestStats.wantsTiming(request)) {
+			RequestStats.get(request).addTimingHeaders(response, null,
+					System.nanoTime() - start, output.length);
+		}
+		response.setContentType("text/html;charset=UTF-8");
+		sendOutput(response, output);
+	}
+
+	/**
+	 * Send output which was collected along with a profile, with the timing
+	 * headers
+	 */
+	void sendProfiled(Response response, PooledOutputStream output,
+			DepurateProfile profile)
+		throws IOException
+	{
+		RequestStats.get(response.getRequest()).addTimingHeaders(response,
+				profile, 0, output.size());
+		response.setContentType("text/html;charset=UTF-8");
+		m_compressor.send(response, output,
+				RequestStats.get(response.getRequest()).countOutput(
+					response.getNIOOutputStream()));
+	}
+
+	/**
+	 * Get a stream for writing the response body as it is produced,
+	 * compressing it if the client accepts that. The stream must be closed
+	 * when the body is complete.
+	 */
+	OutputStream openOutput(Response response) {
+		return m_compressor.wrap(response,
+				RequestStats.get(response.getRequest()).countOutput(
+					response.getNIOOutputStream()));
+	}
+
+	/**
+	 * Send a complete response body, compressing it if the client accepts
+	 * that, with a Content-Length
+	 */
+	private void sendOutput(Response response, byte[] output)
+			throws IOException
+	{
+		m_compressor.send(response, output,
+				RequestStats.get(response.getRequest()).countOutput(
+					response.getNIOOutputStream()));
+	}
+
+	/**
+	 * Depurate some input into a byte array, going through the cache if it
+	 * is enabled
+	 */
+	private byte[] depurateBytes(InputChunks input, boolean compat,
+			boolean fragment)
+			throws Exception
+	{
+		Callable<byte[]> depuration = newDepuration(input, compat, fragment);
+		if (m_cache != null) {
+			return m_cache.get(DepurateCache.getKey(input, compat, fragment),
+					depuration);
+		} else {
+			return depuration.call();
+		}
+	}
+
+	private Callable<byte[]> newDepuration(final InputChunks input,
+			final boolean compat, final boolean fragment)
+	{
+		return new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				DepurateLimits limits = newLimits();
+				PlainText plain = PlainText.match(input);
+				if (plain != null) {
+					m_metrics.addPlainText();
+					PooledOutputStream sink = new PooledOutputStream();
+					try {
+						Depurator.depurate(plain, sink, compat, fragment, limits);
+						return sink.toByteArray();
+					} finally {
+						sink.release();
+					}
+				}
+				InputSource source = new InputSource(input.getInputStream());
+				source.setEncoding("UTF-8");
+				return Depurator.depurate(source, compat, fragment, limits);
+			}
+		};
+	}
+
+	/**
+	 * Check whether an If-None-Match header value lists the given ETag
+	 */
+	private static boolean matchesETag(String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || candidate.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void sendError(Response response, int code, String message) {
+		ResponseCompressor.abandon(response);
+		if (response.isCommitted()) {
+			// Some of the output has already been sent, so it is too late for
+			// an error page. Drop the connection so that the client sees a
+			// truncated response instead of a successful one.
+			m_logger.warning("Aborting response after it was committed");
+			response.getRequest().getContext().getConnection().closeSilently();
+			return;
+		}
 		response.getResponse().setAllowCustomReasonPhrase(false);
 		try {
 			response.sendError(code, message);
@@ -147,4 +1038,51 @@ class DepurateHandler extends HttpHandler {
 			m_logger.warning("Got IOException while sending error: " + Util.format(e));
 		}
 	}
+
+	/**
+	 * A request body read with blocking reads, which are recorded in the
+	 * request's stats, and which fails once it is longer than maxPostSize
+	 */
+	private class BodyStream extends FilterInputStream {
+		private final RequestStats m_stats;
+		private final long m_maxSize = m_config.maxPostSize;
+		private long m_size = 0;
+
+		BodyStream(Request request, InputStream in) {
+			super(in);
+			m_stats = RequestStats.get(request);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n == -1) {
+				if (m_size >= 0) {
+					m_stats.bodyRead();
+					m_size = -1;
+				}
+				return -1;
+			}
+			m_size += n;
+			m_stats.addInputBytes(n);
+			if (m_size > m_maxSize) {
+				throw new BodyTooLargeException();
+			}
+			return n;
+		}
+	}
+
+	private static class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		BodyTooLargeException() {
+			super("The POST size was too large");
+		}
+	}
 }
@@ -0,0 +1,208 @@
+package org.wikimedia.html5depurate;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Limits on the time, element depth and output size of a single
+ * depuration, so that a pathological document is stopped rather than
+ * holding a thread for seconds or filling the heap with output.
+ *
+ * The limits are checked by the serializers as they receive events, and
+ * the time is also checked as the parser reads its input, since building
+ * the tree can take longer than serializing it. Whatever the exception
+ * which stops the depuration is wrapped in on its way out of the parser,
+ * throwIfExceeded() then throws the ExceededException itself.
+ *
+ * Time spent waiting for input doesn't count towards the time limit, so
+ * that a slow client doesn't use up the time of a document which is parsed
+ * as it arrives.
+ *
+ * A limit of 0 is no limit. An instance is used for one depuration only.
+ */
+class DepurateLimits {
+	/** The number of events between checks of the clock */
+	private static final int CLOCK_INTERVAL = 64;
+
+	private final long m_maxNanos;
+	private final int m_maxDepth;
+	private final long m_maxOutput;
+
+	private long m_start;
+	private int m_events = 0;
+	private long m_output = 0;
+	private ExceededException m_exception;
+
+	/**
+	 * @param maxMillis The most time the depuration may take
+	 * @param maxDepth The deepest that elements may be nested
+	 * @param maxOutput The most bytes of output
+	 */
+	DepurateLimits(long maxMillis, int maxDepth, long maxOutput) {
+		m_maxNanos = maxMillis * 1000000;
+		m_maxDepth = maxDepth;
+		m_maxOutput = maxOutput;
+		m_start = System.nanoTime();
+	}
+
+	/**
+	 * Set the start of the depuration, as a System.nanoTime(). Time which
+	 * shouldn't count can be left out by moving the start forward.
+	 */
+	public void setStart(long nanos) {
+		m_start = nanos;
+	}
+
+	/**
+	 * If the limits were exceeded, throw the exception for that, in place
+	 * of the one which stopped the depuration
+	 *
+	 * @param limits The limits, or null if there were none
+	 */
+	public static void throwIfExceeded(DepurateLimits limits)
+		throws ExceededException
+	{
+		if (limits != null && limits.m_exception != null) {
+			throw limits.m_exception;
+		}
+	}
+
+	/**
+	 * Check the time every so many calls
+	 */
+	public void checkTime() throws ExceededException {
+		if (++m_events == CLOCK_INTERVAL) {
+			m_events = 0;
+			checkClock();
+		}
+	}
+
+	/**
+	 * Check the time now
+	 */
+	public void checkClock() throws ExceededException {
+		if (m_maxNanos > 0 && System.nanoTime() - m_start > m_maxNanos) {
+			fail(ExceededException.TIME);
+		}
+	}
+
+	public void checkDepth(int depth) throws ExceededException {
+		if (m_maxDepth > 0 && depth > m_maxDepth) {
+			fail(ExceededException.DEPTH);
+		}
+	}
+
+	/**
+	 * Count bytes of output
+	 */
+	public void addOutput(int bytes) throws ExceededException {
+		m_output += bytes;
+		if (m_maxOutput > 0 && m_output > m_maxOutput) {
+			fail(ExceededException.OUTPUT);
+		}
+	}
+
+	private void fail(String code) throws ExceededException {
+		if (m_exception == null) {
+			m_exception = new ExceededException(code);
+		}
+		throw m_exception;
+	}
+
+	/**
+	 * Get a copy of an input source whose reads check the time
+	 */
+	public InputSource wrap(InputSource source) {
+		InputSource wrapped = new InputSource();
+		wrapped.setEncoding(source.getEncoding());
+		wrapped.setPublicId(source.getPublicId());
+		wrapped.setSystemId(source.getSystemId());
+		if (source.getCharacterStream() != null) {
+			wrapped.setCharacterStream(
+					new TimedReader(source.getCharacterStream()));
+		} else if (source.getByteStream() != null) {
+			wrapped.setByteStream(new TimedInputStream(source.getByteStream()));
+		}
+		return wrapped;
+	}
+
+	private class TimedReader extends FilterReader {
+		TimedReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			try {
+				checkClock();
+			} catch (ExceededException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			long start = System.nanoTime();
+			try {
+				return super.read(cbuf, off, len);
+			} finally {
+				m_start += System.nanoTime() - start;
+			}
+		}
+	}
+
+	private class TimedInputStream extends FilterInputStream {
+		TimedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				checkClock();
+			} catch (ExceededException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			long start = System.nanoTime();
+			try {
+				return super.read(b, off, len);
+			} finally {
+				m_start += System.nanoTime() - start;
+			}
+		}
+	}
+
+	/**
+	 * Thrown when a depuration exceeds one of its limits. The code names
+	 * the limit, for clients to tell them apart.
+	 */
+	static class ExceededException extends SAXException {
+		private static final long serialVersionUID = 1L;
+
+		public static final String TIME = "time-limit";
+		public static final String DEPTH = "depth-limit";
+		public static final String OUTPUT = "output-limit";
+
+		private final String m_code;
+
+		ExceededException(String code) {
+			super(message(code));
+			m_code = code;
+		}
+
+		public String getCode() {
+			return m_code;
+		}
+
+		private static String message(String code) {
+			if (TIME.equals(code)) {
+				return "The document took too long to depurate";
+			} else if (DEPTH.equals(code)) {
+				return "The document's elements are nested too deeply";
+			} else {
+				return "The output was too large";
+			}
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.threadpool.AbstractThreadPool;
+import org.glassfish.grizzly.threadpool.ThreadPoolProbe;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the server, exposed at /metrics in
+ * the Prometheus text format.
+ *
+ * Everything is recorded with atomic operations, so that recording adds
+ * little to the cost of a request and never makes requests wait for each
+ * other.
+ */
+class DepurateMetrics {
+	/** Paths which get their own label. Anything else is counted as "other". */
+	private static final String[] PATHS = {
+		"/document", "/compat/document", "/batch/document",
+		"/batch/compat/document", "/body", "/compat/body", "/batch/body",
+		"/batch/compat/body", "/status"
+	};
+
+	private final DepurateExecutor m_executor;
+	private volatile RequestThreads m_requestThreads;
+	private volatile MemoryBudget m_budget;
+	private volatile HeapMonitor m_heap;
+
+	/** Request counts, keyed by path label and status */
+	private final ConcurrentHashMap<String, AtomicLong> m_requests =
+		new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicInteger m_inFlight = new AtomicInteger();
+	private final AtomicLong m_inputBytes = new AtomicLong();
+	private final AtomicLong m_outputBytes = new AtomicLong();
+	private final AtomicLong m_plainText = new AtomicLong();
+	private final AtomicLong m_timeLimited = new AtomicLong();
+	private final AtomicLong m_depthLimited = new AtomicLong();
+	private final AtomicLong m_outputLimited = new AtomicLong();
+	private final AtomicLong m_compressedRequests = new AtomicLong();
+	private final AtomicLong m_requestBytesSaved = new AtomicLong();
+	private final AtomicLong m_compressedResponses = new AtomicLong();
+	private final AtomicLong m_responseBytesSaved = new AtomicLong();
+
+	/** Time from the start of the request until all of the input is in */
+	final Histogram bodyRead = new Histogram();
+
+	/** Time spent parsing and serializing, per document */
+	final Histogram depurate = new Histogram();
+
+	/**
+	 * Time from the end of depuration until the response is complete,
+	 * which is mostly the time taken to send the rest of the output
+	 */
+	final Histogram responseWrite = new Histogram();
+
+	private final WorkerPoolProbe m_workerProbe = new WorkerPoolProbe();
+
+	DepurateMetrics(DepurateExecutor executor) {
+		m_executor = executor;
+	}
+
+	/**
+	 * Include the threads of thread-per-request mode
+	 */
+	void setRequestThreads(RequestThreads requestThreads) {
+		m_requestThreads = requestThreads;
+	}
+
+	/**
+	 * Include the memory budget and heap usage
+	 */
+	void setMemory(MemoryBudget budget, HeapMonitor heap) {
+		m_budget = budget;
+		m_heap = heap;
+	}
+
+	/**
+	 * Start tracking a request. The returned object records the rest of the
+	 * request's metrics, and is also attached to the request for later
+	 * retrieval with RequestStats.get().
+	 */
+	public RequestStats startRequest(Request request, String path) {
+		m_inFlight.incrementAndGet();
+		RequestStats stats = new RequestStats(this, getPathLabel(path));
+		stats.attach(request);
+		return stats;
+	}
+
+	void endRequest(String pathLabel, int status, long outputBytes) {
+		m_inFlight.decrementAndGet();
+		m_outputBytes.addAndGet(outputBytes);
+		String key = pathLabel + "\",status=\"" + status;
+		AtomicLong count = m_requests.get(key);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = m_requests.putIfAbsent(key, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	void addInputBytes(long bytes) {
+		m_inputBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Record a document which had no markup, and so wasn't parsed
+	 */
+	void addPlainText() {
+		m_plainText.incrementAndGet();
+	}
+
+	/**
+	 * Count a depuration which was stopped by one of its limits
+	 *
+	 * @param code The code of the limit, from DepurateLimits.ExceededException
+	 */
+	void addLimitExceeded(String code) {
+		if (DepurateLimits.ExceededException.TIME.equals(code)) {
+			m_timeLimited.incrementAndGet();
+		} else if (DepurateLimits.ExceededException.DEPTH.equals(code)) {
+			m_depthLimited.incrementAndGet();
+		} else {
+			m_outputLimited.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the decoding of part of a compressed request body
+	 */
+	void addDecodedRequestBytes(long compressed, long decoded) {
+		m_requestBytesSaved.addAndGet(decoded - compressed);
+	}
+
+	/**
+	 * Record the start of a request with a compressed body
+	 */
+	void addCompressedRequest() {
+		m_compressedRequests.incrementAndGet();
+	}
+
+	void addCompressedResponse(long uncompressed, long compressed) {
+		m_compressedResponses.incrementAndGet();
+		m_responseBytesSaved.addAndGet(uncompressed - compressed);
+	}
+
+	private static String getPathLabel(String path) {
+		for (String known : PATHS) {
+			if (known.equals(path)) {
+				return known;
+			}
+		}
+		return "other";
+	}
+
+	/**
+	 * Get a probe to be registered with the Grizzly worker thread pool
+	 */
+	public ThreadPoolProbe getWorkerPoolProbe() {
+		return m_workerProbe;
+	}
+
+	/**
+	 * Get all metrics in the Prometheus text format
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+
+		header(sb, "depurate_requests_total", "counter",
+				"Requests completed, by path and status");
+		// Sorted so that the output is stable between scrapes
+		for (Map.Entry<String, AtomicLong> entry :
+				new TreeMap<String, AtomicLong>(m_requests).entrySet()) {
+			sb.append("depurate_requests_total{path=\"").append(entry.getKey())
+				.append("\"} ").append(entry.getValue().get()).append('\n');
+		}
+		gauge(sb, "depurate_requests_in_flight",
+				"Requests received and not yet completed", m_inFlight.get());
+		RequestThreads requestThreads = m_requestThreads;
+		counter(sb, "depurate_rejected_total",
+				"Requests rejected because the server was too busy",
+				m_executor.getRejectedCount() + (requestThreads == null
+					? 0 : requestThreads.getRejectedCount()));
+		counter(sb, "depurate_input_bytes_total",
+				"Bytes of HTML input received", m_inputBytes.get());
+		counter(sb, "depurate_output_bytes_total",
+				"Bytes of depurated output sent", m_outputBytes.get());
+		counter(sb, "depurate_plain_text_total",
+				"Documents with no markup, which were written without parsing",
+				m_plainText.get());
+
+		header(sb, "depurate_limit_exceeded_total", "counter",
+				"Depurations stopped for exceeding a limit, by limit");
+		sb.append("depurate_limit_exceeded_total{limit=\"time\"} ")
+			.append(m_timeLimited.get()).append('\n');
+		sb.append("depurate_limit_exceeded_total{limit=\"depth\"} ")
+			.append(m_depthLimited.get()).append('\n');
+		sb.append("depurate_limit_exceeded_total{limit=\"output\"} ")
+			.append(m_outputLimited.get()).append('\n');
+
+		counter(sb, "depurate_compressed_requests_total",
+				"Requests with a compressed body", m_compressedRequests.get());
+		counter(sb, "depurate_compressed_responses_total",
+				"Responses sent compressed", m_compressedResponses.get());
+		header(sb, "depurate_compression_saved_bytes_total", "counter",
+				"Bytes not sent over the network thanks to compression");
+		sb.append("depurate_compression_saved_bytes_total{direction=\"request\"} ")
+			.append(m_requestBytesSaved.get()).append('\n');
+		sb.append("depurate_compression_saved_bytes_total{direction=\"response\"} ")
+			.append(m_responseBytesSaved.get()).append('\n');
+
+		bodyRead.writeTo(sb, "depurate_body_read_seconds",
+				"Time from the start of a request until its input was received");
+		m_executor.getQueueWait().writeTo(sb, "depurate_queue_wait_seconds",
+				"Time tasks spent waiting for a depuration thread");
+		depurate.writeTo(sb, "depurate_depurate_seconds",
+				"Time spent parsing and serializing a document");
+		responseWrite.writeTo(sb, "depurate_response_write_seconds",
+				"Time from the end of depuration until the response was complete");
+
+		gauge(sb, "depurate_threads", "Size of the depuration thread pool",
+				m_executor.getThreadCount());
+		gauge(sb, "depurate_threads_busy", "Depuration threads in use",
+				m_executor.getActiveCount());
+		gauge(sb, "depurate_queue_depth",
+				"Tasks waiting for a depuration thread",
+				m_executor.getQueueDepth());
+
+		if (requestThreads != null) {
+			gauge(sb, "depurate_request_threads",
+					"Requests in progress on threads of their own",
+					requestThreads.getActiveCount());
+		}
+
+		MemoryBudget budget = m_budget;
+		HeapMonitor heap = m_heap;
+		if (budget != null) {
+			gauge(sb, "depurate_memory_budget_bytes",
+					"Bytes which requests may reserve in total, or 0 for no limit",
+					budget.getMax());
+			gauge(sb, "depurate_memory_reserved_bytes",
+					"Bytes reserved by requests in progress", budget.getUsed());
+			gauge(sb, "depurate_heap_used_percent",
+					"Usage of the tenured heap pool after the last collection, " +
+					"or -1 if it is not known",
+					heap.getUsedPercent());
+			header(sb, "depurate_shed_total", "counter",
+					"Requests rejected for want of memory, by reason");
+			sb.append("depurate_shed_total{reason=\"budget\"} ")
+				.append(budget.getRejectedCount()).append('\n');
+			sb.append("depurate_shed_total{reason=\"heap\"} ")
+				.append(heap.getShedCount()).append('\n');
+		}
+
+		BufferPool pool = BufferPool.get();
+		counter(sb, "depurate_buffer_pool_hits_total",
+				"Buffers taken from the pool which reused a free array",
+				pool.getHitCount());
+		counter(sb, "depurate_buffer_pool_misses_total",
+				"Buffers taken from the pool which had to be allocated",
+				pool.getMissCount());
+		gauge(sb, "depurate_buffer_pool_bytes",
+				"Bytes held in free arrays by the buffer pool", pool.getHeldBytes());
+		gauge(sb, "depurate_buffer_pool_outstanding",
+				"Buffers taken from the pool and not yet given back",
+				pool.getOutstanding());
+
+		gauge(sb, "grizzly_worker_threads_max",
+				"Maximum size of the Grizzly worker thread pool",
+				m_workerProbe.m_maxThreads);
+		gauge(sb, "grizzly_worker_threads",
+				"Threads in the Grizzly worker thread pool",
+				m_workerProbe.m_threads.get());
+		gauge(sb, "grizzly_worker_threads_busy",
+				"Grizzly worker threads running a task",
+				m_workerProbe.m_busy.get());
+		gauge(sb, "grizzly_worker_queue_depth",
+				"Tasks waiting for a Grizzly worker thread",
+				// A task can be taken by a worker before its queue event
+				// is counted
+				Math.max(0, m_workerProbe.m_queued.get()));
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String type,
+			String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void counter(StringBuilder sb, String name, String help,
+			long value) {
+		header(sb, name, "counter", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help,
+			long value) {
+		header(sb, name, "gauge", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Tracks the utilisation of the Grizzly worker thread pool, which reads
+	 * requests and writes responses
+	 */
+	private static class WorkerPoolProbe implements ThreadPoolProbe {
+		volatile int m_maxThreads = 0;
+		final AtomicInteger m_threads = new AtomicInteger();
+		final AtomicInteger m_busy = new AtomicInteger();
+		final AtomicInteger m_queued = new AtomicInteger();
+
+		public void onThreadPoolStartEvent(AbstractThreadPool pool) {
+			m_maxThreads = pool.getConfig().getMaxPoolSize();
+		}
+
+		public void onThreadPoolStopEvent(AbstractThreadPool pool) {
+		}
+
+		public void onThreadAllocateEvent(AbstractThreadPool pool, Thread thread) {
+			m_threads.incrementAndGet();
+		}
+
+		public void onThreadReleaseEvent(AbstractThreadPool pool, Thread thread) {
+			m_threads.decrementAndGet();
+		}
+
+		public void onMaxNumberOfThreadsEvent(AbstractThreadPool pool,
+				int maxNumberOfThreads) {
+		}
+
+		public void onTaskQueueEvent(AbstractThreadPool pool, Runnable task) {
+			m_queued.incrementAndGet();
+		}
+
+		public void onTaskDequeueEvent(AbstractThreadPool pool, Runnable task) {
+			m_queued.decrementAndGet();
+			m_busy.incrementAndGet();
+		}
+
+		public void onTaskCancelEvent(AbstractThreadPool pool, Runnable task) {
+			m_queued.decrementAndGet();
+		}
+
+		public void onTaskCompleteEvent(AbstractThreadPool pool, Runnable task) {
+			m_busy.decrementAndGet();
+		}
+
+		public void onTaskQueueOverflowEvent(AbstractThreadPool pool) {
+		}
+	}
+}
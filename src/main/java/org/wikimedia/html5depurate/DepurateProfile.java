@@ -0,0 +1,164 @@
+package org.wikimedia.html5depurate;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Timings and counts for a single depuration, collected by sitting between
+ * the parser and the serializer.
+ *
+ * The parser builds the whole tree before it sends any events, so the time
+ * until setDocumentLocator(), which starts the walk of the tree, is the time
+ * spent tokenizing and building the tree, and the rest is the time spent
+ * walking the tree and serializing it. A fragment has no startDocument().
+ *
+ * This adds a call to every event, so it is only used when a client asks
+ * for the timings.
+ */
+class DepurateProfile implements ContentHandler, LexicalHandler {
+	private ContentHandler m_handler;
+	private LexicalHandler m_lexicalHandler;
+
+	private long m_start;
+	private long m_serializeStart = 0;
+	private long m_end;
+
+	private int m_depth = 0;
+	private int m_maxDepth = 0;
+	private int m_elementCount = 0;
+
+	/**
+	 * Pass events on to the given serializer
+	 */
+	void setHandler(ContentHandler handler, LexicalHandler lexicalHandler) {
+		m_handler = handler;
+		m_lexicalHandler = lexicalHandler;
+	}
+
+	/**
+	 * Record the start of parsing, at the given System.nanoTime()
+	 */
+	void start(long nanos) {
+		m_start = nanos;
+	}
+
+	/**
+	 * Record the end of serialization
+	 */
+	void end() {
+		m_end = System.nanoTime();
+		if (m_serializeStart == 0) {
+			m_serializeStart = m_end;
+		}
+	}
+
+	/**
+	 * Get the time spent tokenizing and building the tree, in nanoseconds
+	 */
+	public long getParseTime() {
+		return m_serializeStart - m_start;
+	}
+
+	/**
+	 * Get the time spent serializing the tree, in nanoseconds
+	 */
+	public long getSerializeTime() {
+		return m_end - m_serializeStart;
+	}
+
+	public int getMaxDepth() {
+		return m_maxDepth;
+	}
+
+	public int getElementCount() {
+		return m_elementCount;
+	}
+
+	public void startDocument() throws SAXException {
+		m_handler.startDocument();
+	}
+
+	public void endDocument() throws SAXException {
+		m_handler.endDocument();
+	}
+
+	public void startElement(String uri, String localName, String qName,
+			Attributes atts) throws SAXException {
+		m_elementCount++;
+		if (++m_depth > m_maxDepth) {
+			m_maxDepth = m_depth;
+		}
+		m_handler.startElement(uri, localName, qName, atts);
+	}
+
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+		m_depth--;
+		m_handler.endElement(uri, localName, qName);
+	}
+
+	public void characters(char[] ch, int start, int length)
+			throws SAXException {
+		m_handler.characters(ch, start, length);
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int length)
+			throws SAXException {
+		m_handler.ignorableWhitespace(ch, start, length);
+	}
+
+	public void processingInstruction(String target, String data)
+			throws SAXException {
+		m_handler.processingInstruction(target, data);
+	}
+
+	public void setDocumentLocator(Locator locator) {
+		m_serializeStart = System.nanoTime();
+		m_handler.setDocumentLocator(locator);
+	}
+
+	public void skippedEntity(String name) throws SAXException {
+		m_handler.skippedEntity(name);
+	}
+
+	public void startPrefixMapping(String prefix, String uri)
+			throws SAXException {
+		m_handler.startPrefixMapping(prefix, uri);
+	}
+
+	public void endPrefixMapping(String prefix) throws SAXException {
+		m_handler.endPrefixMapping(prefix);
+	}
+
+	public void comment(char[] ch, int start, int length) throws SAXException {
+		m_lexicalHandler.comment(ch, start, length);
+	}
+
+	public void startCDATA() throws SAXException {
+		m_lexicalHandler.startCDATA();
+	}
+
+	public void endCDATA() throws SAXException {
+		m_lexicalHandler.endCDATA();
+	}
+
+	public void startDTD(String name, String publicId, String systemId)
+			throws SAXException {
+		m_lexicalHandler.startDTD(name, publicId, systemId);
+	}
+
+	public void endDTD() throws SAXException {
+		m_lexicalHandler.endDTD();
+	}
+
+	public void startEntity(String name) throws SAXException {
+		m_lexicalHandler.startEntity(name);
+	}
+
+	public void endEntity(String name) throws SAXException {
+		m_lexicalHandler.endEntity(name);
+	}
+}
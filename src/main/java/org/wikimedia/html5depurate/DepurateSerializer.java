@@ -31,19 +31,26 @@
  *
  *  - &nbsp; is replaced with &#160;
  *
- *  - Added getOutputStream(), setOutputStream(), write() to support
- *    CompatibiltySerializer.
+ *  - Added getOutputStream(), setOutputStream(), write() and flush() to
+ *    support CompatibiltySerializer.
+ *
+ *  - Output is encoded to UTF-8 directly into a reusable byte buffer, instead
+ *    of going through an OutputStreamWriter one char at a time. Runs of
+ *    characters that need no escaping are copied in bulk, and escape
+ *    sequences are precomputed. The output stream is flushed, not closed, by
+ *    endDocument().
+ *
+ *  - The void, non-escaping and newline-after-start element lists are
+ *    looked up in ElementFlags, once per start tag.
+ *
+ *  - Optional DepurateLimits, which are checked as elements and text are
+ *    received and as output is flushed.
  */
 
 package org.wikimedia.html5depurate;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.util.Arrays;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
@@ -52,20 +59,50 @@ import org.xml.sax.SAXException;
 import org.xml.sax.ext.LexicalHandler;
 public class DepurateSerializer implements ContentHandler, LexicalHandler {
 
-	private static final String[] VOID_ELEMENTS = { "area", "base", "basefont",
-			"bgsound", "br", "col", "command", "embed", "frame", "hr", "img",
-			"input", "keygen", "link", "meta", "param", "source", "track",
-			"wbr" };
-
-	private static final String[] NON_ESCAPING = { "iframe", "noembed",
-			"noframes", "noscript", "plaintext", "script", "style", "xmp" };
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The longest byte sequence written for a single char: an escape such as
+	 * &amp;quot; or a surrogate pair encoded as UTF-8
+	 */
+	private static final int MAX_SEQUENCE = 6;
+
+	/**
+	 * The largest scratch array that is kept by reset()
+	 */
+	private static final int MAX_RETAINED_CHARS = 8192;
+
+	/**
+	 * Escape tables, indexed by char, covering U+0000 to U+00A0. A null entry
+	 * means the char is written as it is.
+	 */
+	private static final byte[][] TEXT_ESCAPES = new byte[0xA1][];
+	private static final byte[][] ATTRIBUTE_ESCAPES = new byte[0xA1][];
+	private static final byte[][] NO_ESCAPES = new byte[0xA1][];
+
+	static {
+		TEXT_ESCAPES['<'] = ascii("&lt;");
+		TEXT_ESCAPES['>'] = ascii("&gt;");
+		TEXT_ESCAPES['&'] = ascii("&amp;");
+		TEXT_ESCAPES['\u00A0'] = ascii("&#160;");
+		ATTRIBUTE_ESCAPES['"'] = ascii("&quot;");
+		ATTRIBUTE_ESCAPES['&'] = ascii("&amp;");
+		ATTRIBUTE_ESCAPES['\u00A0'] = ascii("&nbsp;");
+	}
 
-	private static Writer wrap(OutputStream out) {
-		try {
-			return new OutputStreamWriter(out, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+	private static final byte[] DOCTYPE = ascii("<!DOCTYPE html>\n");
+	private static final byte[] VOID_END = ascii(" />");
+	private static final byte[] COMMENT_START = ascii("<!--");
+	private static final byte[] COMMENT_END = ascii("-->");
+	private static final byte[] XLINK_PREFIX = ascii(" xlink:");
+	private static final byte[] XML_PREFIX = ascii(" xml:");
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)s.charAt(i);
 		}
+		return bytes;
 	}
 
 	private int ignoreLevel = 0;
@@ -73,71 +110,250 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 	private int escapeLevel = 0;
 
 	private OutputStream outputStream;
-	private Writer writer;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int pos = 0;
+
+	/**
+	 * Scratch space for encoding strings
+	 */
+	private char[] chars = new char[256];
+
+	/**
+	 * A high surrogate at the end of the previous write, which may be paired
+	 * with a low surrogate at the start of the next one
+	 */
+	private char pendingSurrogate = 0;
+
+	private DepurateLimits limits = null;
+
+	/** The element depth, counted only while there are limits */
+	private int depth = 0;
 
 	public DepurateSerializer(OutputStream out) {
 		outputStream = out;
-		this.writer = wrap(out);
+	}
+
+	/**
+	 * Discard any unwritten output and state left over from a previous
+	 * document, and start writing to the given stream
+	 */
+	public void reset(OutputStream out) {
+		outputStream = out;
+		ignoreLevel = 0;
+		escapeLevel = 0;
+		pos = 0;
+		pendingSurrogate = 0;
+		limits = null;
+		depth = 0;
+		if (chars.length > MAX_RETAINED_CHARS) {
+			chars = new char[256];
+		}
+	}
+
+	/**
+	 * Check the given limits for the rest of the document, until the next
+	 * reset()
+	 */
+	public void setLimits(DepurateLimits limits_) {
+		limits = limits_;
 	}
 
 	public OutputStream getOutputStream() throws SAXException {
 		try {
-			writer.flush();
+			flushBuffer();
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
 		return outputStream;
 	}
 
-	public void setOutputStream(OutputStream out) throws RuntimeException {
+	public void setOutputStream(OutputStream out) throws SAXException {
+		try {
+			flushBuffer();
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
 		outputStream = out;
-		writer = wrap(out);
 	}
 
 	public void write(String s) throws SAXException {
 		try {
-			writer.write(s);
-			writer.flush();
+			writeString(s, NO_ESCAPES);
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
 	}
 
-	public void writeStream(ByteArrayOutputStream s) throws SAXException {
+	/**
+	 * Send everything written so far to the output stream
+	 */
+	public void flush() throws SAXException {
 		try {
-			writer.flush();
-			s.writeTo(outputStream);
+			flushBuffer();
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
 	}
 
+	/**
+	 * Send the buffered bytes to the output stream
+	 */
+	private void flushBuffer() throws IOException {
+		resolveSurrogate();
+		if (pos > 0) {
+			if (limits != null) {
+				try {
+					limits.addOutput(pos);
+				} catch (DepurateLimits.ExceededException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+			outputStream.write(buffer, 0, pos);
+			pos = 0;
+		}
+	}
+
+	/**
+	 * Make sure that the buffer has room for at least MAX_SEQUENCE bytes
+	 */
+	private void reserve() throws IOException {
+		if (buffer.length - pos < MAX_SEQUENCE) {
+			flushBuffer();
+		}
+	}
+
+	/**
+	 * Deal with a high surrogate left over from a previous write, when
+	 * something other than its low surrogate is written next, or the buffer
+	 * is flushed. An unpaired surrogate is replaced with '?', like
+	 * OutputStreamWriter does.
+	 */
+	private void resolveSurrogate() throws IOException {
+		if (pendingSurrogate != 0) {
+			pendingSurrogate = 0;
+			if (pos == buffer.length) {
+				outputStream.write(buffer, 0, pos);
+				pos = 0;
+			}
+			buffer[pos++] = '?';
+		}
+	}
+
+	private void writeByte(int b) throws IOException {
+		resolveSurrogate();
+		if (pos == buffer.length) {
+			flushBuffer();
+		}
+		buffer[pos++] = (byte)b;
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException {
+		resolveSurrogate();
+		if (buffer.length - pos < bytes.length) {
+			flushBuffer();
+		}
+		System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	private void writeString(String s, byte[][] escapes) throws IOException {
+		int length = s.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		s.getChars(0, length, chars, 0);
+		writeChars(chars, 0, length, escapes);
+	}
+
+	/**
+	 * Encode chars as UTF-8, replacing any which have an entry in the escape
+	 * table.
+	 */
+	private void writeChars(char[] ch, int start, int end, byte[][] escapes)
+			throws IOException {
+		int i = start;
+		if (pendingSurrogate != 0) {
+			if (i < end && Character.isLowSurrogate(ch[i])) {
+				char high = pendingSurrogate;
+				pendingSurrogate = 0;
+				reserve();
+				pos = encodePair(high, ch[i], pos);
+				i++;
+			} else {
+				resolveSurrogate();
+			}
+		}
+		byte[] b = buffer;
+		while (i < end) {
+			if (b.length - pos <= MAX_SEQUENCE) {
+				flushBuffer();
+			}
+			// Copy a run of ASCII which needs no escaping, leaving enough room
+			// for one sequence after it
+			int p = pos;
+			int runEnd = Math.min(end, i + b.length - p - MAX_SEQUENCE);
+			char c = 0;
+			while (i < runEnd) {
+				c = ch[i];
+				if (c >= 0x80 || escapes[c] != null) {
+					break;
+				}
+				b[p++] = (byte)c;
+				i++;
+			}
+			if (i == runEnd) {
+				pos = p;
+				continue;
+			}
+			i++;
+			if (c <= 0xA0 && escapes[c] != null) {
+				byte[] escape = escapes[c];
+				System.arraycopy(escape, 0, b, p, escape.length);
+				p += escape.length;
+			} else if (c < 0x800) {
+				b[p++] = (byte)(0xC0 | (c >> 6));
+				b[p++] = (byte)(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				if (i == end) {
+					pendingSurrogate = c;
+				} else if (Character.isLowSurrogate(ch[i])) {
+					p = encodePair(c, ch[i], p);
+					i++;
+				} else {
+					b[p++] = '?';
+				}
+			} else if (Character.isLowSurrogate(c)) {
+				b[p++] = '?';
+			} else {
+				b[p++] = (byte)(0xE0 | (c >> 12));
+				b[p++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				b[p++] = (byte)(0x80 | (c & 0x3F));
+			}
+			pos = p;
+		}
+	}
+
+	private int encodePair(char high, char low, int p) {
+		int cp = Character.toCodePoint(high, low);
+		buffer[p++] = (byte)(0xF0 | (cp >> 18));
+		buffer[p++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+		buffer[p++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+		buffer[p++] = (byte)(0x80 | (cp & 0x3F));
+		return p;
+	}
+
 	public void characters(char[] ch, int start, int length)
 			throws SAXException {
+		if (limits != null) {
+			limits.checkTime();
+		}
 		try {
 			if (escapeLevel > 0) {
-				writer.write(ch, start, length);
+				writeChars(ch, start, start + length, NO_ESCAPES);
 			} else {
-				for (int i = start; i < start + length; i++) {
-					char c = ch[i];
-					switch (c) {
-						case '<':
-							writer.write("&lt;");
-							break;
-						case '>':
-							writer.write("&gt;");
-							break;
-						case '&':
-							writer.write("&amp;");
-							break;
-						case '\u00A0':
-							writer.write("&#160;");
-							break;
-						default:
-							writer.write(c);
-							break;
-					}
-				}
+				writeChars(ch, start, start + length, TEXT_ESCAPES);
 			}
 		} catch (IOException e) {
 			throw new SAXException(e);
@@ -146,8 +362,8 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 
 	public void endDocument() throws SAXException {
 		try {
-			writer.flush();
-			writer.close();
+			flushBuffer();
+			outputStream.flush();
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
@@ -155,6 +371,9 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 
 	public void endElement(String uri, String localName, String qName)
 			throws SAXException {
+		if (limits != null) {
+			depth--;
+		}
 		if (escapeLevel > 0) {
 			escapeLevel--;
 		}
@@ -162,10 +381,10 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 			ignoreLevel--;
 		} else {
 			try {
-				writer.write('<');
-				writer.write('/');
-				writer.write(localName);
-				writer.write('>');
+				writeByte('<');
+				writeByte('/');
+				writeString(localName, NO_ESCAPES);
+				writeByte('>');
 			} catch (IOException e) {
 				throw new SAXException(e);
 			}
@@ -186,7 +405,7 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 
 	public void startDocument() throws SAXException {
 		try {
-			writer.write("<!DOCTYPE html>\n");
+			writeBytes(DOCTYPE);
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
@@ -194,6 +413,10 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 
 	public void startElement(String uri, String localName, String qName,
 			Attributes atts) throws SAXException {
+		if (limits != null) {
+			limits.checkDepth(++depth);
+			limits.checkTime();
+		}
 		if (escapeLevel > 0) {
 			escapeLevel++;
 		}
@@ -204,65 +427,48 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 			return;
 		}
 		try {
-			writer.write('<');
-			writer.write(localName);
+			writeByte('<');
+			writeString(localName, NO_ESCAPES);
 			for (int i = 0; i < atts.getLength(); i++) {
 				String attUri = atts.getURI(i);
 				String attLocal = atts.getLocalName(i);
 				if (attUri.length() == 0) {
-					writer.write(' ');
+					writeByte(' ');
 				} else if (!xhtml
 						&& "http://www.w3.org/1999/xlink".equals(attUri)) {
-					writer.write(" xlink:");
+					writeBytes(XLINK_PREFIX);
 				} else if ("http://www.w3.org/XML/1998/namespace".equals(attUri)) {
 					if (xhtml) {
 						if ("lang".equals(attLocal)) {
-							writer.write(' ');
+							writeByte(' ');
 						} else {
 							continue;
 						}
 					} else {
-						writer.write(" xml:");
+						writeBytes(XML_PREFIX);
 					}
 				} else {
 					continue;
 				}
-				writer.write(atts.getLocalName(i));
-				writer.write('=');
-				writer.write('"');
-				String val = atts.getValue(i);
-				for (int j = 0; j < val.length(); j++) {
-					char c = val.charAt(j);
-					switch (c) {
-						case '"':
-							writer.write("&quot;");
-							break;
-						case '&':
-							writer.write("&amp;");
-							break;
-						case '\u00A0':
-							writer.write("&nbsp;");
-							break;
-						default:
-							writer.write(c);
-							break;
-					}
-				}
-				writer.write('"');
+				writeString(attLocal, NO_ESCAPES);
+				writeByte('=');
+				writeByte('"');
+				writeString(atts.getValue(i), ATTRIBUTE_ESCAPES);
+				writeByte('"');
 			}
-			if (Arrays.binarySearch(VOID_ELEMENTS, localName) > -1) {
-				writer.write(" />");
+			int flags = ElementFlags.get(localName);
+			if ((flags & ElementFlags.VOID) != 0) {
+				writeBytes(VOID_END);
 				ignoreLevel++;
 				return;
 			} else {
-				writer.write('>');
+				writeByte('>');
 			}
-			if ("pre".equals(localName) || "textarea".equals(localName)
-					|| "listing".equals(localName)) {
-				writer.write('\n');
+			if ((flags & ElementFlags.NEWLINE_AFTER_START) != 0) {
+				writeByte('\n');
 			}
 			if (escapeLevel == 0
-					&& Arrays.binarySearch(NON_ESCAPING, localName) > -1) {
+					&& (flags & ElementFlags.NON_ESCAPING) != 0) {
 				escapeLevel = 1;
 			}
 		} catch (IOException e) {
@@ -275,9 +481,9 @@ public class DepurateSerializer implements ContentHandler, LexicalHandler {
 			return;
 		}
 		try {
-			writer.write("<!--");
-			writer.write(ch, start, length);
-			writer.write("-->");
+			writeBytes(COMMENT_START);
+			writeChars(ch, start, start + length, NO_ESCAPES);
+			writeBytes(COMMENT_END);
 		} catch (IOException e) {
 			throw new SAXException(e);
 		}
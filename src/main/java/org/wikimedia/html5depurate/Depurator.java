@@ -1,31 +1,223 @@
 package org.wikimedia.html5depurate;
 
-import nu.validator.htmlparser.common.XmlViolationPolicy;
-import nu.validator.htmlparser.sax.HtmlParser;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.ContentHandler;
 
 
 class Depurator {
+	/**
+	 * Each thread keeps its own parser and serializers, since they are
+	 * relatively expensive to set up and most documents are small.
+	 */
+	private static final ThreadLocal<DepurateContext> s_context =
+		new ThreadLocal<DepurateContext>() {
+			@Override
+			protected DepurateContext initialValue() {
+				return new DepurateContext();
+			}
+		};
+
+	/**
+	 * Contexts for virtual threads. A virtual thread only ever runs one
+	 * request, so a context kept for it would never be used again. Instead
+	 * they share the idle contexts in this pool, which holds no more than a
+	 * few per processor.
+	 */
+	private static final ArrayBlockingQueue<DepurateContext> s_pool =
+		new ArrayBlockingQueue<DepurateContext>(
+				Runtime.getRuntime().availableProcessors() * 2);
+
+	/** Thread.isVirtual(), looked up by reflection for older JVMs */
+	private static final Method s_isVirtual = findIsVirtual();
+
 	public static byte[] depurate(InputSource source, boolean compat)
 		throws SAXException, IOException
 	{
-		ByteArrayOutputStream sink = new ByteArrayOutputStream();
-		ContentHandler serializer;
-		if (compat) {
-			serializer = new CompatibilitySerializer(sink);
+		return depurate(source, compat, false);
+	}
+
+	public static byte[] depurate(InputSource source, boolean compat,
+			boolean fragment)
+		throws SAXException, IOException
+	{
+		return depurate(source, compat, fragment, null);
+	}
+
+	/**
+	 * Depurate the input into a byte array, as a whole document or as the
+	 * contents of a body element, within the given limits if any
+	 */
+	public static byte[] depurate(InputSource source, boolean compat,
+			boolean fragment, DepurateLimits limits)
+		throws SAXException, IOException
+	{
+		PooledOutputStream sink = new PooledOutputStream();
+		try {
+			depurate(source, sink, compat, fragment, null, limits);
+			return sink.toByteArray();
+		} finally {
+			sink.release();
+		}
+	}
+
+	/**
+	 * Write the output for input with no markup, without parsing it
+	 */
+	public static void depurate(PlainText text, OutputStream sink,
+			boolean compat, boolean fragment)
+		throws SAXException
+	{
+		depurate(text, sink, compat, fragment, null);
+	}
+
+	public static void depurate(PlainText text, OutputStream sink,
+			boolean compat, boolean fragment, DepurateLimits limits)
+		throws SAXException
+	{
+		DepurateContext context = takeContext();
+		try {
+			context.depurate(text, sink, compat, fragment, limits);
+		} finally {
+			giveContext(context);
+		}
+	}
+
+	/**
+	 * Depurate the input, writing the output to the sink as it is produced
+	 * rather than collecting the whole document first.
+	 */
+	public static void depurate(InputSource source, OutputStream sink,
+			boolean compat)
+		throws SAXException, IOException
+	{
+		depurate(source, sink, compat, false, null, null);
+	}
+
+	/**
+	 * Depurate the input into the sink, filling in the profile with timings
+	 * and counts if one is given. With fragment set, the input is parsed as
+	 * the contents of a body element, and only those contents are written.
+	 * If limits are given and exceeded, the depuration is stopped with a
+	 * DepurateLimits.ExceededException.
+	 */
+	public static void depurate(InputSource source, OutputStream sink,
+			boolean compat, boolean fragment, DepurateProfile profile,
+			DepurateLimits limits)
+		throws SAXException, IOException
+	{
+		DepurateContext context = takeContext();
+		try {
+			context.depurate(source, sink, compat, fragment, profile, limits);
+		} finally {
+			giveContext(context);
+		}
+	}
+
+	/**
+	 * Finish parsing input which was fed to a PushParser, and write the
+	 * depurated output to the sink
+	 */
+	public static void depurate(PushParser parser, OutputStream sink,
+			boolean compat)
+		throws SAXException
+	{
+		depurate(parser, sink, compat, null, null);
+	}
+
+	/**
+	 * Finish a push parse, filling in the profile with timings and counts
+	 * if one is given, and checking the limits if they are given. The
+	 * profile's start time should already have been set.
+	 */
+	public static void depurate(PushParser parser, OutputStream sink,
+			boolean compat, DepurateProfile profile, DepurateLimits limits)
+		throws SAXException
+	{
+		DepurateContext context = takeContext();
+		try {
+			context.depurate(parser, sink, compat, profile, limits);
+		} finally {
+			giveContext(context);
+		}
+	}
+
+	/**
+	 * Get a push parser for a new document, reusing one which an earlier
+	 * push parse on this thread gave back. It should be given back with
+	 * release() once the document has been finished or abandoned.
+	 */
+	public static PushParser newPushParser(boolean fragment)
+		throws SAXException
+	{
+		DepurateContext context = takeContext();
+		try {
+			return context.takePushParser(fragment);
+		} finally {
+			giveContext(context);
+		}
+	}
+
+	/**
+	 * Give back a push parser which is no longer needed, abandoning its
+	 * document if it has not been finished
+	 */
+	public static void release(PushParser parser) {
+		DepurateContext context = takeContext();
+		context.givePushParser(parser);
+		giveContext(context);
+	}
+
+	/**
+	 * Get a context which isn't in use: the thread's own, or one from the
+	 * pool on a virtual thread. It should be given back with giveContext().
+	 */
+	private static DepurateContext takeContext() {
+		DepurateContext context;
+		if (isVirtualThread()) {
+			context = s_pool.poll();
 		} else {
-			serializer = new DepurateSerializer(sink);
-		}
-		HtmlParser parser = new HtmlParser(XmlViolationPolicy.ALLOW);
-		parser.setContentHandler(serializer);
-		parser.setProperty("http://xml.org/sax/properties/lexical-handler",
-				serializer);
-		parser.parse(source);
-		return sink.toByteArray();
+			context = s_context.get();
+			if (context.isBusy()) {
+				// Called from within a depuration on this thread, for
+				// instance by an output stream. Don't disturb the context in
+				// use.
+				context = null;
+			}
+		}
+		return context == null ? new DepurateContext() : context;
+	}
+
+	/**
+	 * Give back a context from takeContext(). On a virtual thread it goes
+	 * back to the pool, or is dropped if the pool is full; a thread's own
+	 * context just stays where it is.
+	 */
+	private static void giveContext(DepurateContext context) {
+		if (isVirtualThread()) {
+			s_pool.offer(context);
+		}
+	}
+
+	private static Method findIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static boolean isVirtualThread() {
+		if (s_isVirtual == null) {
+			return false;
+		}
+		try {
+			return (Boolean)s_isVirtual.invoke(Thread.currentThread());
+		} catch (Exception e) {
+			return false;
+		}
 	}
 }
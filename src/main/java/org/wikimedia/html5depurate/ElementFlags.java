@@ -0,0 +1,87 @@
+package org.wikimedia.html5depurate;
+
+/**
+ * The properties of element names which the serializers act on, looked up
+ * once per element instead of by searching a list for each property.
+ *
+ * The parser interns the local names it reports, and the names here are
+ * literals, so a lookup usually ends with an identity comparison. Names
+ * which aren't interned still work, through equals().
+ */
+final class ElementFlags {
+	/** Phrasing content, which the compatibility serializer p-wraps */
+	static final int INLINE = 1;
+	/** Void elements, written with " />" and no end tag */
+	static final int VOID = 2;
+	/** Elements whose text is written without escaping */
+	static final int NON_ESCAPING = 4;
+	/** Elements given an mw-empty-elt class when they are empty */
+	static final int MARKED_EMPTY = 8;
+	/** Elements whose inline contents are p-wrapped */
+	static final int P_WRAPPING = 16;
+	/** Elements whose start tag is followed by a newline */
+	static final int NEWLINE_AFTER_START = 32;
+	/** The document skeleton, html, head and body */
+	static final int SKELETON = 64;
+	/** The proposed p element which the compatibility serializer inserts */
+	static final int P_WRAPPER = 128;
+
+	/** The name of the proposed p element */
+	static final String P_WRAPPER_NAME = "mw:p-wrap";
+
+	/** Open addressing, with room to keep the chains short */
+	private static final int TABLE_SIZE = 256;
+	private static final String[] s_names = new String[TABLE_SIZE];
+	private static final int[] s_flags = new int[TABLE_SIZE];
+
+	static {
+		add(INLINE, "a", "abbr", "acronym", "applet", "b", "basefont", "bdo",
+			"big", "br", "button", "cite", "code", "dfn", "em", "font", "i",
+			"iframe", "img", "input", "kbd", "label", "legend", "map",
+			"object", "param", "q", "rb", "rbc", "rp", "rt", "rtc", "ruby",
+			"s", "samp", "select", "small", "span", "strike", "strong", "sub",
+			"sup", "textarea", "tt", "u", "var");
+		add(VOID, "area", "base", "basefont", "bgsound", "br", "col",
+			"command", "embed", "frame", "hr", "img", "input", "keygen", "link",
+			"meta", "param", "source", "track", "wbr");
+		add(NON_ESCAPING, "iframe", "noembed", "noframes", "noscript",
+			"plaintext", "script", "style", "xmp");
+		add(MARKED_EMPTY, "li", "p", "tr");
+		add(P_WRAPPING, "body", "blockquote");
+		add(NEWLINE_AFTER_START, "pre", "textarea", "listing");
+		add(SKELETON, "html", "head", "body");
+		add(P_WRAPPER, P_WRAPPER_NAME);
+	}
+
+	private ElementFlags() {
+	}
+
+	private static void add(int flag, String... names) {
+		for (String name : names) {
+			int i = slot(name);
+			s_names[i] = name;
+			s_flags[i] |= flag;
+		}
+	}
+
+	/**
+	 * Find the slot which holds a name, or the empty slot where it would go
+	 */
+	private static int slot(String name) {
+		int i = name.hashCode() & (TABLE_SIZE - 1);
+		for (;;) {
+			String entry = s_names[i];
+			if (entry == null || entry == name || entry.equals(name)) {
+				return i;
+			}
+			i = (i + 1) & (TABLE_SIZE - 1);
+		}
+	}
+
+	/**
+	 * Get the flags of an element's local name, or 0 if it has none
+	 */
+	static int get(String localName) {
+		return s_flags[slot(localName)];
+	}
+}
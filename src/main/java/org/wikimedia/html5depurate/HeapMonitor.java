@@ -0,0 +1,83 @@
+package org.wikimedia.html5depurate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Watches the usage of the tenured heap pool, so that large requests can be
+ * turned away while the heap is nearly full, rather than pushing the JVM
+ * into back-to-back full collections which slow down every request.
+ *
+ * The tenured pool is the heap pool which supports a usage threshold; the
+ * young generation pools don't. Large buffers, which are what a large
+ * request adds, go straight there with G1.
+ *
+ * The usage is taken as it was after the pool was last collected. The
+ * current usage includes garbage which hasn't been collected yet, and
+ * normally climbs towards the maximum between collections, so it would turn
+ * requests away when there is plenty of memory.
+ */
+class HeapMonitor {
+	private final MemoryPoolMXBean m_pool;
+	private final AtomicLong m_shed = new AtomicLong();
+	Logger m_logger = Logger.getLogger(this.getClass().getName());
+
+	HeapMonitor() {
+		MemoryPoolMXBean tenured = null;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP
+					&& pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported()
+					&& pool.getUsage().getMax() > 0
+					&& (tenured == null || pool.getUsage().getMax() >
+						tenured.getUsage().getMax())) {
+				tenured = pool;
+			}
+		}
+		m_pool = tenured;
+		if (m_pool == null) {
+			m_logger.warning("No tenured heap pool found, heap usage is not monitored");
+		}
+	}
+
+	/**
+	 * Get the percentage of the tenured pool which was in use after the last
+	 * collection, or -1 if it isn't known. This is 0 until the pool has been
+	 * collected.
+	 */
+	public int getUsedPercent() {
+		if (m_pool == null) {
+			return -1;
+		}
+		MemoryUsage usage = m_pool.getCollectionUsage();
+		if (usage == null || usage.getMax() <= 0) {
+			return -1;
+		}
+		return (int)(usage.getUsed() * 100 / usage.getMax());
+	}
+
+	/**
+	 * Check whether a large request should be turned away, and count it if
+	 * so.
+	 *
+	 * @param threshold The percentage at which to start, or 0 to never
+	 */
+	public boolean shouldShed(int threshold) {
+		if (threshold <= 0 || getUsedPercent() < threshold) {
+			return false;
+		}
+		m_shed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Get the number of requests turned away because the heap was full
+	 */
+	public long getShedCount() {
+		return m_shed.get();
+	}
+}
@@ -0,0 +1,75 @@
+package org.wikimedia.html5depurate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed buckets, in the form that Prometheus
+ * expects.
+ *
+ * Recording a value is a search of the bucket bounds and two atomic
+ * increments, with no locking, so it can be done on every request. The
+ * buckets are read without stopping writers, so a snapshot may be missing
+ * a value which is still being recorded, but the count always agrees with
+ * the buckets.
+ */
+class Histogram {
+	/** Upper bounds of the buckets, in seconds */
+	private static final String[] BOUNDS = {
+		"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01",
+		"0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+	};
+
+	private static final long[] NANO_BOUNDS = new long[BOUNDS.length];
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			NANO_BOUNDS[i] = (long)(Double.parseDouble(BOUNDS[i]) * 1e9);
+		}
+	}
+
+	/**
+	 * The number of values in each bucket, not cumulative. The last one is
+	 * for values above the highest bound.
+	 */
+	private final AtomicLongArray m_counts =
+		new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong m_sumNanos = new AtomicLong();
+
+	/**
+	 * Record a duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		int i = 0;
+		while (i < NANO_BOUNDS.length && nanos > NANO_BOUNDS[i]) {
+			i++;
+		}
+		m_counts.incrementAndGet(i);
+		m_sumNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Record the time since a start time given by System.nanoTime()
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Append the histogram in the Prometheus text format
+	 */
+	public void writeTo(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" histogram\n");
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += m_counts.get(i);
+			sb.append(name).append("_bucket{le=\"").append(BOUNDS[i])
+				.append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += m_counts.get(BOUNDS.length);
+		sb.append(name).append("_bucket{le=\"+Inf\"} ")
+			.append(cumulative).append('\n');
+		sb.append(name).append("_sum ").append(m_sumNanos.get() / 1e9).append('\n');
+		sb.append(name).append("_count ").append(cumulative).append('\n');
+	}
+}
@@ -0,0 +1,131 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * The body of a request, or of one part of it, held as the list of Grizzly
+ * buffers it arrived in rather than being copied into a single array.
+ *
+ * The buffers are not modified by reading, so the contents can be read any
+ * number of times, for instance once to compute a cache key and again to
+ * parse it. Once the request is finished, dispose() hands the buffers back
+ * to Grizzly's memory manager, and any arrays added with addPooled() back to
+ * the BufferPool.
+ */
+class InputChunks {
+	private final ArrayList<Buffer> m_chunks = new ArrayList<Buffer>();
+	private ArrayList<byte[]> m_pooled = null;
+	private long m_length = 0;
+
+	/**
+	 * Make an instance wrapping a byte array, for input which
+	 * doesn't come from the network layer.
+	 */
+	public static InputChunks wrap(byte[] bytes) {
+		InputChunks chunks = new InputChunks();
+		chunks.add(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, bytes));
+		return chunks;
+	}
+
+	/**
+	 * Take ownership of a buffer and append its remaining contents
+	 */
+	public void add(Buffer buffer) {
+		m_chunks.add(buffer);
+		m_length += buffer.remaining();
+	}
+
+	/**
+	 * Take ownership of an array from the BufferPool and append the given
+	 * number of bytes from its start
+	 */
+	public void addPooled(byte[] chunk, int length) {
+		if (m_pooled == null) {
+			m_pooled = new ArrayList<byte[]>();
+		}
+		m_pooled.add(chunk);
+		add(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, chunk, 0, length));
+	}
+
+	public long length() {
+		return m_length;
+	}
+
+	/**
+	 * Get a stream which reads the contents from the start
+	 */
+	public InputStream getInputStream() {
+		return new ChunkInputStream();
+	}
+
+	/**
+	 * Release the buffers. The contents must not be read afterwards.
+	 */
+	public void dispose() {
+		for (Buffer buffer : m_chunks) {
+			buffer.tryDispose();
+		}
+		m_chunks.clear();
+		m_length = 0;
+		if (m_pooled != null) {
+			for (byte[] chunk : m_pooled) {
+				BufferPool.get().give(chunk);
+			}
+			m_pooled = null;
+		}
+	}
+
+	private class ChunkInputStream extends InputStream {
+		private int m_index = 0;
+
+		/** A view of the current chunk, with its own position */
+		private Buffer m_current = null;
+
+		/**
+		 * Get a view of the next chunk with data remaining, or null at the
+		 * end of the input
+		 */
+		private Buffer current() {
+			while (m_current == null || !m_current.hasRemaining()) {
+				if (m_index >= m_chunks.size()) {
+					return null;
+				}
+				m_current = m_chunks.get(m_index++).duplicate();
+			}
+			return m_current;
+		}
+
+		@Override
+		public int read() {
+			Buffer buffer = current();
+			if (buffer == null) {
+				return -1;
+			}
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			Buffer buffer = current();
+			if (buffer == null) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return m_current == null ? 0 : m_current.remaining();
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package org.wikimedia.html5depurate;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator for testing a running server, which posts a set of HTML
+ * files to it over and over and reports the throughput and the latency
+ * percentiles for each range of input sizes.
+ *
+ * In the default closed-loop mode, a fixed number of clients each send a
+ * request as soon as their previous one has finished. With a rate, it runs
+ * open-loop: requests are due at fixed intervals whether or not earlier
+ * ones have finished, and are sent on a pool of that many connections.
+ * The latency of such a request is measured from when it was due, not from
+ * when a connection became free to send it, so that a server which falls
+ * behind shows up in the percentiles instead of just slowing the load down.
+ *
+ * Run it from the shaded jar with:
+ *
+ *   java -cp html5depurate.jar org.wikimedia.html5depurate.LoadGenerator \
+ *       -c 8 -d 60 pages/
+ */
+public class LoadGenerator {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Upper bounds of the input size ranges reported on, in bytes */
+	private static final long[] SIZE_BOUNDS = {1000, 10000, 100000, 1000000};
+	private static final String[] SIZE_NAMES = {"<1K", "1K-10K", "10K-100K",
+		"100K-1M", ">=1M"};
+
+	private static final String BOUNDARY = "depurate-load-f8c2e7a91d";
+
+	private static final int TIMEOUT = 60000;
+
+	private final URL m_url;
+	private final boolean m_form;
+	private final List<Input> m_inputs;
+	private final AtomicLong m_next = new AtomicLong();
+	private final Latencies[] m_latencies = new Latencies[SIZE_NAMES.length];
+	/** Failed requests, by status or by exception */
+	private final Map<String, Integer> m_errors = new TreeMap<String, Integer>();
+
+	/** Requests started from here on are measured */
+	private long m_measureStart;
+	/** No requests are started from here on */
+	private long m_end;
+	/** When the last measured request finished */
+	private final AtomicLong m_lastEnd = new AtomicLong();
+
+	/**
+	 * A document to send, with its request body ready-made
+	 */
+	private static class Input {
+		final byte[] body;
+		final int bucket;
+
+		Input(byte[] body_, int bucket_) {
+			body = body_;
+			bucket = bucket_;
+		}
+	}
+
+	/**
+	 * The latencies of the successful requests in one size range, kept in
+	 * full so that the percentiles are exact
+	 */
+	private static class Latencies {
+		private long[] m_nanos = new long[1024];
+		private int m_count = 0;
+		private int m_errors = 0;
+		private long m_inputBytes = 0;
+
+		synchronized void add(long nanos, long inputBytes) {
+			if (m_count == m_nanos.length) {
+				m_nanos = Arrays.copyOf(m_nanos, m_count * 2);
+			}
+			m_nanos[m_count++] = nanos;
+			m_inputBytes += inputBytes;
+		}
+
+		synchronized void addError() {
+			m_errors++;
+		}
+	}
+
+	LoadGenerator(URL url, boolean form, List<byte[]> documents) {
+		m_url = url;
+		m_form = form;
+		m_inputs = new ArrayList<Input>();
+		for (byte[] document : documents) {
+			m_inputs.add(new Input(form ? formBody(document) : document,
+					bucket(document.length)));
+		}
+		for (int i = 0; i < m_latencies.length; i++) {
+			m_latencies[i] = new Latencies();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("u", "url", true,
+				"The server's base URL, default http://localhost:4339");
+		options.addOption("p", "path", true,
+				"The path to post to, default /document");
+		options.addOption("f", "form", false,
+				"Send the input as the text field of a multipart form, instead "
+				+ "of as a text/html request body");
+		options.addOption("c", "concurrency", true,
+				"The number of clients, or of connections with a rate, default 1");
+		options.addOption("r", "rate", true,
+				"Send this many requests a second, open-loop");
+		options.addOption("d", "duration", true,
+				"Seconds to measure for, default 30");
+		options.addOption("w", "warmup", true,
+				"Seconds to run before measuring, default 5");
+		options.addOption("h", "help", false, "Show this help");
+
+		CommandLine cl;
+		int concurrency;
+		double rate;
+		double duration;
+		double warmup;
+		try {
+			cl = new DefaultParser().parse(options, args);
+			concurrency = Integer.parseInt(cl.getOptionValue("c", "1"));
+			rate = Double.parseDouble(cl.getOptionValue("r", "0"));
+			duration = Double.parseDouble(cl.getOptionValue("d", "30"));
+			warmup = Double.parseDouble(cl.getOptionValue("w", "5"));
+			if (concurrency < 1 || rate < 0 || duration <= 0 || warmup < 0) {
+				throw new ParseException("Invalid number");
+			}
+		} catch (ParseException e) {
+			usage(options, e.getMessage());
+			return;
+		} catch (NumberFormatException e) {
+			usage(options, "Invalid number: " + e.getMessage());
+			return;
+		}
+		if (cl.hasOption("h") || cl.getArgs().length == 0) {
+			usage(options, null);
+			return;
+		}
+
+		List<byte[]> documents = new ArrayList<byte[]>();
+		for (String path : cl.getArgs()) {
+			load(new File(path), documents);
+		}
+		if (documents.isEmpty()) {
+			usage(options, "No input files found");
+			return;
+		}
+
+		// The default of 5 idle connections would make most of the clients
+		// reconnect for every request
+		System.setProperty("http.maxConnections", Integer.toString(concurrency));
+		// Don't resend a POST on a stale connection, it would be counted twice
+		System.setProperty("sun.net.http.retryPost", "false");
+
+		URL url = new URL(cl.getOptionValue("u", "http://localhost:4339")
+				+ cl.getOptionValue("p", "/document"));
+		LoadGenerator generator = new LoadGenerator(url, cl.hasOption("f"),
+				documents);
+		System.out.println("Sending " + documents.size() + " documents to "
+				+ url + (rate > 0 ? " at " + rate + " per second on "
+					+ concurrency + " connections" : " from " + concurrency
+					+ " clients"));
+		generator.run(concurrency, rate, (long)(warmup * 1e9),
+				(long)(duration * 1e9));
+		generator.report(System.out);
+	}
+
+	private static void usage(Options options, String error) {
+		if (error != null) {
+			System.err.println(error);
+		}
+		new HelpFormatter().printHelp(
+				"LoadGenerator [options] <file or directory>...", options);
+		System.exit(error == null ? 0 : 2);
+	}
+
+	/**
+	 * Read a file, or all the files under a directory, in name order
+	 */
+	private static void load(File file, List<byte[]> documents)
+			throws IOException
+	{
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File child : files) {
+				load(child, documents);
+			}
+			return;
+		}
+		InputStream stream = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = stream.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			documents.add(out.toByteArray());
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static int bucket(long size) {
+		int i = 0;
+		while (i < SIZE_BOUNDS.length && size >= SIZE_BOUNDS[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	private static byte[] formBody(byte[] document) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				document.length + 200);
+		byte[] head = ("--" + BOUNDARY + "\r\n"
+			+ "Content-Disposition: form-data; name=\"text\"\r\n"
+			+ "Content-Type: text/html; charset=UTF-8\r\n\r\n").getBytes(UTF_8);
+		byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(UTF_8);
+		out.write(head, 0, head.length);
+		out.write(document, 0, document.length);
+		out.write(tail, 0, tail.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Send requests for the warmup and the measurement period, and wait for
+	 * them all to finish
+	 */
+	void run(int concurrency, double rate, long warmupNanos,
+			long durationNanos) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		m_measureStart = start + warmupNanos;
+		m_end = m_measureStart + durationNanos;
+		if (rate > 0) {
+			runOpen(concurrency, rate, start);
+		} else {
+			runClosed(concurrency);
+		}
+	}
+
+	private void runClosed(int concurrency) throws InterruptedException {
+		Thread[] clients = new Thread[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			clients[i] = new Thread(new Runnable() {
+				public void run() {
+					long start;
+					while ((start = System.nanoTime()) < m_end) {
+						request(nextInput(), start);
+					}
+				}
+			}, "load-client-" + i);
+			clients[i].start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+	}
+
+	private void runOpen(int concurrency, double rate, long start)
+			throws InterruptedException
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency,
+				concurrency, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		for (long i = 0; ; i++) {
+			final long due = start + (long)(i * 1e9 / rate);
+			if (due >= m_end) {
+				break;
+			}
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final Input input = nextInput();
+			pool.execute(new Runnable() {
+				public void run() {
+					request(input, due);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+	}
+
+	private Input nextInput() {
+		return m_inputs.get((int)(m_next.getAndIncrement() % m_inputs.size()));
+	}
+
+	/**
+	 * Send a request, and record its latency from the given start time if
+	 * that is in the measurement period
+	 */
+	private void request(Input input, long start) {
+		String error = null;
+		try {
+			int status = send(input.body);
+			if (status != 200) {
+				error = "HTTP " + status;
+			}
+		} catch (IOException e) {
+			error = e.getClass().getSimpleName();
+		}
+		long end = System.nanoTime();
+		if (start < m_measureStart) {
+			return;
+		}
+		long last;
+		while ((last = m_lastEnd.get()) < end
+				&& !m_lastEnd.compareAndSet(last, end)) {
+		}
+		Latencies latencies = m_latencies[input.bucket];
+		if (error == null) {
+			latencies.add(end - start, input.body.length);
+		} else {
+			latencies.addError();
+			synchronized (m_errors) {
+				Integer count = m_errors.get(error);
+				m_errors.put(error, count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Post a request body and read the whole response, so that the
+	 * connection can be reused
+	 */
+	private int send(byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)m_url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", m_form
+				? "multipart/form-data; boundary=" + BOUNDARY
+				: "text/html; charset=UTF-8");
+		connection.setFixedLengthStreamingMode(body.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400
+			? connection.getInputStream() : connection.getErrorStream();
+		if (in != null) {
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) != -1) {
+			}
+			in.close();
+		}
+		return status;
+	}
+
+	/**
+	 * Print the throughput and latency percentiles, overall and by input
+	 * size. The throughput is over the time until the last measured request
+	 * finished, which is longer than the duration if the server fell
+	 * behind an open-loop rate.
+	 */
+	void report(PrintStream out) {
+		double seconds = (Math.max(m_lastEnd.get(), m_end) - m_measureStart)
+			/ 1e9;
+		out.printf("Measured over %.1f s%n", seconds);
+		out.printf("%-10s %9s %9s %9s %9s %9s %9s %9s %9s%n", "size",
+				"requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms",
+				"p99.9 ms", "max ms");
+		List<long[]> all = new ArrayList<long[]>();
+		int totalErrors = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < m_latencies.length; i++) {
+			Latencies latencies = m_latencies[i];
+			long[] sorted;
+			int errors;
+			long bytes;
+			synchronized (latencies) {
+				sorted = Arrays.copyOf(latencies.m_nanos, latencies.m_count);
+				errors = latencies.m_errors;
+				bytes = latencies.m_inputBytes;
+			}
+			if (sorted.length == 0 && errors == 0) {
+				continue;
+			}
+			Arrays.sort(sorted);
+			printRow(out, SIZE_NAMES[i], sorted, errors, bytes, seconds);
+			all.add(sorted);
+			totalErrors += errors;
+			totalBytes += bytes;
+		}
+		int total = 0;
+		for (long[] sorted : all) {
+			total += sorted.length;
+		}
+		long[] merged = new long[total];
+		int pos = 0;
+		for (long[] sorted : all) {
+			System.arraycopy(sorted, 0, merged, pos, sorted.length);
+			pos += sorted.length;
+		}
+		Arrays.sort(merged);
+		printRow(out, "all", merged, totalErrors, totalBytes, seconds);
+		synchronized (m_errors) {
+			for (Map.Entry<String, Integer> entry : m_errors.entrySet()) {
+				out.println("Failed with " + entry.getKey() + ": "
+						+ entry.getValue());
+			}
+		}
+	}
+
+	private static void printRow(PrintStream out, String name,
+			long[] sorted, int errors, long bytes, double seconds) {
+		out.printf("%-10s %9d %9d %9.1f %9.2f %9s %9s %9s %9s%n", name,
+				sorted.length, errors, sorted.length / seconds,
+				bytes / seconds / 1e6, percentile(sorted, 0.5),
+				percentile(sorted, 0.99), percentile(sorted, 0.999),
+				percentile(sorted, 1));
+	}
+
+	/**
+	 * Get a percentile of sorted nanosecond values, in milliseconds
+	 */
+	private static String percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return String.format("%.3f", sorted[Math.max(i, 0)] / 1e6);
+	}
+}
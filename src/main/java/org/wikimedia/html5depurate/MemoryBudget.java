@@ -0,0 +1,256 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.server.AfterServiceListener;
+import org.glassfish.grizzly.http.server.Request;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the memory held by all requests at once, as opposed to
+ * maxPostSize, which only limits each request on its own.
+ *
+ * Each request has a Reservation, which grows as its input is received and
+ * before it is depurated, and which is released once Grizzly has finished
+ * with the response. Input is reserved without waiting, since it arrives
+ * on Grizzly's threads; a request which doesn't fit is rejected. Depuration
+ * threads may wait a short while for other requests to finish. A rejected
+ * request gives up its reservation straight away, since the rest of its
+ * input is discarded, rather than holding it until its body has been read.
+ *
+ * A request is always allowed when no other request has anything reserved,
+ * so that a budget smaller than maxPostSize can't shut out large requests
+ * entirely.
+ *
+ * A compressed body is decoded as it arrives, which starts before the
+ * request is passed to a handler, so the decoder opens the reservation on
+ * the request's header. open() then takes it over. A reservation which no
+ * handler takes over is released by the decoder when it is done.
+ */
+class MemoryBudget {
+	private static final String ATTRIBUTE = MemoryBudget.class.getName();
+	private static final Attribute<Reservation> HEADER_ATTRIBUTE =
+		Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(
+				MemoryBudget.class.getName() + ".header");
+
+	/** The most bytes which may be reserved, or 0 for no limit */
+	private long m_max;
+	private long m_used = 0;
+	private final AtomicLong m_rejected = new AtomicLong();
+
+	MemoryBudget(long max) {
+		m_max = max;
+	}
+
+	public synchronized void setMax(long max) {
+		m_max = max;
+		notifyAll();
+	}
+
+	public synchronized long getMax() {
+		return m_max;
+	}
+
+	/**
+	 * Get the number of bytes reserved by requests in progress
+	 */
+	public synchronized long getUsed() {
+		return m_used;
+	}
+
+	/**
+	 * Get the number of requests rejected for want of memory
+	 */
+	public long getRejectedCount() {
+		return m_rejected.get();
+	}
+
+	/**
+	 * Start a reservation for a request, which is released when the
+	 * request is finished
+	 */
+	public Reservation open(Request request) {
+		Reservation reservation = HEADER_ATTRIBUTE.remove(request.getRequest());
+		if (reservation == null || !reservation.adopt()) {
+			reservation = new Reservation();
+			reservation.adopt();
+		}
+		request.setAttribute(ATTRIBUTE, reservation);
+		request.addAfterServiceListener(reservation);
+		return reservation;
+	}
+
+	/**
+	 * Get the reservation for a request's body while it is being decoded,
+	 * starting it if need be. Reservation.abandon() should be called once
+	 * the body has been decoded.
+	 */
+	public Reservation open(HttpHeader header) {
+		Reservation reservation = HEADER_ATTRIBUTE.get(header);
+		if (reservation == null) {
+			reservation = new Reservation();
+			HEADER_ATTRIBUTE.set(header, reservation);
+		}
+		return reservation;
+	}
+
+	/**
+	 * Get the reservation of a request, which was started by open()
+	 */
+	public static Reservation get(Request request) {
+		return (Reservation)request.getAttribute(ATTRIBUTE);
+	}
+
+	/**
+	 * @param bytes The bytes to add
+	 * @param own The bytes which the same request already has reserved
+	 */
+	private boolean fits(long bytes, long own) {
+		return m_max == 0 || m_used == own || m_used + bytes <= m_max;
+	}
+
+	private synchronized boolean tryAcquire(long bytes, long own) {
+		if (!fits(bytes, own)) {
+			m_rejected.incrementAndGet();
+			return false;
+		}
+		m_used += bytes;
+		return true;
+	}
+
+	private synchronized boolean acquire(long bytes, long own,
+			long waitMillis) {
+		long deadline = System.nanoTime() + waitMillis * 1000000;
+		while (!fits(bytes, own)) {
+			long remaining = (deadline - System.nanoTime()) / 1000000;
+			if (remaining <= 0) {
+				m_rejected.incrementAndGet();
+				return false;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				m_rejected.incrementAndGet();
+				return false;
+			}
+		}
+		m_used += bytes;
+		return true;
+	}
+
+	private synchronized void release(long bytes) {
+		m_used -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * The bytes reserved by one request
+	 */
+	class Reservation implements AfterServiceListener {
+		private long m_bytes = 0;
+		private boolean m_released = false;
+		/** Whether it was released because something didn't fit */
+		private boolean m_rejected = false;
+		/** Whether a handler has taken it over from the decoder */
+		private boolean m_adopted = false;
+
+		/**
+		 * Make sure that at least the given total is reserved, without
+		 * waiting. Returns false, and releases the reservation, if it
+		 * doesn't fit in the budget, or if an earlier reservation didn't.
+		 */
+		public synchronized boolean reserveTotal(long total) {
+			if (m_rejected) {
+				return false;
+			}
+			if (m_released || total <= m_bytes) {
+				return true;
+			}
+			if (!tryAcquire(total - m_bytes, m_bytes)) {
+				m_rejected = true;
+				release();
+				return false;
+			}
+			m_bytes = total;
+			return true;
+		}
+
+		/**
+		 * Reserve more bytes, waiting up to the given time for other
+		 * requests to release enough. Returns false, and releases the
+		 * reservation, if they didn't.
+		 */
+		public boolean reserve(long bytes, long waitMillis) {
+			if (bytes <= 0) {
+				return true;
+			}
+			long own;
+			synchronized (this) {
+				own = m_bytes;
+			}
+			if (!acquire(bytes, own, waitMillis)) {
+				release();
+				return false;
+			}
+			synchronized (this) {
+				if (m_released) {
+					MemoryBudget.this.release(bytes);
+				} else {
+					m_bytes += bytes;
+				}
+			}
+			return true;
+		}
+
+		public synchronized void release() {
+			if (!m_released) {
+				m_released = true;
+				MemoryBudget.this.release(m_bytes);
+				m_bytes = 0;
+			}
+		}
+
+		/**
+		 * Take the reservation over for a handler. Returns false if it has
+		 * already been released by the decoder, other than because it was
+		 * rejected, in which case a new one should be used.
+		 */
+		synchronized boolean adopt() {
+			if (m_released && !m_rejected) {
+				return false;
+			}
+			m_adopted = true;
+			return true;
+		}
+
+		/**
+		 * Release a reservation from open(HttpHeader) unless a handler has
+		 * taken it over
+		 */
+		synchronized void abandon() {
+			if (!m_adopted) {
+				release();
+			}
+		}
+
+		@Override
+		public void onAfterService(Request request) {
+			release();
+		}
+	}
+
+	/**
+	 * Thrown while reading a request body which no longer fits in the budget
+	 */
+	static class ExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ExceededException() {
+			super("The server is short of memory, try again later");
+		}
+	}
+}
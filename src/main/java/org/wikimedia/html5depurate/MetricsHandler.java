@@ -0,0 +1,23 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+/**
+ * Serves /metrics in the Prometheus text format
+ */
+class MetricsHandler extends HttpHandler {
+	private final DepurateMetrics m_metrics;
+
+	MetricsHandler(DepurateMetrics metrics) {
+		super("metrics");
+		m_metrics = metrics;
+	}
+
+	@Override
+	public void service(Request request, Response response) throws Exception {
+		response.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+		response.getWriter().write(m_metrics.format());
+	}
+}
@@ -7,20 +7,27 @@ import org.glassfish.grizzly.http.multipart.MultipartEntryHandler;
 import org.glassfish.grizzly.http.multipart.MultipartEntry;
 import org.glassfish.grizzly.http.multipart.ContentDisposition;
 
-import java.io.ByteArrayOutputStream;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
 
 class MultipartBuffer implements MultipartEntryHandler {
-	private HashMap<String, byte[]> m_params;
+	private LinkedHashMap<String, InputChunks> m_params;
+	private HashSet<String> m_tooBigParts;
 	private int m_size;
 	private int m_maxSize;
+	private int m_maxPartSize;
 	private NIOInputStream m_stream;
 	private boolean m_tooBig;
+	private boolean m_overBudget;
+	private String m_duplicateName;
+	private MemoryBudget.Reservation m_reservation;
 
 	private class MultipartBufferReadHandler implements ReadHandler {
 		private String m_name;
-		private ByteArrayOutputStream m_largeBuffer = new ByteArrayOutputStream();
-		private byte[] m_smallBuffer = new byte[8192];
+		private InputChunks m_chunks = new InputChunks();
+		private int m_partSize = 0;
+		private boolean m_finished = false;
 
 		private MultipartBufferReadHandler(NIOInputStream stream, String name) {
 			m_stream = stream;
@@ -46,22 +53,87 @@ class MultipartBuffer implements MultipartEntryHandler {
 
 		private void readAndSaveAvail() throws Exception {
 			while (m_stream.isReady()) {
-				int bytesRead = m_stream.read(m_smallBuffer);
-				if (incrementSize(bytesRead)) {
-					m_largeBuffer.write(m_smallBuffer, 0, bytesRead);
+				// Take the buffers as they are rather than copying them
+				Buffer buffer = m_stream.readBuffer();
+				int bytesRead = buffer.remaining();
+				if (incrementSize(bytesRead) && incrementPartSize(bytesRead)) {
+					m_chunks.add(buffer);
+				} else {
+					buffer.tryDispose();
 				}
 			}
 		}
 
+		/**
+		 * Add to the size of this part. If it is now too big, the data
+		 * collected so far is discarded, and the rest of it will be read
+		 * but not saved.
+		 */
+		private boolean incrementPartSize(int size) {
+			if (m_chunks == null) {
+				return false;
+			} else if (m_partSize > m_maxPartSize - size) {
+				m_chunks.dispose();
+				m_chunks = null;
+				return false;
+			} else {
+				m_partSize += size;
+				return true;
+			}
+		}
+
 		private void finish() {
-			m_params.put(m_name, m_largeBuffer.toByteArray());
+			if (m_finished) {
+				return;
+			}
+			m_finished = true;
+			if (m_params.containsKey(m_name)) {
+				// The last part of each name is kept, as for a form
+				InputChunks previous = m_params.get(m_name);
+				if (previous != null) {
+					previous.dispose();
+				}
+				m_tooBigParts.remove(m_name);
+				if (m_duplicateName == null) {
+					m_duplicateName = m_name;
+				}
+			}
+			if (m_chunks == null) {
+				m_tooBigParts.add(m_name);
+				m_params.put(m_name, null);
+			} else {
+				m_params.put(m_name, m_chunks);
+			}
 		}
 	}
 
 	public MultipartBuffer(int maxSize) {
-		m_params = new HashMap<String, byte[]>();
+		this(maxSize, maxSize);
+	}
+
+	/**
+	 * @param maxSize The maximum total size of all parts
+	 * @param maxPartSize The maximum size of a single part. A part which is
+	 *   larger than this is dropped, without the others being affected.
+	 */
+	public MultipartBuffer(int maxSize, int maxPartSize) {
+		this(maxSize, maxPartSize, null);
+	}
+
+	/**
+	 * @param maxSize The maximum total size of all parts
+	 * @param maxPartSize The maximum size of a single part
+	 * @param reservation The request's memory reservation, which grows with
+	 *   the parts, or null
+	 */
+	public MultipartBuffer(int maxSize, int maxPartSize,
+			MemoryBudget.Reservation reservation) {
+		m_reservation = reservation;
+		m_params = new LinkedHashMap<String, InputChunks>();
+		m_tooBigParts = new HashSet<String>();
 		m_size = 0;
 		m_maxSize = maxSize;
+		m_maxPartSize = maxPartSize;
 	}
 
 	@Override
@@ -83,23 +155,76 @@ class MultipartBuffer implements MultipartEntryHandler {
 	private boolean incrementSize(int size) throws Exception {
 		if (m_tooBig) {
 			return false;
-		} else if (m_size >= m_maxSize - size) {
+		} else if (m_size > m_maxSize - size) {
 			m_tooBig = true;
 			return false;
+		} else if (m_reservation != null
+				&& !m_reservation.reserveTotal(m_size + size)) {
+			// Read the rest without saving it, as for a request which is
+			// too big
+			m_tooBig = true;
+			m_overBudget = true;
+			return false;
 		} else {
 			m_size += size;
 			return true;
 		}
 	}
 
-	public byte[] getParameter(String key) throws RuntimeException {
+	public InputChunks getParameter(String key) throws RuntimeException {
 		if (m_tooBig) {
 			throw new RuntimeException("Maximum POST size exceeded");
 		}
 		return m_params.get(key);
 	}
 
+	/**
+	 * Get the names of the parts, in the order in which they were received
+	 */
+	public Set<String> getParameterNames() throws RuntimeException {
+		if (m_tooBig) {
+			throw new RuntimeException("Maximum POST size exceeded");
+		}
+		return m_params.keySet();
+	}
+
+	/**
+	 * Whether the named part was dropped for exceeding the part size limit
+	 */
+	public boolean isPartTooBig(String key) {
+		return m_tooBigParts.contains(key);
+	}
+
+	/**
+	 * Get the first name which was given to more than one part, or null if
+	 * the names were all different. The earlier parts of that name are
+	 * dropped.
+	 */
+	public String getDuplicateName() {
+		return m_duplicateName;
+	}
+
 	public boolean isTooBig() {
 		return m_tooBig;
 	}
+
+	/**
+	 * Whether the parts were dropped because the memory budget was used up.
+	 * isTooBig() is also true in that case.
+	 */
+	public boolean isOverBudget() {
+		return m_overBudget;
+	}
+
+	/**
+	 * Release the buffers holding the parts, once the request is finished
+	 * with them
+	 */
+	public void dispose() {
+		for (InputChunks chunks : m_params.values()) {
+			if (chunks != null) {
+				chunks.dispose();
+			}
+		}
+	}
 }
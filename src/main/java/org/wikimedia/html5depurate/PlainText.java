@@ -0,0 +1,209 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import org.xml.sax.SAXException;
+
+/**
+ * Input with no markup at all, which can be depurated without parsing it.
+ *
+ * A lot of input is short text with no tags or entities, for which the
+ * parser would only produce the document skeleton around the text. This
+ * recognises such text, either bare or inside a skeleton like the one
+ * which clients wrap documents in, and finds the text which would end up in
+ * the body. Anything else, including anything the parser would change, like
+ * a carriage return or a NUL, is left to the parser.
+ *
+ * The output is then written by the usual serializer, so that the escaping
+ * and encoding are the same as for parsed input.
+ */
+class PlainText {
+	/** Larger input is left to the parser, rather than decoding it twice */
+	static final int MAX_LENGTH = 1 << 20;
+
+	/**
+	 * Skeletons which the text may be wrapped in. The parser produces the
+	 * same document for all of them.
+	 */
+	private static final String[] PREFIXES = {
+		"<!DOCTYPE html><html><head></head><body>",
+		"<!DOCTYPE html><html><body>",
+		"<html><head></head><body>",
+		"<html><body>"
+	};
+	private static final String SUFFIX = "</body></html>";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final char[] m_chars;
+	/** The start of the text in a fragment */
+	private final int m_fragmentStart;
+	/** The start of the text in a document, after any dropped whitespace */
+	private final int m_start;
+	private final int m_end;
+
+	private PlainText(char[] chars, int fragmentStart, int start, int end) {
+		m_chars = chars;
+		m_fragmentStart = fragmentStart;
+		m_start = start;
+		m_end = end;
+	}
+
+	/**
+	 * Get the body text of a string, or null if it isn't plain text
+	 */
+	public static PlainText match(String input) {
+		if (input.length() > MAX_LENGTH) {
+			return null;
+		}
+		return match(input.toCharArray());
+	}
+
+	/**
+	 * Get the body text of UTF-8 input, or null if it isn't plain text or
+	 * valid UTF-8
+	 */
+	public static PlainText match(InputChunks input) {
+		if (input.length() > MAX_LENGTH) {
+			return null;
+		}
+		byte[] bytes = new byte[(int)input.length()];
+		InputStream stream = input.getInputStream();
+		try {
+			int n = 0;
+			while (n < bytes.length) {
+				int read = stream.read(bytes, n, bytes.length - n);
+				if (read == -1) {
+					return null;
+				}
+				n += read;
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		// Most input with markup can be ruled out before decoding it
+		for (byte b : bytes) {
+			if (b == '&') {
+				return null;
+			}
+		}
+		CharBuffer chars;
+		try {
+			chars = UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT)
+				.decode(ByteBuffer.wrap(bytes));
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+		char[] array = new char[chars.remaining()];
+		chars.get(array);
+		return match(array);
+	}
+
+	private static PlainText match(char[] chars) {
+		// A byte order mark would be taken out by the parser
+		if (chars.length > 0 && chars[0] == '\uFEFF') {
+			return null;
+		}
+		for (String prefix : PREFIXES) {
+			if (startsWith(chars, prefix, 0)
+					&& chars.length >= prefix.length() + SUFFIX.length()
+					&& startsWith(chars, SUFFIX, chars.length - SUFFIX.length())) {
+				int start = prefix.length();
+				int end = chars.length - SUFFIX.length();
+				return isPlain(chars, start, end)
+					? new PlainText(chars, start, start, end) : null;
+			}
+		}
+		if (!isPlain(chars, 0, chars.length)) {
+			return null;
+		}
+		// Without a skeleton, leading whitespace comes before the body is
+		// opened, where the parser drops it. In a fragment, the body is
+		// already open.
+		int start = 0;
+		while (start < chars.length && isSpace(chars[start])) {
+			start++;
+		}
+		return new PlainText(chars, 0, start, chars.length);
+	}
+
+	private static boolean startsWith(char[] chars, String s, int offset) {
+		if (offset < 0 || chars.length - offset < s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (chars[offset + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether a range is text which the parser would pass through
+	 * unchanged. Besides markup, this rules out characters which the
+	 * tokenizer replaces or reports, and unpaired surrogates.
+	 */
+	private static boolean isPlain(char[] chars, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (c < 0x20) {
+				if (c != '\t' && c != '\n' && c != '\f') {
+					return false;
+				}
+			} else if (c == '<' || c == '&') {
+				return false;
+			} else if (c >= 0x7F && c < 0xA0) {
+				return false;
+			} else if (c >= 0xFDD0 && (c <= 0xFDEF || c >= 0xFFFE)) {
+				return false;
+			} else if (Character.isHighSurrogate(c)) {
+				if (i + 1 == end || !Character.isLowSurrogate(chars[i + 1])) {
+					return false;
+				}
+				int cp = Character.toCodePoint(c, chars[i + 1]);
+				if ((cp & 0xFFFE) == 0xFFFE) {
+					return false;
+				}
+				i++;
+			} else if (Character.isLowSurrogate(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\f';
+	}
+
+	/**
+	 * Whether the body text is all whitespace, in which case the
+	 * compatibility serializer doesn't wrap it in a p element
+	 */
+	public boolean isBlank() {
+		for (int i = m_start; i < m_end; i++) {
+			if (!isSpace(m_chars[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the body text through a serializer, which escapes it
+	 */
+	void writeTo(DepurateSerializer serializer, boolean fragment)
+		throws SAXException
+	{
+		int start = fragment ? m_fragmentStart : m_start;
+		serializer.characters(m_chars, start, m_end - start);
+	}
+}
@@ -0,0 +1,114 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * An in-memory output stream which stores what is written in a chain of
+ * arrays from the BufferPool, instead of in one array which is copied each
+ * time it grows.
+ *
+ * The chunks start small and double up to a limit, so that short output
+ * takes one small array and long output doesn't need arrays large enough
+ * to be allocated outside the young generation. release() gives the
+ * arrays back to the pool, after which the stream must not be used.
+ */
+class PooledOutputStream extends OutputStream {
+	private static final int MAX_CHUNK_SIZE = 65536;
+
+	private final BufferPool m_pool;
+	private final ArrayList<byte[]> m_chunks = new ArrayList<byte[]>();
+	/** The last chunk, being written to */
+	private byte[] m_current = null;
+	private int m_pos = 0;
+	private long m_size = 0;
+
+	PooledOutputStream() {
+		this(BufferPool.get());
+	}
+
+	PooledOutputStream(BufferPool pool) {
+		m_pool = pool;
+	}
+
+	@Override
+	public void write(int b) {
+		if (m_current == null || m_pos == m_current.length) {
+			nextChunk();
+		}
+		m_current[m_pos++] = (byte)b;
+		m_size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		m_size += len;
+		while (len > 0) {
+			if (m_current == null || m_pos == m_current.length) {
+				nextChunk();
+			}
+			int n = Math.min(len, m_current.length - m_pos);
+			System.arraycopy(b, off, m_current, m_pos, n);
+			m_pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void nextChunk() {
+		int size = m_current == null ? BufferPool.MIN_SIZE
+			: Math.min(m_current.length * 2, MAX_CHUNK_SIZE);
+		m_current = m_pool.take(size);
+		m_chunks.add(m_current);
+		m_pos = 0;
+	}
+
+	public long size() {
+		return m_size;
+	}
+
+	/**
+	 * Write everything written so far to another stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		int last = m_chunks.size() - 1;
+		for (int i = 0; i < last; i++) {
+			out.write(m_chunks.get(i));
+		}
+		if (last >= 0) {
+			out.write(m_current, 0, m_pos);
+		}
+	}
+
+	/**
+	 * Get a copy of everything written so far in a single array
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[(int)m_size];
+		int pos = 0;
+		int last = m_chunks.size() - 1;
+		for (int i = 0; i < last; i++) {
+			byte[] chunk = m_chunks.get(i);
+			System.arraycopy(chunk, 0, bytes, pos, chunk.length);
+			pos += chunk.length;
+		}
+		if (last >= 0) {
+			System.arraycopy(m_current, 0, bytes, pos, m_pos);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Give the arrays back to the pool
+	 */
+	public void release() {
+		for (byte[] chunk : m_chunks) {
+			m_pool.give(chunk);
+		}
+		m_chunks.clear();
+		m_current = null;
+		m_pos = 0;
+		m_size = 0;
+	}
+}
@@ -0,0 +1,398 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.ReadHandler;
+import org.glassfish.grizzly.http.io.NIOInputStream;
+import org.glassfish.grizzly.http.multipart.ContentDisposition;
+import org.glassfish.grizzly.http.multipart.MultipartEntry;
+import org.glassfish.grizzly.http.multipart.MultipartEntryHandler;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * A depuration of the text part of a multipart request, or of a raw request
+ * body, which runs while the request is still being received, instead of
+ * after the whole of it has been buffered.
+ *
+ * Buffers are queued as they arrive, and a task on the depuration pool
+ * feeds them to a PushParser, releasing each one once it has been parsed.
+ * The task exits when it runs out of input and is submitted again when more
+ * arrives, so a slow client doesn't hold on to a depuration thread. When the
+ * last of the input has been parsed, the same task serializes the document
+ * into the response.
+ *
+ * The request is admitted to the pool when its first data arrives, and is
+ * rejected then if the queue is full. The size limit is enforced as the
+ * data arrives. Only the time spent parsing and serializing counts towards
+ * the time limit, not the time between buffers.
+ */
+class PushDepuration implements MultipartEntryHandler, Runnable {
+	private final DepurateHandler m_handler;
+	private final DepurateExecutor m_executor;
+	private final Response m_response;
+	private final boolean m_compat;
+	private final boolean m_fragment;
+	private final int m_maxSize;
+	private final int m_retryAfter;
+	private final RequestStats m_stats;
+	private final MemoryBudget.Reservation m_reservation;
+	private final DepurateLimits m_limits;
+	Logger m_logger = Logger.getLogger(this.getClass().getName());
+
+	// The following are protected by the lock on this object
+
+	/** Received buffers waiting to be parsed */
+	private final LinkedList<Buffer> m_queue = new LinkedList<Buffer>();
+	private int m_size = 0;
+	/** Whether the text part has been seen */
+	private boolean m_started = false;
+	/** Whether a task has been submitted and has not yet returned */
+	private boolean m_scheduled = false;
+	/** Whether the request has been admitted to the depuration pool */
+	private boolean m_admitted = false;
+	/** Whether the last of the input has been received */
+	private boolean m_inputDone = false;
+	/** The status of an error response to send, or 0 if all is well */
+	private int m_errorStatus = 0;
+	private String m_errorMessage;
+	/** The limit which stopped the parse, if that was the error */
+	private DepurateLimits.ExceededException m_exceeded;
+
+	// The following are only used by the task
+
+	private PushParser m_parser;
+	/** Time spent parsing so far, in nanoseconds */
+	private long m_parseNanos = 0;
+	private final byte[] m_bytes = new byte[8192];
+
+	PushDepuration(DepurateHandler handler, DepurateExecutor executor,
+			Response response, boolean compat, boolean fragment, int maxSize,
+			int retryAfter) {
+		m_handler = handler;
+		m_executor = executor;
+		m_response = response;
+		m_compat = compat;
+		m_fragment = fragment;
+		m_maxSize = maxSize;
+		m_retryAfter = retryAfter;
+		m_stats = RequestStats.get(response.getRequest());
+		m_reservation = MemoryBudget.get(response.getRequest());
+		m_limits = handler.newLimits();
+	}
+
+	/**
+	 * Whether the text part has been seen. If not, the request has to be
+	 * handled in some other way once the multipart body has been scanned.
+	 */
+	public synchronized boolean hasStarted() {
+		return m_started;
+	}
+
+	@Override
+	public void handle(MultipartEntry entry) throws Exception {
+		ContentDisposition disposition = entry.getContentDisposition();
+		String name = disposition.getDispositionParamUnquoted("name");
+		synchronized (this) {
+			if (!"text".equals(name)) {
+				entry.skip();
+				return;
+			}
+			if (m_started) {
+				// The first one has been parsed already, so the last one
+				// can't be used instead, as it would be without push parsing
+				entry.skip();
+				fail(400, "The part name \"text\" was given more than once");
+				return;
+			}
+			m_started = true;
+		}
+		read(entry.getNIOInputStream(), false);
+	}
+
+	/**
+	 * Start reading the input from the request body
+	 */
+	public void readFrom(NIOInputStream stream) {
+		read(stream, true);
+	}
+
+	/**
+	 * Start reading the input from a stream. The input from a multipart
+	 * entry is done when the scanner has been through the rest of the
+	 * request, so that a repeated text part is seen before the response is
+	 * sent.
+	 */
+	private void read(final NIOInputStream stream, final boolean body) {
+		synchronized (this) {
+			m_started = true;
+		}
+		stream.notifyAvailable(new ReadHandler() {
+			@Override
+			public void onDataAvailable() throws Exception {
+				readAvailable(stream);
+				stream.notifyAvailable(this);
+			}
+
+			@Override
+			public void onAllDataRead() throws Exception {
+				readAvailable(stream);
+				if (body) {
+					end();
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				abort("Error reading the request: " + Util.format(t));
+			}
+		});
+	}
+
+	private void readAvailable(NIOInputStream stream) {
+		while (stream.isReady()) {
+			add(stream.readBuffer());
+		}
+	}
+
+	/**
+	 * Queue a buffer for parsing, and make sure that a task will get to it
+	 */
+	private void add(Buffer buffer) {
+		boolean first;
+		synchronized (this) {
+			if (m_errorStatus != 0) {
+				buffer.tryDispose();
+				return;
+			}
+			if (m_size > m_maxSize - buffer.remaining()) {
+				buffer.tryDispose();
+				fail(400, "The POST size was too large");
+				return;
+			}
+			if (!m_reservation.reserveTotal(m_size + buffer.remaining())) {
+				buffer.tryDispose();
+				fail(503, "The server is short of memory, try again later");
+				return;
+			}
+			m_size += buffer.remaining();
+			m_queue.add(buffer);
+			if (m_scheduled) {
+				return;
+			}
+			m_scheduled = true;
+			first = !m_admitted;
+			m_admitted = true;
+		}
+		schedule(first);
+	}
+
+	/**
+	 * Record that all of the input has been received. The response is sent
+	 * once it has all been parsed.
+	 */
+	public void end() {
+		boolean failed;
+		boolean first = false;
+		synchronized (this) {
+			if (m_inputDone) {
+				return;
+			}
+			m_inputDone = true;
+			m_stats.bodyRead();
+			if (m_scheduled) {
+				// The running task will finish up
+				return;
+			}
+			m_scheduled = true;
+			failed = m_errorStatus != 0;
+			if (!failed) {
+				first = !m_admitted;
+				m_admitted = true;
+			}
+		}
+		if (failed) {
+			complete();
+		} else {
+			schedule(first);
+		}
+	}
+
+	/**
+	 * Give up on the request, and send an error once the input is done
+	 */
+	public void abort(String message) {
+		synchronized (this) {
+			fail(400, message);
+		}
+		end();
+	}
+
+	/**
+	 * Submit the task. The first submission is subject to the usual limit
+	 * on the queue size; later ones are continuations of a request which
+	 * has already been accepted, so they are always queued.
+	 */
+	private void schedule(boolean first) {
+		if (first) {
+			m_stats.queued();
+		}
+		if (!first) {
+			m_executor.submit(this);
+		} else if (!m_executor.trySubmit(this)) {
+			boolean done;
+			synchronized (this) {
+				fail(503, "The server is too busy, try again later");
+				done = m_inputDone;
+				m_scheduled = done;
+			}
+			if (done) {
+				complete();
+			}
+		}
+	}
+
+	/**
+	 * Set the error response, if there isn't one already, and drop any
+	 * queued input. Must be called with the lock held.
+	 */
+	private void fail(int status, String message) {
+		if (m_errorStatus == 0) {
+			m_errorStatus = status;
+			m_errorMessage = message;
+		}
+		for (Buffer buffer : m_queue) {
+			buffer.tryDispose();
+		}
+		m_queue.clear();
+	}
+
+	public void run() {
+		m_stats.started();
+		for (;;) {
+			Buffer buffer;
+			synchronized (this) {
+				buffer = m_queue.poll();
+				if (buffer == null) {
+					if (!m_inputDone) {
+						m_scheduled = false;
+						return;
+					}
+					break;
+				}
+			}
+			try {
+				parse(buffer);
+			} catch (DepurateLimits.ExceededException e) {
+				synchronized (this) {
+					fail(422, e.getMessage());
+					m_exceeded = e;
+				}
+			} catch (SAXException e) {
+				synchronized (this) {
+					fail(500, "Error while parsing HTML: " + Util.format(e));
+				}
+			} catch (RuntimeException e) {
+				m_logger.warning("Got unexpected exception: " + Util.format(e));
+				synchronized (this) {
+					fail(500, "Unexpected exception: " + Util.format(e));
+				}
+			} finally {
+				buffer.tryDispose();
+			}
+		}
+		complete();
+	}
+
+	private void parse(Buffer buffer) throws SAXException {
+		long start = System.nanoTime();
+		m_limits.setStart(start - m_parseNanos);
+		if (m_parser == null) {
+			m_parser = Depurator.newPushParser(m_fragment);
+		}
+		while (buffer.hasRemaining()) {
+			int n = Math.min(buffer.remaining(), m_bytes.length);
+			buffer.get(m_bytes, 0, n);
+			m_parser.write(m_bytes, 0, n);
+			m_limits.checkClock();
+		}
+		m_parseNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Send the response, once all the input has been received and parsed
+	 */
+	private void complete() {
+		int errorStatus;
+		String errorMessage;
+		DepurateLimits.ExceededException exceeded;
+		synchronized (this) {
+			errorStatus = m_errorStatus;
+			errorMessage = m_errorMessage;
+			exceeded = m_exceeded;
+		}
+		try {
+			if (exceeded != null && errorStatus == 422) {
+				m_handler.sendLimitExceeded(m_response, exceeded);
+				return;
+			}
+			if (errorStatus != 0) {
+				if (errorStatus == 503) {
+					m_response.setHeader("Retry-After", Integer.toString(m_retryAfter));
+				}
+				m_handler.sendError(m_response, errorStatus, errorMessage);
+				return;
+			}
+			m_logger.info("Finishing depuration of " + m_size + " bytes of streamed input");
+			m_stats.addInputBytes(m_size);
+			if (!m_handler.reserveOutput(m_response.getRequest(), m_size)) {
+				m_handler.sendOverBudget(m_response);
+				return;
+			}
+			if (m_parser == null) {
+				// The text part was empty
+				m_parser = Depurator.newPushParser(m_fragment);
+			}
+			// Count the parsing done so far as part of the depuration time
+			long start = System.nanoTime() - m_parseNanos;
+			m_limits.setStart(start);
+			if (RequestStats.wantsTiming(m_response.getRequest())) {
+				DepurateProfile profile = new DepurateProfile();
+				profile.start(start);
+				PooledOutputStream buffered = new PooledOutputStream();
+				try {
+					Depurator.depurate(m_parser, buffered, m_compat, profile,
+							m_limits);
+					m_stats.depurated(start);
+					m_handler.sendProfiled(m_response, buffered, profile);
+				} finally {
+					buffered.release();
+				}
+			} else {
+				m_response.setContentType("text/html;charset=UTF-8");
+				OutputStream out = m_handler.openOutput(m_response);
+				Depurator.depurate(m_parser, out, m_compat, null, m_limits);
+				out.close();
+				m_stats.depurated(start);
+			}
+		} catch (DepurateLimits.ExceededException e) {
+			m_handler.sendLimitExceeded(m_response, e);
+		} catch (SAXException e) {
+			m_logger.info("Error running depurator");
+			m_handler.sendError(m_response, 500, "Error while parsing HTML: " + Util.format(e));
+		} catch (Exception e) {
+			m_logger.warning("Got unexpected exception: " + Util.format(e));
+			m_handler.sendError(m_response, 500, "Unexpected exception: " +
+					Util.format(e));
+		} finally {
+			if (m_parser != null) {
+				Depurator.release(m_parser);
+				m_parser = null;
+			}
+			m_response.resume();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package org.wikimedia.html5depurate;
+
+import nu.validator.htmlparser.common.DoctypeExpectation;
+import nu.validator.htmlparser.common.XmlViolationPolicy;
+import nu.validator.htmlparser.impl.Tokenizer;
+import nu.validator.htmlparser.impl.UTF16Buffer;
+import nu.validator.saxtree.Node;
+import nu.validator.saxtree.TreeParser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * An HTML parser which is fed UTF-8 input a piece at a time, as it arrives,
+ * instead of reading it from a stream. The tokenizer and tree builder run
+ * on each piece, so once the last piece has been written, only the
+ * serialization of the tree is left to do.
+ *
+ * The output is the same as that of HtmlParser with XmlViolationPolicy.ALLOW
+ * and a UTF-8 InputSource: this does what HtmlParser and its Driver do, with
+ * the same settings, minus the reading loop. As with HtmlParser in that
+ * mode, the whole tree is built before any SAX events are produced, since
+ * tree construction can still move nodes which have already been created.
+ *
+ * A fragment parser parses the input as the contents of a body element, as
+ * HtmlParser.parseFragment() does, and sends only those contents.
+ *
+ * A parser can be used for another document after reset(), which keeps the
+ * tokenizer's and tree builder's buffers, as HtmlParser does between parses.
+ */
+class PushParser {
+	private final Tokenizer m_tokenizer;
+	private final PushTreeBuilder m_treeBuilder;
+	private final CharsetDecoder m_decoder;
+	private boolean m_fragment;
+
+	private final char[] m_charArray = new char[2048];
+	private final CharBuffer m_chars = CharBuffer.wrap(m_charArray);
+	private final UTF16Buffer m_utf16 = new UTF16Buffer(m_charArray, 0, 0);
+
+	/** The start of a UTF-8 sequence which was split between writes */
+	private final ByteBuffer m_leftover = ByteBuffer.allocate(8);
+
+	private boolean m_lastWasCR = false;
+
+	/** Whether no characters have been decoded yet, for BOM removal */
+	private boolean m_first = true;
+
+	/** Whether the tokenizer has been started and not yet ended */
+	private boolean m_running = false;
+
+	PushParser() throws SAXException {
+		this(false);
+	}
+
+	PushParser(boolean fragment) throws SAXException {
+		m_treeBuilder = new PushTreeBuilder();
+		m_treeBuilder.setDoctypeExpectation(DoctypeExpectation.HTML);
+		m_treeBuilder.setIgnoringComments(false);
+		m_treeBuilder.setScriptingEnabled(false);
+		m_treeBuilder.setReportingDoctype(true);
+		m_treeBuilder.setNamePolicy(XmlViolationPolicy.ALLOW);
+
+		m_tokenizer = new Tokenizer(m_treeBuilder, true);
+		m_tokenizer.setCommentPolicy(XmlViolationPolicy.ALLOW);
+		m_tokenizer.setContentNonXmlCharPolicy(XmlViolationPolicy.ALLOW);
+		m_tokenizer.setContentSpacePolicy(XmlViolationPolicy.ALLOW);
+		m_tokenizer.setXmlnsPolicy(XmlViolationPolicy.ALLOW);
+		m_tokenizer.setHtml4ModeCompatibleWithXhtml1Schemata(false);
+		m_tokenizer.setMappingLangToXmlLang(false);
+
+		// Invalid sequences become U+FFFD, as they do in HtmlInputStreamReader
+		m_decoder = Charset.forName("UTF-8").newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		reset(fragment);
+	}
+
+	/**
+	 * Start parsing a new document, abandoning the current one if it has
+	 * not been finished
+	 */
+	public void reset(boolean fragment) throws SAXException {
+		stop();
+		m_fragment = fragment;
+		m_treeBuilder.setFragmentContext(fragment ? "body" : null);
+		m_decoder.reset();
+		m_chars.clear();
+		m_leftover.clear();
+		m_lastWasCR = false;
+		m_first = true;
+		m_tokenizer.start();
+		m_tokenizer.initLocation(null, null);
+		m_running = true;
+	}
+
+	/**
+	 * Abandon the current document, if it has not been finished, and drop
+	 * the tree built so far
+	 */
+	public void stop() throws SAXException {
+		if (m_running) {
+			m_running = false;
+			m_tokenizer.end();
+			m_treeBuilder.getDocument();
+		}
+	}
+
+	public boolean isFragment() {
+		return m_fragment;
+	}
+
+	/**
+	 * Parse some more of the input
+	 */
+	public void write(byte[] b, int off, int len) throws SAXException {
+		int i = off;
+		int end = off + len;
+		// Complete a sequence left over from the previous write, one byte
+		// at a time since it needs at most three more
+		while (m_leftover.position() > 0 && i < end) {
+			m_leftover.put(b[i++]);
+			m_leftover.flip();
+			decode(m_leftover, false);
+			m_leftover.compact();
+		}
+		if (i < end) {
+			ByteBuffer in = ByteBuffer.wrap(b, i, end - i);
+			decode(in, false);
+			m_leftover.put(in);
+		}
+	}
+
+	/**
+	 * Finish parsing, and send the document to the given handlers
+	 */
+	public void finish(ContentHandler handler, LexicalHandler lexicalHandler)
+			throws SAXException {
+		Node root;
+		try {
+			m_leftover.flip();
+			decode(m_leftover, true);
+			while (m_decoder.flush(m_chars) == CoderResult.OVERFLOW) {
+				tokenize();
+			}
+			tokenize();
+			m_tokenizer.eof();
+		} finally {
+			m_running = false;
+			m_tokenizer.end();
+			if (m_fragment) {
+				root = m_treeBuilder.getDocumentFragment();
+			} else {
+				root = m_treeBuilder.getDocument();
+			}
+		}
+		new TreeParser(handler, lexicalHandler).parse(root);
+	}
+
+	private void decode(ByteBuffer in, boolean endOfInput)
+			throws SAXException {
+		while (m_decoder.decode(in, m_chars, endOfInput) == CoderResult.OVERFLOW) {
+			tokenize();
+		}
+		tokenize();
+	}
+
+	/**
+	 * Run the tokenizer on the decoded characters, in the same way as
+	 * Driver.runStates()
+	 */
+	private void tokenize() throws SAXException {
+		int start = 0;
+		int end = m_chars.position();
+		m_chars.clear();
+		if (end == 0) {
+			return;
+		}
+		if (m_first) {
+			m_first = false;
+			if (m_charArray[0] == '\uFEFF') {
+				start = 1;
+			}
+		}
+		m_utf16.setStart(start);
+		m_utf16.setEnd(end);
+		while (m_utf16.hasMore()) {
+			m_utf16.adjust(m_lastWasCR);
+			m_lastWasCR = false;
+			if (m_utf16.hasMore()) {
+				m_lastWasCR = m_tokenizer.tokenizeBuffer(m_utf16);
+			}
+		}
+	}
+}
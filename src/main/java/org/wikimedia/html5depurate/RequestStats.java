@@ -0,0 +1,193 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.http.server.AfterServiceListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The metrics of a single request, recorded into DepurateMetrics as the
+ * request goes along. The request count, output size and response write
+ * time are recorded once Grizzly has finished with the response.
+ *
+ * A client can also ask for the timings of its own request by sending an
+ * X-Depurate-Timing header. They are then returned in a Server-Timing
+ * header, and with "X-Depurate-Timing: debug", the sizes and shape of the
+ * document are returned in an X-Depurate-Debug header.
+ */
+class RequestStats implements AfterServiceListener {
+	private static final String ATTRIBUTE = RequestStats.class.getName();
+	private static final String TIMING_HEADER = "X-Depurate-Timing";
+
+	private final DepurateMetrics m_metrics;
+	private final String m_pathLabel;
+	private final long m_start = System.nanoTime();
+
+	/** When the last depuration finished, or 0 if there was none */
+	private volatile long m_depurateEnd = 0;
+
+	private volatile long m_outputBytes = 0;
+
+	// Phases of this request, for the Server-Timing header
+	private long m_readNanos = -1;
+	private long m_queuedAt = 0;
+	private long m_queueNanos = -1;
+	private long m_inputBytes = 0;
+
+	RequestStats(DepurateMetrics metrics, String pathLabel) {
+		m_metrics = metrics;
+		m_pathLabel = pathLabel;
+	}
+
+	void attach(Request request) {
+		request.setAttribute(ATTRIBUTE, this);
+		request.addAfterServiceListener(this);
+	}
+
+	/**
+	 * Get the stats attached to a request by DepurateMetrics.startRequest()
+	 */
+	public static RequestStats get(Request request) {
+		return (RequestStats)request.getAttribute(ATTRIBUTE);
+	}
+
+	/**
+	 * Record that all of the input has been received
+	 */
+	public void bodyRead() {
+		m_readNanos = System.nanoTime() - m_start;
+		m_metrics.bodyRead.record(m_readNanos);
+	}
+
+	public void addInputBytes(long bytes) {
+		m_inputBytes += bytes;
+		m_metrics.addInputBytes(bytes);
+	}
+
+	/**
+	 * Record that the request is being submitted to the depuration pool
+	 */
+	public void queued() {
+		m_queuedAt = System.nanoTime();
+	}
+
+	/**
+	 * Record that the request has got a depuration thread. Only the first
+	 * wait is counted.
+	 */
+	public void started() {
+		if (m_queuedAt != 0 && m_queueNanos == -1) {
+			m_queueNanos = System.nanoTime() - m_queuedAt;
+		}
+	}
+
+	/**
+	 * Whether the client asked for the timings of the request. If so, the
+	 * output should be collected before it is sent, so that they can go in
+	 * the response headers.
+	 */
+	public static boolean wantsTiming(Request request) {
+		return request.getHeader(TIMING_HEADER) != null;
+	}
+
+	/**
+	 * Add the timing headers to a response, before its output is sent.
+	 *
+	 * @param profile The profile of the depuration, or null if it didn't
+	 *   collect one, in which case depurateNanos gives the total time
+	 * @param outputBytes The size of the output
+	 */
+	public void addTimingHeaders(Response response, DepurateProfile profile,
+			long depurateNanos, long outputBytes) {
+		StringBuilder sb = new StringBuilder();
+		addTiming(sb, "read", m_readNanos);
+		addTiming(sb, "queue", m_queueNanos);
+		if (profile != null) {
+			addTiming(sb, "parse", profile.getParseTime());
+			addTiming(sb, "serialize", profile.getSerializeTime());
+		} else {
+			addTiming(sb, "depurate", depurateNanos);
+		}
+		response.setHeader("Server-Timing", sb.toString());
+
+		String mode = response.getRequest().getHeader(TIMING_HEADER);
+		if (mode.trim().equalsIgnoreCase("debug")) {
+			sb.setLength(0);
+			sb.append("input=").append(m_inputBytes);
+			sb.append("; output=").append(outputBytes);
+			if (profile != null) {
+				sb.append("; depth=").append(profile.getMaxDepth());
+				sb.append("; elements=").append(profile.getElementCount());
+			}
+			response.setHeader("X-Depurate-Debug", sb.toString());
+		}
+	}
+
+	private static void addTiming(StringBuilder sb, String name, long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		if (sb.length() > 0) {
+			sb.append(", ");
+		}
+		// Milliseconds, to the microsecond
+		long micros = nanos / 1000;
+		sb.append(name).append(";dur=").append(micros / 1000).append('.');
+		String fraction = Long.toString(micros % 1000);
+		for (int i = fraction.length(); i < 3; i++) {
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+	/**
+	 * Record the depuration of a document which started at the given
+	 * System.nanoTime()
+	 */
+	public void depurated(long startNanos) {
+		long now = System.nanoTime();
+		m_metrics.depurate.record(now - startNanos);
+		m_depurateEnd = now;
+	}
+
+	/**
+	 * Wrap the response stream so that the output is counted. Closing the
+	 * returned stream doesn't close the response stream, which is left to
+	 * Grizzly.
+	 */
+	public OutputStream countOutput(final OutputStream out) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				m_outputBytes++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				m_outputBytes += len;
+			}
+
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+	}
+
+	public void onAfterService(Request request) {
+		if (m_depurateEnd != 0) {
+			m_metrics.responseWrite.recordSince(m_depurateEnd);
+		}
+		m_metrics.endRequest(m_pathLabel, request.getResponse().getStatus(),
+				m_outputBytes);
+	}
+}
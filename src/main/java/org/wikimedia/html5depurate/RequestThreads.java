@@ -0,0 +1,107 @@
+package org.wikimedia.html5depurate;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs each request on a thread of its own, for the thread-per-request
+ * mode. The thread reads the body with blocking reads, parses it as it
+ * arrives and writes the output, instead of the request being passed
+ * between Grizzly callbacks and the depuration pool.
+ *
+ * Virtual threads are used where the JVM has them (Java 21 and later), so
+ * that a slow client only ties up a small stack rather than an OS thread.
+ * On older JVMs, platform threads are used. They are looked up by
+ * reflection so that the server still builds for older versions.
+ *
+ * The number of requests in progress is limited, since there is no queue
+ * to hold them back.
+ */
+class RequestThreads {
+	private final ExecutorService m_executor;
+	private final boolean m_virtual;
+	private final int m_maxThreads;
+	private final AtomicInteger m_active = new AtomicInteger();
+	private final AtomicLong m_rejected = new AtomicLong();
+	Logger m_logger = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * @param maxThreads The most requests which may be in progress at once
+	 */
+	RequestThreads(int maxThreads) {
+		m_maxThreads = maxThreads;
+		ExecutorService executor = newVirtualThreadExecutor();
+		m_virtual = executor != null;
+		if (executor == null) {
+			m_logger.warning("Virtual threads are not available, " +
+					"running requests on platform threads");
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger m_count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,
+							"request-" + m_count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		m_executor = executor;
+		m_logger.info("Running each request on a " +
+				(m_virtual ? "virtual" : "platform") + " thread of its own");
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start a task on a new thread. Returns false without starting it if the
+	 * limit on requests in progress has been reached.
+	 */
+	public boolean trySubmit(final Runnable task) {
+		if (m_active.incrementAndGet() > m_maxThreads) {
+			m_active.decrementAndGet();
+			m_rejected.incrementAndGet();
+			return false;
+		}
+		m_executor.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					m_active.decrementAndGet();
+				}
+			}
+		});
+		return true;
+	}
+
+	public boolean isVirtual() {
+		return m_virtual;
+	}
+
+	/**
+	 * Get the number of requests in progress
+	 */
+	public int getActiveCount() {
+		return m_active.get();
+	}
+
+	public long getRejectedCount() {
+		return m_rejected.get();
+	}
+
+	public void shutdown() {
+		m_executor.shutdownNow();
+	}
+}
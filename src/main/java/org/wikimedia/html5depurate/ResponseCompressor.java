@@ -0,0 +1,356 @@
+package org.wikimedia.html5depurate;
+
+import org.glassfish.grizzly.http.server.AfterServiceListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response bodies with gzip or deflate, according to the
+ * request's Accept-Encoding header.
+ *
+ * Output smaller than the threshold isn't worth compressing. A streamed
+ * response is held back until it reaches the threshold, so that the
+ * decision can be made before the headers are sent.
+ *
+ * If an error is sent instead of a streamed response, abandon() must be
+ * called first, so that the error doesn't go out with the Content-Encoding
+ * of the output it replaces. Streams which are neither closed nor abandoned
+ * release their compressor when the request is finished.
+ */
+class ResponseCompressor {
+	private static final String GZIP = "gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String ATTRIBUTE =
+		ResponseCompressor.class.getName() + ".stream";
+
+	private final int m_level;
+	private final int m_threshold;
+	private final DepurateMetrics m_metrics;
+
+	/**
+	 * @param level The compression level, 1-9, or 0 to disable compression
+	 * @param threshold The smallest output size that will be compressed
+	 */
+	ResponseCompressor(int level, int threshold, DepurateMetrics metrics) {
+		m_level = level;
+		m_threshold = threshold;
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Get a stream which compresses what is written to it into the response,
+	 * if the client accepts it and the output turns out to be large enough.
+	 * The stream must be closed once the output is complete; this doesn't
+	 * close the response stream.
+	 */
+	public OutputStream wrap(Response response, OutputStream out) {
+		String encoding = selectEncoding(response);
+		if (encoding == null) {
+			return out;
+		}
+		ThresholdStream stream = new ThresholdStream(response, encoding, out);
+		Request request = response.getRequest();
+		request.setAttribute(ATTRIBUTE, stream);
+		request.addAfterServiceListener(stream);
+		return stream;
+	}
+
+	/**
+	 * Give up on a streamed response body, if one was started with wrap(),
+	 * because an error is to be sent instead. Its compressor is released
+	 * and, if the response hasn't been committed, the Content-Encoding
+	 * header is removed.
+	 */
+	public static void abandon(Response response) {
+		ThresholdStream stream = (ThresholdStream)response.getRequest()
+			.getAttribute(ATTRIBUTE);
+		if (stream != null) {
+			stream.abandon();
+		}
+	}
+
+	/**
+	 * Send a complete response body, compressing it if possible. The
+	 * Content-Length is set to the size that is sent.
+	 */
+	public void send(Response response, byte[] output, OutputStream out)
+			throws IOException
+	{
+		String encoding = selectEncoding(response);
+		if (encoding != null && output.length >= m_threshold) {
+			PooledOutputStream compressed = new PooledOutputStream();
+			try {
+				DeflaterOutputStream stream = newStream(encoding, compressed);
+				stream.write(output);
+				stream.close();
+				sendCompressed(response, encoding, output.length, compressed, out);
+			} finally {
+				compressed.release();
+			}
+			return;
+		}
+		response.setContentLength(output.length);
+		out.write(output);
+	}
+
+	/**
+	 * Send a complete response body held in a PooledOutputStream. The
+	 * caller still owns the stream, and releases it.
+	 */
+	public void send(Response response, PooledOutputStream output,
+			OutputStream out)
+		throws IOException
+	{
+		String encoding = selectEncoding(response);
+		if (encoding != null && output.size() >= m_threshold) {
+			PooledOutputStream compressed = new PooledOutputStream();
+			try {
+				DeflaterOutputStream stream = newStream(encoding, compressed);
+				output.writeTo(stream);
+				stream.close();
+				sendCompressed(response, encoding, output.size(), compressed, out);
+			} finally {
+				compressed.release();
+			}
+			return;
+		}
+		response.setContentLengthLong(output.size());
+		output.writeTo(out);
+	}
+
+	private void sendCompressed(Response response, String encoding,
+			long uncompressed, PooledOutputStream compressed, OutputStream out)
+		throws IOException
+	{
+		m_metrics.addCompressedResponse(uncompressed, compressed.size());
+		response.setHeader("Content-Encoding", encoding);
+		response.setContentLengthLong(compressed.size());
+		compressed.writeTo(out);
+	}
+
+	/**
+	 * Choose an encoding accepted by the client, or return null if the
+	 * response is not to be compressed. Sets Vary, since the choice
+	 * depends on the request headers.
+	 */
+	private String selectEncoding(Response response) {
+		if (m_level == 0) {
+			return null;
+		}
+		response.setHeader("Vary", "Accept-Encoding");
+		String header = response.getRequest().getHeader("Accept-Encoding");
+		if (header == null) {
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		for (String item : header.split(",")) {
+			String[] parts = item.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (isRefused(parts)) {
+				continue;
+			}
+			if (name.equals(GZIP) || name.equals("x-gzip") || name.equals("*")) {
+				gzip = true;
+			} else if (name.equals(DEFLATE)) {
+				deflate = true;
+			}
+		}
+		if (gzip) {
+			return GZIP;
+		} else if (deflate) {
+			return DEFLATE;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the parameters of an Accept-Encoding item include q=0
+	 */
+	private static boolean isRefused(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2)) <= 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	private DeflaterOutputStream newStream(String encoding, OutputStream out)
+			throws IOException
+	{
+		if (encoding.equals(GZIP)) {
+			return new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(m_level);
+				}
+			};
+		} else {
+			return new DeflaterOutputStream(out, new Deflater(m_level), 8192) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					// A Deflater given to the constructor isn't ended by it
+					def.end();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Buffers output until it reaches the threshold, then switches to
+	 * compressing it. If the output is complete before the threshold is
+	 * reached, it is sent as it is.
+	 */
+	private class ThresholdStream extends OutputStream
+			implements AfterServiceListener {
+		private final Response m_response;
+		private final String m_encoding;
+		private final OutputStream m_out;
+		private CountingStream m_counter;
+		private DeflaterOutputStream m_compressor;
+		private byte[] m_buffer = new byte[Math.min(m_threshold, 8192)];
+		private int m_length = 0;
+		private long m_uncompressed = 0;
+
+		ThresholdStream(Response response, String encoding, OutputStream out) {
+			m_response = response;
+			m_encoding = encoding;
+			m_out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			m_uncompressed += len;
+			if (m_compressor != null) {
+				m_compressor.write(b, off, len);
+				return;
+			}
+			if (m_length + len < m_threshold) {
+				if (m_length + len > m_buffer.length) {
+					byte[] buffer = new byte[Math.min(m_threshold,
+							Math.max(m_buffer.length * 2, m_length + len))];
+					System.arraycopy(m_buffer, 0, buffer, 0, m_length);
+					m_buffer = buffer;
+				}
+				System.arraycopy(b, off, m_buffer, m_length, len);
+				m_length += len;
+				return;
+			}
+			m_response.setHeader("Content-Encoding", m_encoding);
+			m_counter = new CountingStream(m_out);
+			m_compressor = newStream(m_encoding, m_counter);
+			m_compressor.write(m_buffer, 0, m_length);
+			m_compressor.write(b, off, len);
+			m_buffer = null;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// Flushing the compressor would cost compression ratio, and the
+			// output is only flushed by the serializer as it is produced, so
+			// only the response stream is flushed.
+			if (m_compressor != null) {
+				m_out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (m_compressor != null) {
+				// Finishes the compressed data, without closing m_out
+				m_compressor.close();
+				m_metrics.addCompressedResponse(m_uncompressed, m_counter.m_count);
+				m_compressor = null;
+			} else if (m_buffer != null) {
+				m_out.write(m_buffer, 0, m_length);
+				m_buffer = null;
+			}
+		}
+
+		/**
+		 * Drop the output. The compressor is finished into nothing, which
+		 * releases its Deflater.
+		 */
+		void abandon() {
+			m_buffer = null;
+			if (m_compressor == null) {
+				return;
+			}
+			m_counter.m_discard = true;
+			try {
+				m_compressor.close();
+			} catch (IOException e) {
+				// Nothing is written, so nothing can fail
+			}
+			m_compressor = null;
+			if (!m_response.isCommitted()) {
+				m_response.getResponse().getHeaders()
+					.removeHeader("Content-Encoding");
+			}
+		}
+
+		public void onAfterService(Request request) {
+			abandon();
+		}
+	}
+
+	/**
+	 * Passes output through to another stream, counting it, and doesn't
+	 * close it
+	 */
+	private static class CountingStream extends OutputStream {
+		private final OutputStream m_out;
+		long m_count = 0;
+		/** Whether to drop what is written instead of passing it on */
+		boolean m_discard = false;
+
+		CountingStream(OutputStream out) {
+			m_out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!m_discard) {
+				m_out.write(b);
+				m_count++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!m_discard) {
+				m_out.write(b, off, len);
+				m_count += len;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!m_discard) {
+				m_out.flush();
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.wikimedia.html5depurate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * An append-only byte buffer for CompatibilitySerializer, which needs to
+ * hold on to the contents of an element until it knows whether to p-wrap or
+ * split it.
+ *
+ * Everything written goes to the end of a chain of fixed-size blocks,
+ * addressed by offsets as if they were one array. What belongs to which
+ * element is tracked with segments: a segment is a list of byte ranges of
+ * the chain and references to other segments. Writing an
+ * element's contents into its parent is then just a matter of adding a
+ * reference, instead of copying the bytes once for each level of nesting.
+ *
+ * The current segment receives whatever is written to the stream. When
+ * there is no current segment, writes go straight to the sink, and an
+ * appended segment is written out to the sink in one pass. Since nothing
+ * else can be buffered at that point, the blocks are then reused from the
+ * start.
+ *
+ * The first block is owned by the buffer. When a document needs more, the
+ * chain is extended with blocks from the BufferPool, which are given back
+ * by reset(). Nothing is copied when the chain grows, and no block is
+ * larger than the pool's smallest size.
+ */
+class SegmentBuffer extends OutputStream {
+	static class Segment {
+		/**
+		 * Pairs of ints. A range of the chain is stored as its start and end
+		 * offsets. A reference to the child segment with index i is
+		 * stored as -1 - i, followed by an unused int.
+		 */
+		private int[] m_pieces = new int[8];
+		private int m_count = 0;
+		private ArrayList<Segment> m_children;
+
+		private void addRange(int start, int end) {
+			if (start == end) {
+				return;
+			}
+			if (m_count > 0 && m_pieces[m_count - 1] == start
+					&& m_pieces[m_count - 2] >= 0) {
+				// Contiguous with the previous range
+				m_pieces[m_count - 1] = end;
+				return;
+			}
+			add(start, end);
+		}
+
+		private void addChild(Segment child) {
+			if (m_children == null) {
+				m_children = new ArrayList<Segment>();
+			}
+			m_children.add(child);
+			add(-m_children.size(), 0);
+		}
+
+		private void add(int a, int b) {
+			if (m_count == m_pieces.length) {
+				int[] pieces = new int[m_pieces.length * 2];
+				System.arraycopy(m_pieces, 0, pieces, 0, m_count);
+				m_pieces = pieces;
+			}
+			m_pieces[m_count++] = a;
+			m_pieces[m_count++] = b;
+		}
+	}
+
+	private static final int BLOCK_SHIFT = 13;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+	private OutputStream m_sink;
+	/** The block owned by this buffer, which is always the first */
+	private final byte[] m_initial = new byte[BLOCK_SIZE];
+	/** The chain of blocks, of which all but the first are from the pool */
+	private final ArrayList<byte[]> m_blocks = new ArrayList<byte[]>();
+	/** The offset in the chain at which the next write goes */
+	private int m_length = 0;
+
+	/** The segment being written to, or null for the sink */
+	private Segment m_current = null;
+
+	/** The start of the range being written to the current segment */
+	private int m_openStart = 0;
+
+	public SegmentBuffer(OutputStream sink) {
+		m_sink = sink;
+		m_blocks.add(m_initial);
+	}
+
+	/**
+	 * Forget all segments and start writing to the given sink
+	 */
+	public void reset(OutputStream sink) {
+		m_sink = sink;
+		m_current = null;
+		m_length = 0;
+		m_openStart = 0;
+		for (int i = m_blocks.size() - 1; i > 0; i--) {
+			BufferPool.get().give(m_blocks.remove(i));
+		}
+	}
+
+	public Segment newSegment() {
+		return new Segment();
+	}
+
+	/**
+	 * Get the segment being written to, or null if writes go to the sink
+	 */
+	public Segment getCurrent() {
+		return m_current;
+	}
+
+	/**
+	 * Direct subsequent writes to the given segment, or to the sink if it is
+	 * null
+	 */
+	public void setCurrent(Segment segment) {
+		closeRange();
+		m_current = segment;
+	}
+
+	/**
+	 * Add the contents of a segment at the current position. The segment
+	 * must not be written to afterwards.
+	 */
+	public void append(Segment segment) throws IOException {
+		if (m_current == null) {
+			writeOut(segment);
+			m_length = 0;
+			m_openStart = 0;
+		} else {
+			closeRange();
+			m_current.addChild(segment);
+		}
+	}
+
+	private void closeRange() {
+		if (m_current != null) {
+			m_current.addRange(m_openStart, m_length);
+		}
+		m_openStart = m_length;
+	}
+
+	/**
+	 * Write a segment and everything it refers to out to the sink
+	 */
+	private void writeOut(Segment segment) throws IOException {
+		Segment[] segments = new Segment[16];
+		int[] positions = new int[16];
+		int depth = 0;
+		segments[0] = segment;
+		positions[0] = 0;
+		while (depth >= 0) {
+			Segment s = segments[depth];
+			int i = positions[depth];
+			if (i == s.m_count) {
+				depth--;
+				continue;
+			}
+			positions[depth] = i + 2;
+			int start = s.m_pieces[i];
+			if (start >= 0) {
+				writeRange(start, s.m_pieces[i + 1]);
+			} else {
+				depth++;
+				if (depth == segments.length) {
+					Segment[] newSegments = new Segment[depth * 2];
+					System.arraycopy(segments, 0, newSegments, 0, depth);
+					segments = newSegments;
+					int[] newPositions = new int[depth * 2];
+					System.arraycopy(positions, 0, newPositions, 0, depth);
+					positions = newPositions;
+				}
+				segments[depth] = s.m_children.get(-1 - start);
+				positions[depth] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Write a range of the chain out to the sink
+	 */
+	private void writeRange(int start, int end) throws IOException {
+		while (start < end) {
+			int pos = start & BLOCK_MASK;
+			int n = Math.min(end - start, BLOCK_SIZE - pos);
+			m_sink.write(m_blocks.get(start >>> BLOCK_SHIFT), pos, n);
+			start += n;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (m_current == null) {
+			m_sink.write(b);
+			return;
+		}
+		getBlock()[m_length++ & BLOCK_MASK] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (m_current == null) {
+			m_sink.write(b, off, len);
+			return;
+		}
+		while (len > 0) {
+			int pos = m_length & BLOCK_MASK;
+			int n = Math.min(len, BLOCK_SIZE - pos);
+			System.arraycopy(b, off, getBlock(), pos, n);
+			m_length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		m_sink.flush();
+	}
+
+	/**
+	 * Get the block which the next write goes to, extending the chain if it
+	 * is full
+	 */
+	private byte[] getBlock() {
+		int index = m_length >>> BLOCK_SHIFT;
+		if (index == m_blocks.size()) {
+			m_blocks.add(BufferPool.get().take(BLOCK_SIZE));
+		}
+		return m_blocks.get(index);
+	}
+}
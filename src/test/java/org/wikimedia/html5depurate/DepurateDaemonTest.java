@@ -0,0 +1,129 @@
+package org.wikimedia.html5depurate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.daemon.DaemonContext;
+import org.apache.commons.daemon.DaemonController;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Parsing of the configuration, and reloading it while the server runs
+ */
+public class DepurateDaemonTest {
+	private DepurateDaemon m_daemon;
+	private File m_configFile;
+
+	@Before
+	public void setUp() throws Exception {
+		m_daemon = new DepurateDaemon();
+		m_configFile = File.createTempFile("depurate", ".conf");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		m_daemon.stop();
+		m_configFile.delete();
+	}
+
+	@Test
+	public void testDefaults() {
+		Config config = m_daemon.parseConfig(new Properties());
+		Assert.assertEquals(4339, config.port);
+		Assert.assertEquals(100000000, config.maxPostSize);
+		Assert.assertEquals(Runtime.getRuntime().availableProcessors() * 2,
+				config.workerThreads);
+	}
+
+	@Test
+	public void testInvalidValues() {
+		String[][] invalid = {
+			{"port", "70000"},
+			{"port", "http"},
+			{"depurateThreads", "0"},
+			{"compressionLevel", "10"},
+			{"heapThreshold", "101"},
+			{"pushParsing", "maybe"},
+			{"cacheSize", "-1"},
+			{"memoryBudget", "-1"},
+			{"workerThreads", "0"},
+			{"keepAliveTimeout", "-2"},
+			{"maxHeaderSize", "100"},
+		};
+		for (String[] pair : invalid) {
+			Properties properties = new Properties();
+			properties.setProperty(pair[0], pair[1]);
+			try {
+				m_daemon.parseConfig(properties);
+				Assert.fail(pair[0] + " = " + pair[1] + " was accepted");
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(e.getMessage(),
+						e.getMessage().contains(pair[0]));
+			}
+		}
+	}
+
+	/**
+	 * A reload should apply the settings which can change while the server
+	 * runs, keep the ones which need a restart, and change nothing if a
+	 * value is invalid
+	 */
+	@Test
+	public void testReload() throws Exception {
+		writeConfig("port = 0\nselectorThreads = 1\ncacheSize = 0\n"
+				+ "depurateThreads = 2\nmaxPostSize = 1000\n");
+		m_daemon.init(new Context("-c", m_configFile.getPath()));
+		m_daemon.start();
+
+		writeConfig("port = 1\nselectorThreads = 2\ncacheSize = 1000\n"
+				+ "depurateThreads = 3\nmaxPostSize = 2000\n");
+		Config config = m_daemon.reload();
+		Assert.assertSame(config, m_daemon.getConfig());
+		Assert.assertEquals(0, config.port);
+		Assert.assertEquals(1, config.selectorThreads);
+		Assert.assertEquals(0, config.cacheSize);
+		Assert.assertEquals(3, config.depurateThreads);
+		Assert.assertEquals(2000, config.maxPostSize);
+
+		writeConfig("depurateThreads = 0\nmaxPostSize = 3000\n");
+		try {
+			m_daemon.reload();
+			Assert.fail("An invalid configuration was loaded");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		Assert.assertSame(config, m_daemon.getConfig());
+		Assert.assertEquals(2000, m_daemon.getConfig().maxPostSize);
+	}
+
+	private void writeConfig(String text) throws Exception {
+		OutputStream out = new FileOutputStream(m_configFile);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class Context implements DaemonContext {
+		private final String[] m_args;
+
+		Context(String... args) {
+			m_args = args;
+		}
+
+		public DaemonController getController() {
+			return null;
+		}
+
+		public String[] getArguments() {
+			return m_args;
+		}
+	}
+}
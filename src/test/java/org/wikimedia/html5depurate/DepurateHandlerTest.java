@@ -0,0 +1,681 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Requests to a DepurateHandler running on a local port, for the parts of
+ * the handler which depend on how the request is made.
+ */
+public class DepurateHandlerTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String BOUNDARY = "test-boundary";
+
+	private HttpServer m_server;
+	private DepurateExecutor m_executor;
+	private DepurateHandler m_handler;
+	private int m_port;
+
+	@Before
+	public void setUp() throws Exception {
+		start(new Properties());
+	}
+
+	@After
+	public void tearDown() {
+		stop();
+	}
+
+	/**
+	 * Start a server with the given configuration, in place of the one
+	 * which is running
+	 */
+	private void start(Properties properties) throws Exception {
+		stop();
+		Config config = new DepurateDaemon().parseConfig(properties);
+		m_executor = new DepurateExecutor(config.depurateThreads,
+				config.depurateQueueSize);
+		DepurateMetrics metrics = new DepurateMetrics(m_executor);
+		m_server = new HttpServer();
+		NetworkListener listener = new NetworkListener("test", "localhost", 0);
+		ContentDecodingAddOn decoding = new ContentDecodingAddOn(metrics,
+				config.maxPostSize);
+		listener.registerAddOn(decoding);
+		m_server.addListener(listener);
+		m_handler = new DepurateHandler(config, m_executor, metrics);
+		decoding.setMemoryBudget(m_handler.getMemoryBudget());
+		m_server.getServerConfiguration().addHttpHandler(m_handler);
+		m_server.getServerConfiguration().addHttpHandler(
+				new MetricsHandler(metrics), "/metrics");
+		m_server.start();
+		m_port = listener.getPort();
+	}
+
+	private void stop() {
+		if (m_server != null) {
+			m_server.shutdownNow();
+			m_executor.shutdown();
+			m_server = null;
+		}
+	}
+
+	/**
+	 * A request which arrives when the depuration threads are busy and the
+	 * queue is full should be turned away
+	 */
+	@Test
+	public void testQueueFull() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("depurateThreads", "1");
+		properties.setProperty("depurateQueueSize", "1");
+		start(properties);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		// One running and one queued
+		Assert.assertTrue(m_executor.trySubmit(blocked));
+		Assert.assertTrue(m_executor.trySubmit(blocked));
+		try {
+			HttpURLConnection conn = postParts("/document", "text", "<p>busy");
+			Assert.assertEquals(503, conn.getResponseCode());
+			Assert.assertNotNull(conn.getHeaderField("Retry-After"));
+		} finally {
+			release.countDown();
+		}
+		HttpURLConnection conn = postParts("/document", "text", "<p>idle");
+		Assert.assertEquals(200, conn.getResponseCode());
+	}
+
+	/**
+	 * A repeated document should be served from the cache, with the same
+	 * ETag, and a request which already has that ETag should get a 304
+	 */
+	@Test
+	public void testCache() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cacheSize", "1000000");
+		start(properties);
+		HttpURLConnection conn = postParts("/document", "text", "<p>cached");
+		Assert.assertEquals(200, conn.getResponseCode());
+		String etag = conn.getHeaderField("ETag");
+		Assert.assertNotNull(etag);
+		String body = read(conn.getInputStream());
+
+		conn = postParts("/document", "text", "<p>cached");
+		Assert.assertEquals(200, conn.getResponseCode());
+		Assert.assertEquals(etag, conn.getHeaderField("ETag"));
+		Assert.assertEquals(body, read(conn.getInputStream()));
+		Assert.assertEquals(1, getStatus("cacheMisses"));
+		Assert.assertEquals(1, getStatus("cacheHits"));
+
+		conn = openPost("/document");
+		conn.setRequestProperty("If-None-Match", "\"other\", " + etag);
+		sendParts(conn, "text", "<p>cached");
+		Assert.assertEquals(304, conn.getResponseCode());
+		// Without being depurated or looked up
+		Assert.assertEquals(1, getStatus("cacheHits"));
+
+		// The mode is part of the key
+		conn = postParts("/compat/document", "text", "<p>cached");
+		Assert.assertEquals(200, conn.getResponseCode());
+		Assert.assertFalse(etag.equals(conn.getHeaderField("ETag")));
+		Assert.assertEquals(2, getStatus("cacheMisses"));
+	}
+
+	/**
+	 * Identical requests which arrive while the first is being depurated
+	 * should wait for it rather than depurating the same input again
+	 */
+	@Test
+	public void testCacheCollapsing() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cacheSize", "100000000");
+		properties.setProperty("depurateThreads", "2");
+		start(properties);
+		// Large enough that the second request arrives while the first is
+		// being depurated
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			sb.append("<p>paragraph ").append(i);
+		}
+		final String html = sb.toString();
+		final int[] statuses = new int[2];
+		final String[] bodies = new String[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						HttpURLConnection conn = postParts("/document",
+								"text", html);
+						statuses[index] = conn.getResponseCode();
+						bodies[index] = read(conn.getInputStream());
+					} catch (Exception e) {
+						statuses[index] = -1;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(200, statuses[0]);
+		Assert.assertEquals(200, statuses[1]);
+		Assert.assertEquals(bodies[0], bodies[1]);
+		Assert.assertEquals(1, getStatus("cacheMisses"));
+		Assert.assertEquals(1, getStatus("cacheCollapsed"));
+	}
+
+	/**
+	 * A depuration which fails should be run again for the next request,
+	 * rather than its error being cached
+	 */
+	@Test
+	public void testCacheFailure() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cacheSize", "1000000");
+		properties.setProperty("maxDepth", "10");
+		start(properties);
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			html.append("<div>");
+		}
+		for (int i = 0; i < 2; i++) {
+			HttpURLConnection conn = postParts("/document", "text",
+					html.toString());
+			Assert.assertEquals(422, conn.getResponseCode());
+		}
+		Assert.assertEquals(2, getStatus("cacheMisses"));
+		Assert.assertEquals(0, getStatus("cacheEntries"));
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		HttpURLConnection conn = postParts("/batch/document",
+				"a", "<b>a", "b", "<i>b");
+		Assert.assertEquals(200, conn.getResponseCode());
+		String body = read(conn.getInputStream());
+		Assert.assertTrue(body, body.contains("<b>a</b>"));
+		Assert.assertTrue(body, body.contains("<i>b</i>"));
+	}
+
+	@Test
+	public void testBatchDuplicateName() throws Exception {
+		HttpURLConnection conn = postParts("/batch/document",
+				"a", "<b>a", "b", "<i>b", "a", "<u>c");
+		Assert.assertEquals(400, conn.getResponseCode());
+		String body = read(conn.getErrorStream());
+		Assert.assertTrue(body, body.contains("\"a\""));
+	}
+
+	/**
+	 * Outside of a batch, a repeated part replaces the earlier one
+	 */
+	@Test
+	public void testDocumentDuplicateName() throws Exception {
+		HttpURLConnection conn = postParts("/document",
+				"text", "<b>a", "text", "<i>b");
+		Assert.assertEquals(200, conn.getResponseCode());
+		String body = read(conn.getInputStream());
+		Assert.assertTrue(body, body.contains("<i>b</i>"));
+		Assert.assertFalse(body, body.contains("<b>a</b>"));
+	}
+
+	/**
+	 * Input of exactly maxPostSize bytes is allowed, and one more byte is not
+	 */
+	@Test
+	public void testMaxPostSize() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("maxPostSize", "1000");
+		start(properties);
+		HttpURLConnection conn = postParts("/document", "text", text(1000));
+		Assert.assertEquals(200, conn.getResponseCode());
+		read(conn.getInputStream());
+		conn = postParts("/document", "text", text(1001));
+		Assert.assertEquals(400, conn.getResponseCode());
+
+		// Chunked, so that the size is checked as the body is read
+		conn = postChunked("/document", "text/html",
+				text(1000).getBytes(UTF_8));
+		Assert.assertEquals(200, conn.getResponseCode());
+		read(conn.getInputStream());
+		conn = postChunked("/document", "text/html",
+				text(1001).getBytes(UTF_8));
+		Assert.assertEquals(400, conn.getResponseCode());
+	}
+
+	@Test
+	public void testPushParsing() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("maxPostSize", "1000");
+		properties.setProperty("pushParsing", "true");
+		start(properties);
+		HttpURLConnection conn = postParts("/document", "text", text(1000));
+		Assert.assertEquals(200, conn.getResponseCode());
+		read(conn.getInputStream());
+		conn = postParts("/document", "text", text(1001));
+		Assert.assertEquals(400, conn.getResponseCode());
+		conn = postParts("/document", "text", "<b>a", "text", "<i>b");
+		Assert.assertEquals(400, conn.getResponseCode());
+		String body = read(conn.getErrorStream());
+		Assert.assertTrue(body, body.contains("\"text\""));
+	}
+
+	/**
+	 * The metrics should be in the Prometheus text format, with a type for
+	 * every metric
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		HttpURLConnection conn = postParts("/document", "text", "<p>a");
+		Assert.assertEquals(200, conn.getResponseCode());
+		read(conn.getInputStream());
+
+		// The request is counted once Grizzly has finished with it, which
+		// may be after the client has the response
+		String counted =
+			"depurate_requests_total{path=\"/document\",status=\"200\"} 1\n";
+		String metrics;
+		long deadline = System.currentTimeMillis() + 5000;
+		do {
+			URL url = new URL("http://localhost:" + m_port + "/metrics");
+			conn = (HttpURLConnection)url.openConnection();
+			Assert.assertEquals(200, conn.getResponseCode());
+			Assert.assertTrue(conn.getContentType().startsWith(
+						"text/plain;version=0.0.4"));
+			metrics = read(conn.getInputStream());
+		} while (!metrics.contains(counted)
+				&& System.currentTimeMillis() < deadline);
+		Assert.assertTrue(metrics, metrics.contains(counted));
+		Pattern sample = Pattern.compile(
+				"([a-z_]+)(\\{[a-z]+=\"[^\"]*\"(,[a-z]+=\"[^\"]*\")*\\})? "
+				+ "-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+		Set<String> typed = new HashSet<String>();
+		for (String line : metrics.split("\n")) {
+			if (line.startsWith("# TYPE ")) {
+				String[] fields = line.split(" ");
+				Assert.assertEquals(line, 4, fields.length);
+				Assert.assertTrue(line, fields[3].equals("counter")
+						|| fields[3].equals("gauge")
+						|| fields[3].equals("histogram"));
+				typed.add(fields[2]);
+			} else if (!line.startsWith("# HELP ")) {
+				Matcher m = sample.matcher(line);
+				Assert.assertTrue(line, m.matches());
+				String name = m.group(1).replaceFirst("_(bucket|sum|count)$", "");
+				Assert.assertTrue(line, typed.contains(m.group(1))
+						|| typed.contains(name));
+			}
+		}
+	}
+
+	/**
+	 * The phase timings should be returned only when they are asked for
+	 */
+	@Test
+	public void testServerTiming() throws Exception {
+		HttpURLConnection conn = postParts("/document", "text", "<p>a");
+		Assert.assertEquals(200, conn.getResponseCode());
+		Assert.assertNull(conn.getHeaderField("Server-Timing"));
+
+		conn = openPost("/document");
+		conn.setRequestProperty("X-Depurate-Timing", "debug");
+		sendParts(conn, "text", "<p>a");
+		Assert.assertEquals(200, conn.getResponseCode());
+		String timing = conn.getHeaderField("Server-Timing");
+		Assert.assertNotNull(timing);
+		Pattern entry = Pattern.compile("[a-z]+;dur=[0-9]+\\.[0-9]{3}");
+		for (String part : timing.split(", ")) {
+			Assert.assertTrue(timing, entry.matcher(part).matches());
+		}
+		Assert.assertTrue(timing, timing.startsWith("read;dur="));
+		Assert.assertTrue(timing, timing.contains("queue;dur="));
+		String debug = conn.getHeaderField("X-Depurate-Debug");
+		Assert.assertNotNull(debug);
+		Assert.assertTrue(debug, debug.startsWith("input=4; output="));
+	}
+
+	/**
+	 * Get some HTML of the given length
+	 */
+	private static String text(int length) {
+		StringBuilder sb = new StringBuilder("<p>");
+		while (sb.length() < length) {
+			sb.append('a');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testCompressedRequests() throws Exception {
+		byte[] html = "<p>compressed".getBytes(UTF_8);
+		String expected = "<!DOCTYPE html>\n<html><head></head><body>"
+			+ "<p>compressed</p></body></html>";
+
+		byte[][] bodies = {
+			gzip(html, html.length),
+			deflate(html, html.length, false),
+			deflate(html, html.length, true),
+		};
+		String[] encodings = {"gzip", "deflate", "deflate"};
+		for (int i = 0; i < bodies.length; i++) {
+			HttpURLConnection conn = post("/document", "text/html",
+					encodings[i], bodies[i]);
+			Assert.assertEquals(encodings[i], 200, conn.getResponseCode());
+			Assert.assertEquals(expected, read(conn.getInputStream()));
+		}
+
+		// Two gzip members, with an optional header field in the second
+		ByteArrayOutputStream members = new ByteArrayOutputStream();
+		members.write(gzip("<p>comp".getBytes(UTF_8), 7));
+		byte[] second = gzip("ressed".getBytes(UTF_8), 6);
+		second[3] = 8; // FNAME
+		members.write(second, 0, 10);
+		members.write("name\0".getBytes(UTF_8));
+		members.write(second, 10, second.length - 10);
+		HttpURLConnection conn = post("/document", "text/html", "gzip",
+				members.toByteArray());
+		Assert.assertEquals(200, conn.getResponseCode());
+		Assert.assertEquals(expected, read(conn.getInputStream()));
+	}
+
+	/**
+	 * A small body which inflates to far more than maxPostSize should be
+	 * refused without being inflated beyond the limit
+	 */
+	@Test
+	public void testCompressionBomb() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("maxPostSize", "100000");
+		start(properties);
+		String[] encodings = {"gzip", "deflate"};
+		for (String encoding : encodings) {
+			HttpURLConnection conn = post("/document", "text/html", encoding,
+					zeros(encoding, 64));
+			Assert.assertEquals(encoding, 400, conn.getResponseCode());
+		}
+	}
+
+	/**
+	 * The same with the default maxPostSize, where the body is inflated to
+	 * 100 MB before it is refused
+	 */
+	@Test
+	public void testCompressionBombDefaultLimit() throws Exception {
+		HttpURLConnection conn = post("/document", "text/html", "gzip",
+				zeros("gzip", 128));
+		Assert.assertEquals(400, conn.getResponseCode());
+	}
+
+	/**
+	 * Requests which don't fit in the memory budget should be turned away
+	 * with a 503, whether the budget is used up by the declared size or by
+	 * the body as it is decompressed, and should give their reservations
+	 * back
+	 */
+	@Test
+	public void testMemoryBudget() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("memoryBudget", "100000");
+		start(properties);
+		MemoryBudget budget = m_handler.getMemoryBudget();
+		long outstanding = BufferPool.get().getOutstanding();
+		// Another request, without which any one request would be let in
+		MemoryBudget.Reservation other = budget.new Reservation();
+		Assert.assertTrue(other.reserveTotal(60000));
+
+		HttpURLConnection conn = post("/document", "text/html", null,
+				new byte[50000]);
+		Assert.assertEquals(503, conn.getResponseCode());
+		Assert.assertNotNull(conn.getHeaderField("Retry-After"));
+		read(conn.getErrorStream());
+
+		conn = post("/document", "text/html", "gzip", zeros("gzip", 1));
+		Assert.assertEquals(503, conn.getResponseCode());
+		Assert.assertNotNull(conn.getHeaderField("Retry-After"));
+		read(conn.getErrorStream());
+
+		other.release();
+		conn = post("/document", "text/html", null,
+				"<p>fits".getBytes(UTF_8));
+		Assert.assertEquals(200, conn.getResponseCode());
+		read(conn.getInputStream());
+
+		// Reservations are released after the response has been sent
+		long deadline = System.currentTimeMillis() + 5000;
+		while (budget.getUsed() != 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, budget.getUsed());
+		Assert.assertEquals(outstanding, BufferPool.get().getOutstanding());
+	}
+
+	/**
+	 * Compress the given number of megabytes of zeros
+	 */
+	private static byte[] zeros(String encoding, int megabytes)
+			throws Exception
+	{
+		byte[] zeros = new byte[1 << 20];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = encoding.equals("gzip")
+			? new GZIPOutputStream(bytes)
+			: new DeflaterOutputStream(bytes);
+		for (int i = 0; i < megabytes; i++) {
+			out.write(zeros);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * An error which replaces a compressed response that has not been sent
+	 * yet should not claim to be compressed
+	 */
+	@Test
+	public void testErrorAfterCompressionStarted() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("compressionThreshold", "100");
+		// More than the serializer's buffer, so that some output reaches
+		// the compressor before the limit is reached
+		properties.setProperty("maxOutputSize", "20000");
+		start(properties);
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			html.append("<p>paragraph ").append(i);
+		}
+		URL url = new URL("http://localhost:" + m_port + "/document");
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "text/html");
+		OutputStream out = conn.getOutputStream();
+		out.write(html.toString().getBytes(UTF_8));
+		out.close();
+		Assert.assertEquals(422, conn.getResponseCode());
+		Assert.assertNull(conn.getHeaderField("Content-Encoding"));
+		Assert.assertEquals("output-limit",
+				conn.getHeaderField("X-Depurate-Error"));
+	}
+
+	/**
+	 * A body much larger than BodyPipe.MAX_QUEUED, so that reading has to be
+	 * suspended and resumed while it is parsed
+	 */
+	@Test
+	public void testThreadPerRequestLargeBody() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("threadPerRequest", "true");
+		start(properties);
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			html.append("<p>paragraph ").append(i);
+		}
+		byte[] body = html.toString().getBytes(UTF_8);
+		Assert.assertTrue(body.length > BodyPipe.MAX_QUEUED * 10);
+		HttpURLConnection conn = post("/document", "text/html", null, body);
+		Assert.assertEquals(200, conn.getResponseCode());
+		String output = read(conn.getInputStream());
+		Assert.assertTrue(output.contains("<p>paragraph 0</p>"));
+		Assert.assertTrue(output.endsWith("<p>paragraph 99999</p></body></html>"));
+	}
+
+	private static byte[] gzip(byte[] data, int length) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data, 0, length);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] data, int length, boolean raw)
+			throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+		DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+		out.write(data, 0, length);
+		out.close();
+		deflater.end();
+		return bytes.toByteArray();
+	}
+
+	private HttpURLConnection post(String path, String contentType,
+			String contentEncoding, byte[] body) throws Exception
+	{
+		URL url = new URL("http://localhost:" + m_port + path);
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", contentType);
+		if (contentEncoding != null) {
+			conn.setRequestProperty("Content-Encoding", contentEncoding);
+		}
+		conn.setFixedLengthStreamingMode(body.length);
+		OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		return conn;
+	}
+
+	/**
+	 * Post a body without a Content-Length, in small chunks
+	 */
+	private HttpURLConnection postChunked(String path, String contentType,
+			byte[] body) throws Exception
+	{
+		URL url = new URL("http://localhost:" + m_port + path);
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", contentType);
+		conn.setChunkedStreamingMode(100);
+		OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		return conn;
+	}
+
+	/**
+	 * Post a multipart/form-data body made of the given names and values
+	 */
+	private HttpURLConnection postParts(String path, String... parts)
+			throws Exception
+	{
+		return sendParts(openPost(path), parts);
+	}
+
+	/**
+	 * Open a POST request, to which headers may be added before the body is
+	 * sent
+	 */
+	private HttpURLConnection openPost(String path) throws Exception {
+		URL url = new URL("http://localhost:" + m_port + path);
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		return conn;
+	}
+
+	/**
+	 * Send a multipart/form-data body made of the given names and values
+	 */
+	private static HttpURLConnection sendParts(HttpURLConnection conn,
+			String... parts) throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < parts.length; i += 2) {
+			sb.append("--").append(BOUNDARY).append("\r\n")
+				.append("Content-Disposition: form-data; name=\"")
+				.append(parts[i]).append("\"\r\n\r\n")
+				.append(parts[i + 1]).append("\r\n");
+		}
+		sb.append("--").append(BOUNDARY).append("--\r\n");
+		byte[] body = sb.toString().getBytes(UTF_8);
+
+		conn.setRequestProperty("Content-Type",
+				"multipart/form-data; boundary=" + BOUNDARY);
+		conn.setFixedLengthStreamingMode(body.length);
+		OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		return conn;
+	}
+
+	/**
+	 * Get a value from /status
+	 */
+	private long getStatus(String name) throws Exception {
+		URL url = new URL("http://localhost:" + m_port + "/status");
+		String status = read(url.openStream());
+		for (String line : status.split("\n")) {
+			if (line.startsWith(name + ": ")) {
+				return Long.parseLong(line.substring(name.length() + 2));
+			}
+		}
+		throw new AssertionError(name + " is missing from " + status);
+	}
+
+	private static String read(InputStream stream) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = stream.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		stream.close();
+		return new String(bytes.toByteArray(), UTF_8);
+	}
+}
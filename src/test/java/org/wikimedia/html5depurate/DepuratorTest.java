@@ -1,5 +1,8 @@
 package org.wikimedia.html5depurate;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.util.Arrays;
@@ -14,6 +17,10 @@ import org.junit.runners.Parameterized.Parameters;
 
 @RunWith(Parameterized.class)
 public class DepuratorTest {
+	private static final String PREFIX = "<html><head></head><body>";
+	private static final String SUFFIX = "</body></html>";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private String input;
 	private String expected;
 	private boolean compat;
@@ -92,9 +99,32 @@ public class DepuratorTest {
 			{COMPAT, "x<span><div>y</div></span>", "<p>x</p><span><div>y</div></span>"},
 			{COMPAT, "a<span><i><div>d</div></i>e</span>",
 				"<p>a</p><span><i><div>d</div></i></span><p><span>e</span></p>"},
+			// 30. Text escaping
+			{NOCOMPAT, "1 &lt; 2 &gt; 1 &amp; x&nbsp;y", "1 &lt; 2 &gt; 1 &amp; x&#160;y"},
+			// 31. Attribute escaping
+			{NOCOMPAT, "<span title='\"a&amp;b&nbsp;<'>x</span>",
+				"<span title=\"&quot;a&amp;b&nbsp;<\">x</span>"},
+			// 32. Multibyte UTF-8 sequences
+			{NOCOMPAT, "\u00e9\u20ac\ud834\udd1e", "\u00e9\u20ac\ud834\udd1e"},
+			// 33. No escaping in raw text elements and comments
+			{NOCOMPAT, "<script>a<b&c</script><!--a&b-->",
+				"<script>a<b&c</script><!--a&b-->"},
+			// 34. Void elements and the newline after pre
+			{NOCOMPAT, "<br><pre>x</pre>", "<br /><pre>\nx</pre>"},
+			// 35. Output larger than the serializer's buffer
+			{NOCOMPAT, repeat("a\u00e9\u20ac\ud834\udd1e&amp;", 3000),
+				repeat("a\u00e9\u20ac\ud834\udd1e&amp;", 3000)},
 		});
 	}
 
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
 	public DepuratorTest(boolean compat_, String input_, String expected_) {
 		compat = compat_;
 		input = input_;
@@ -103,12 +133,172 @@ public class DepuratorTest {
 
 	@Test
 	public void test() throws Exception {
-		String prefix = "<html><head></head><body>";
-		String suffix = "</body></html>";
-		StringReader sr = new StringReader(prefix + input + suffix);
+		check();
+	}
+
+	/**
+	 * The parser and serializers are reused, so a document which fails
+	 * part way through must not affect the next one
+	 */
+	@Test
+	public void testAfterFailure() throws Exception {
+		Reader failing = new StringReader("<html><body><table><tr><td><p>x&amp;y\ud834") {
+			private int m_reads = 0;
+
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				if (m_reads++ > 0) {
+					throw new IOException("Read failed");
+				}
+				return super.read(cbuf, off, len);
+			}
+		};
+		try {
+			Depurator.depurate(new InputSource(failing), compat);
+			Assert.fail("Expected an IOException");
+		} catch (IOException e) {
+		}
+		check();
+	}
+
+	/**
+	 * The push parser should give the same result however the input is
+	 * split, so feed it one byte at a time
+	 */
+	@Test
+	public void testPush() throws Exception {
+		byte[] bytes = (PREFIX + input + SUFFIX).getBytes(UTF_8);
+		PushParser parser = new PushParser();
+		for (int i = 0; i < bytes.length; i++) {
+			parser.write(bytes, i, 1);
+		}
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Depurator.depurate(parser, sink, compat);
+		checkOutput(sink.toByteArray());
+	}
+
+	/**
+	 * A push parser given back after an abandoned document, or after a
+	 * document of the other kind, should give the same output when reused
+	 */
+	@Test
+	public void testPushReuse() throws Exception {
+		PushParser parser = Depurator.newPushParser(true);
+		byte[] abandoned = "<table><tr><td>abandoned".getBytes(UTF_8);
+		parser.write(abandoned, 0, abandoned.length);
+		Depurator.release(parser);
+
+		Assert.assertSame(parser, Depurator.newPushParser(false));
+		byte[] bytes = (PREFIX + input + SUFFIX).getBytes(UTF_8);
+		parser.write(bytes, 0, bytes.length);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Depurator.depurate(parser, sink, compat);
+		checkOutput(sink.toByteArray());
+		Depurator.release(parser);
+
+		Assert.assertSame(parser, Depurator.newPushParser(true));
+		bytes = input.getBytes(UTF_8);
+		parser.write(bytes, 0, bytes.length);
+		sink = new ByteArrayOutputStream();
+		Depurator.depurate(parser, sink, compat);
+		Assert.assertEquals(expected, new String(sink.toByteArray(), UTF_8));
+		Depurator.release(parser);
+	}
+
+	/**
+	 * Parsed as the contents of a body, the input should give the same
+	 * output, without the skeleton
+	 */
+	@Test
+	public void testFragment() throws Exception {
+		InputSource source = new InputSource(new StringReader(input));
+		byte[] output = Depurator.depurate(source, compat, true);
+		Assert.assertEquals(expected, new String(output, UTF_8));
+	}
+
+	@Test
+	public void testPushFragment() throws Exception {
+		byte[] bytes = input.getBytes(UTF_8);
+		PushParser parser = new PushParser(true);
+		for (int i = 0; i < bytes.length; i++) {
+			parser.write(bytes, i, 1);
+		}
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Depurator.depurate(parser, sink, compat);
+		Assert.assertEquals(expected, new String(sink.toByteArray(), UTF_8));
+	}
+
+	/**
+	 * The output limit should allow exactly the size of the output, and the
+	 * depth limit should stop input nested more deeply than it allows
+	 */
+	@Test
+	public void testLimits() throws Exception {
+		String document = PREFIX + input + SUFFIX;
+		int size = Depurator.depurate(
+				new InputSource(new StringReader(document)), compat).length;
+		checkOutput(Depurator.depurate(
+				new InputSource(new StringReader(document)), compat, false,
+				new DepurateLimits(0, 0, size)));
+		checkExceeded(document, new DepurateLimits(0, 0, size - 1),
+				DepurateLimits.ExceededException.OUTPUT);
+
+		StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			nested.append("<div>");
+		}
+		nested.append(input);
+		checkExceeded(nested.toString(), new DepurateLimits(0, 10, 0),
+				DepurateLimits.ExceededException.DEPTH);
+	}
+
+	@Test
+	public void testBufferPool() throws Exception {
+		// Large enough for the output to take several chunks, and for the
+		// compatibility serializer to grow its buffer
+		String document = PREFIX + input + repeat("Some text. ", 10000) + SUFFIX;
+		BufferPool pool = BufferPool.get();
+		long outstanding = pool.getOutstanding();
+
+		ByteArrayOutputStream direct = new ByteArrayOutputStream();
+		Depurator.depurate(new InputSource(new StringReader(document)), direct,
+				compat);
+		byte[] pooled = Depurator.depurate(
+				new InputSource(new StringReader(document)), compat);
+		Assert.assertArrayEquals(direct.toByteArray(), pooled);
+		// Held by the compatibility serializer across many blocks
+		String html = new String(pooled, UTF_8);
+		Assert.assertTrue(html.contains(repeat("Some text. ", 10000)));
+		checkExceeded(document, new DepurateLimits(0, 0, pooled.length / 2),
+				DepurateLimits.ExceededException.OUTPUT);
+		Assert.assertEquals("Buffers not given back to the pool",
+				outstanding, pool.getOutstanding());
+	}
+
+	private void checkExceeded(String document, DepurateLimits limits,
+			String code) throws Exception {
+		try {
+			Depurator.depurate(new InputSource(new StringReader(document)),
+					compat, false, limits);
+			Assert.fail("Expected " + code);
+		} catch (DepurateLimits.ExceededException e) {
+			Assert.assertEquals(code, e.getCode());
+		}
+	}
+
+	private void check() throws Exception {
+		StringReader sr = new StringReader(PREFIX + input + SUFFIX);
 		InputSource source = new InputSource(sr);
-		byte[] buffer = Depurator.depurate(source, compat);
-		String html = new String(buffer, Charset.forName("UTF-8"));
+		checkOutput(Depurator.depurate(source, compat));
+	}
+
+	private void checkOutput(byte[] buffer) {
+		String prefix = PREFIX;
+		String suffix = SUFFIX;
+		String html = new String(buffer, UTF_8);
+		if (!compat) {
+			prefix = "<!DOCTYPE html>\n" + prefix;
+		}
 		Assert.assertTrue(html.startsWith(prefix));
 		Assert.assertTrue(html.endsWith(suffix));
 		Assert.assertEquals(expected, html.substring(prefix.length(), html.length() - suffix.length()));
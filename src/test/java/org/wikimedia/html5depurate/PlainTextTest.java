@@ -0,0 +1,148 @@
+package org.wikimedia.html5depurate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Random;
+import org.xml.sax.InputSource;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * The plain text fast path must give exactly what the parser gives, so its
+ * output is compared with the parser's for the DepuratorTest cases and for
+ * random text, for documents and fragments.
+ */
+public class PlainTextTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String[] WRAPPERS = {
+		"", "",
+		"<html><head></head><body>", "</body></html>",
+		"<!DOCTYPE html><html><head></head><body>", "</body></html>",
+		"<html><body>", "</body></html>",
+		"<!DOCTYPE html><html><body>", "</body></html>",
+		// Not recognised, but should still give the right output
+		"<body>", "</body>",
+		"<html><head></head><body>", "</body></html>\n",
+	};
+
+	/**
+	 * Characters to build random text from, weighted towards those which
+	 * need care
+	 */
+	private static final String ALPHABET = "aaaaabbbccc     \t\n\f\r\u0000"
+		+ "\u0001\u007f\u0085\u00a0\u00e9\u20ac\ufdd0\ufeff\ufffd\uffff"
+		+ "<>&\"';#=/!-?x";
+
+	@Test
+	public void testDepuratorCases() throws Exception {
+		for (Object[] data : DepuratorTest.data()) {
+			String input = (String)data[1];
+			for (int i = 0; i < WRAPPERS.length; i += 2) {
+				check(WRAPPERS[i] + input + WRAPPERS[i + 1]);
+			}
+		}
+	}
+
+	@Test
+	public void testRandom() throws Exception {
+		Random random = new Random(1);
+		for (int n = 0; n < 5000; n++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(20);
+			for (int i = 0; i < length; i++) {
+				int r = random.nextInt(ALPHABET.length() + 3);
+				if (r == ALPHABET.length()) {
+					// A surrogate pair
+					sb.append("\ud83d\ude00");
+				} else if (r == ALPHABET.length() + 1) {
+					// A noncharacter in a supplementary plane
+					sb.append("\ud83f\udffe");
+				} else if (r == ALPHABET.length() + 2) {
+					sb.append("\ud800");
+				} else {
+					sb.append(ALPHABET.charAt(r));
+				}
+			}
+			int w = random.nextInt(WRAPPERS.length / 2) * 2;
+			check(WRAPPERS[w] + sb + WRAPPERS[w + 1]);
+		}
+	}
+
+	/**
+	 * The fast path should be taken for the common cases
+	 */
+	@Test
+	public void testMatches() {
+		Assert.assertNotNull(PlainText.match(""));
+		Assert.assertNotNull(PlainText.match("  Hello, world > 1\n"));
+		Assert.assertNotNull(PlainText.match(
+				"<html><head></head><body> x\u00a0y\ud83d\ude00 </body></html>"));
+		Assert.assertNotNull(PlainText.match(
+				"<!DOCTYPE html><html><body></body></html>"));
+		Assert.assertNull(PlainText.match("a &amp; b"));
+		Assert.assertNull(PlainText.match("a<b>c</b>"));
+		Assert.assertNull(PlainText.match("a\r\nb"));
+	}
+
+	private void check(String input) throws Exception {
+		for (int mode = 0; mode < 4; mode++) {
+			boolean compat = (mode & 1) != 0;
+			boolean fragment = (mode & 2) != 0;
+			String expected = parse(input, compat, fragment);
+			String message = describe(input, compat, fragment);
+
+			PlainText text = PlainText.match(input);
+			if (text != null) {
+				Assert.assertEquals(message, expected,
+						write(text, compat, fragment));
+			}
+
+			// The same as UTF-8, unless it has unpaired surrogates
+			byte[] bytes = input.getBytes(UTF_8);
+			if (!input.equals(new String(bytes, UTF_8))) {
+				continue;
+			}
+			text = PlainText.match(InputChunks.wrap(bytes));
+			if (text != null) {
+				Assert.assertEquals(message, expected,
+						write(text, compat, fragment));
+			}
+		}
+	}
+
+	private static String parse(String input, boolean compat,
+			boolean fragment)
+		throws Exception
+	{
+		InputSource source = new InputSource(new StringReader(input));
+		return new String(Depurator.depurate(source, compat, fragment), UTF_8);
+	}
+
+	private static String write(PlainText text, boolean compat,
+			boolean fragment)
+		throws Exception
+	{
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Depurator.depurate(text, sink, compat, fragment);
+		return new String(sink.toByteArray(), UTF_8);
+	}
+
+	private static String describe(String input, boolean compat,
+			boolean fragment) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(compat ? "compat " : "").append(fragment ? "fragment " : "")
+			.append(": ");
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+			if (c < 0x20 || c > 0x7e) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -3,38 +3,108 @@
  */
 package org.wikimedia.html5depurate;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
-import javax.servlet.ServletException;
-import javax.servlet.annotation.MultipartConfig;
-import javax.servlet.annotation.WebServlet;
-
-import java.io.IOException;
-import java.io.InputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.logging.Logger;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import nu.validator.encoding.Encoding;
-
+/**
+ * The depurator as a Servlet 3.1 servlet, for deployment in a container
+ * instead of as a standalone daemon. It serves /document, /compat/document,
+ * /body and /compat/body, as DepurateHandler does.
+ *
+ * A text/html request body is read with a ReadListener and fed to a
+ * PushParser as it arrives, so no container thread waits on a slow client
+ * and the input is never held in memory. A form is read by the container,
+ * as before. Either way, the output is written with a WriteListener once
+ * the document has been serialized, so no thread waits on a slow reader.
+ *
+ * The size and depuration limits can be set with init parameters of the
+ * same names as the daemon's configuration options.
+ */
 @MultipartConfig()
 public class DepurateServlet extends HttpServlet {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private int m_maxPostSize;
+	private int m_maxDepurateTime;
+	private int m_maxDepth;
+	private long m_maxOutputSize;
+	Logger m_logger = Logger.getLogger(this.getClass().getName());
+
+	@Override
+	public void init() throws ServletException {
+		m_maxPostSize = (int)getLimit("maxPostSize", 100000000);
+		m_maxDepurateTime = (int)getLimit("maxDepurateTime", 10000);
+		m_maxDepth = (int)getLimit("maxDepth", 5000);
+		m_maxOutputSize = getLimit("maxOutputSize", 100000000);
+	}
+
+	private long getLimit(String name, long defaultValue)
+			throws ServletException
+	{
+		String value = getInitParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long limit = Long.parseLong(value.trim());
+			if (limit < 0 || limit > Integer.MAX_VALUE) {
+				throw new NumberFormatException();
+			}
+			return limit;
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value for " + name + ": " + value);
+		}
+	}
+
+	private DepurateLimits newLimits() {
+		return new DepurateLimits(m_maxDepurateTime, m_maxDepth, m_maxOutputSize);
+	}
+
+	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse res)
 			throws ServletException, IOException
 	{
-		// Set up charset
-		Charset utf8;
-		try {
-			utf8 = Charset.forName("UTF-8");
-		} catch (IllegalArgumentException e) {
-			throw new ServletException("No UTF-8", e);
+		String path = req.getServletPath();
+		boolean compat = path.startsWith("/compat/");
+		boolean fragment = path.endsWith("/body");
+
+		String contentType = req.getContentType();
+		if (contentType != null && contentType.toLowerCase()
+				.startsWith("text/html")) {
+			String charset = req.getCharacterEncoding();
+			if (charset != null && !charset.equalsIgnoreCase("UTF-8")) {
+				res.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+						"The body must be UTF-8");
+				return;
+			}
+			if (req.getContentLength() > m_maxPostSize) {
+				res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+						"The POST size was too large");
+				return;
+			}
+			AsyncContext async = req.startAsync();
+			ServletInputStream in = req.getInputStream();
+			in.setReadListener(new BodyReader(async, in, compat, fragment));
+			return;
 		}
 
 		req.setCharacterEncoding("UTF-8");
@@ -47,8 +117,7 @@ public class DepurateServlet extends HttpServlet {
 		} else {
 			String text = req.getParameter("text");
 			if (text != null) {
-				byte[] buffer = req.getParameter("text").getBytes(utf8);
-				stream = new ByteArrayInputStream(buffer);
+				stream = new ByteArrayInputStream(text.getBytes(UTF_8));
 			}
 		}
 		if (stream == null) {
@@ -58,16 +127,167 @@ public class DepurateServlet extends HttpServlet {
 
 		InputSource source = new InputSource(stream);
 		source.setEncoding("UTF-8");
-		byte[] outputBytes;
+		ByteArrayOutputStream buffered = new ByteArrayOutputStream();
 		try {
-			outputBytes = Depurator.depurate(source);
+			Depurator.depurate(source, buffered, compat, fragment, null,
+					newLimits());
+		} catch (DepurateLimits.ExceededException e) {
+			sendLimitExceeded(res, e);
+			return;
 		} catch (SAXException e) {
 			throw new ServletException("Error parsing HTML", e);
 		}
+		send(req.startAsync(), buffered.toByteArray());
+	}
+
+	private void sendLimitExceeded(HttpServletResponse res,
+			DepurateLimits.ExceededException e) throws IOException {
+		m_logger.warning("Depuration stopped: " + e.getMessage());
+		res.setHeader("X-Depurate-Error", e.getCode());
+		res.sendError(422, e.getMessage());
+	}
 
-		// HtmlSerializer writes UTF-8 by default
+	/**
+	 * Write the output without blocking, and complete the request
+	 */
+	private void send(AsyncContext async, byte[] output) throws IOException {
+		HttpServletResponse res = (HttpServletResponse)async.getResponse();
+		// DepurateSerializer writes UTF-8
 		res.setContentType("text/html;charset=UTF-8");
-		res.setContentLength(outputBytes.length);
-		res.getOutputStream().write(outputBytes);
+		res.setContentLength(output.length);
+		ServletOutputStream out = res.getOutputStream();
+		out.setWriteListener(new ResponseWriter(async, out, output));
+	}
+
+	/**
+	 * Feeds a text/html request body to a PushParser as it becomes
+	 * readable, and sends the output once it has all been parsed. Only the
+	 * time spent parsing counts towards the time limit.
+	 */
+	private class BodyReader implements ReadListener {
+		private final AsyncContext m_async;
+		private final ServletInputStream m_in;
+		private final boolean m_compat;
+		private final boolean m_fragment;
+		private PushParser m_parser;
+		private final DepurateLimits m_limits = newLimits();
+		private final byte[] m_bytes = new byte[8192];
+		private long m_size = 0;
+		private long m_parseNanos = 0;
+		private boolean m_failed = false;
+
+		BodyReader(AsyncContext async, ServletInputStream in, boolean compat,
+				boolean fragment) {
+			m_async = async;
+			m_in = in;
+			m_compat = compat;
+			m_fragment = fragment;
+		}
+
+		public void onDataAvailable() throws IOException {
+			long start = System.nanoTime();
+			m_limits.setStart(start - m_parseNanos);
+			try {
+				if (m_parser == null) {
+					m_parser = new PushParser(m_fragment);
+				}
+				while (!m_failed && m_in.isReady()) {
+					int n = m_in.read(m_bytes);
+					if (n == -1) {
+						break;
+					}
+					m_size += n;
+					if (m_size > m_maxPostSize) {
+						fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+								"The POST size was too large");
+						break;
+					}
+					m_parser.write(m_bytes, 0, n);
+					m_limits.checkClock();
+				}
+			} catch (DepurateLimits.ExceededException e) {
+				m_failed = true;
+				sendLimitExceeded((HttpServletResponse)m_async.getResponse(), e);
+				m_async.complete();
+			} catch (SAXException e) {
+				fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+						"Error while parsing HTML: " + Util.format(e));
+			}
+			m_parseNanos += System.nanoTime() - start;
+		}
+
+		public void onAllDataRead() throws IOException {
+			if (m_failed) {
+				return;
+			}
+			m_limits.setStart(System.nanoTime() - m_parseNanos);
+			ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+			try {
+				if (m_parser == null) {
+					// The body was empty
+					m_parser = new PushParser(m_fragment);
+				}
+				Depurator.depurate(m_parser, buffered, m_compat, null, m_limits);
+			} catch (DepurateLimits.ExceededException e) {
+				m_failed = true;
+				sendLimitExceeded((HttpServletResponse)m_async.getResponse(), e);
+				m_async.complete();
+				return;
+			} catch (SAXException e) {
+				fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+						"Error while parsing HTML: " + Util.format(e));
+				return;
+			}
+			send(m_async, buffered.toByteArray());
+		}
+
+		public void onError(Throwable t) {
+			m_logger.info("Error reading the request: " + Util.format(t));
+			if (!m_failed) {
+				m_failed = true;
+				m_async.complete();
+			}
+		}
+
+		private void fail(int status, String message) throws IOException {
+			m_failed = true;
+			((HttpServletResponse)m_async.getResponse()).sendError(status, message);
+			m_async.complete();
+		}
+	}
+
+	/**
+	 * Writes the output as fast as the client takes it, then completes the
+	 * request
+	 */
+	private class ResponseWriter implements WriteListener {
+		private final AsyncContext m_async;
+		private final ServletOutputStream m_out;
+		private final byte[] m_output;
+		private int m_pos = 0;
+
+		ResponseWriter(AsyncContext async, ServletOutputStream out,
+				byte[] output) {
+			m_async = async;
+			m_out = out;
+			m_output = output;
+		}
+
+		public void onWritePossible() throws IOException {
+			while (m_out.isReady()) {
+				if (m_pos == m_output.length) {
+					m_async.complete();
+					return;
+				}
+				int n = Math.min(m_output.length - m_pos, 8192);
+				m_out.write(m_output, m_pos, n);
+				m_pos += n;
+			}
+		}
+
+		public void onError(Throwable t) {
+			m_logger.info("Error writing the response: " + Util.format(t));
+			m_async.complete();
+		}
 	}
-};
+}